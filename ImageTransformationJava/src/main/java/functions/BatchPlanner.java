@@ -0,0 +1,474 @@
+package functions;
+
+import imaging.BufferPool;
+import imaging.CanonicalLayout;
+import imaging.PixelPipeline;
+import imaging.Resampler;
+import utils.ImageHeader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
+import static utils.Constants.FILE_NAME_KEY;
+import static utils.Constants.ORIGINAL_HEIGHT_KEY;
+import static utils.Constants.ORIGINAL_WIDTH_KEY;
+import static utils.Constants.PIPELINE_STAGE_KEY;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Plans a run of consecutive details, rotate, resize, grayscale and brightness operations of a batch request.
+ *
+ *  The response of every operation is worked out up front from its arguments and the size and color model the
+ *  image has at that point, so details operations never touch the image. The other operations are then rewritten
+ *  for as long as the estimated work goes down: consecutive rotations and shrinking resizes are combined,
+ *  grayscale conversions of gray images are dropped, and neighbouring operations are swapped when the result
+ *  stays the same or within a few levels of it, e.g. a thumbnail resize moves ahead of a dimming brightness
+ *  adjustment. Grayscale, brightness and rotate operations left next to each other run in one PixelPipeline pass.
+ */
+final class BatchPlanner {
+
+    /**
+     * Operations that run as a PixelPipeline stage, mapped to the method validating them and describing the stage.
+     */
+    private static final Map<String, Function<HashMap<String, Object>, HashMap<String, Object>>> STAGES = new HashMap<>();
+
+    static {
+        STAGES.put("rotate", F2ImageRotation::planRotation);
+        STAGES.put("grayscale", F4ImageGrayscale::planGrayscale);
+        STAGES.put("brightness", F5ImageBrightness::planBrightness);
+    }
+
+    /**
+     * The color model of grayscale output.
+     */
+    private static final ColorModel GRAY_COLOR_MODEL = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY).getColorModel();
+
+    /**
+     * Estimated work, relative to one filter tap of a resize on one sample: reading and writing a sample in a
+     * pipeline pass, looking up a brightness sample, and computing the luma of a pixel.
+     */
+    private static final double PASS_SAMPLE_COST = 1;
+    private static final double LOOKUP_SAMPLE_COST = 1;
+    private static final double LUMA_PIXEL_COST = 1;
+
+    /**
+     * The operations that run, in order.
+     */
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * The responses of the planned operations, in request order.
+     */
+    private final List<HashMap<String, Object>> outputs = new ArrayList<>();
+
+
+    private BatchPlanner() {
+    }
+
+    /**
+     * Checks whether an operation can be planned.
+     *
+     * @param operationName The name of the operation.
+     * @return Whether the operation can be part of a plan.
+     */
+    static boolean canPlan(final String operationName) {
+        return STAGES.containsKey(operationName) || "resize".equals(operationName) || "details".equals(operationName);
+    }
+
+    /**
+     * Checks whether planning operations requires the decoded image, i.e. whether any of them is not a details operation.
+     *
+     * @param operationNames The names of the operations.
+     * @return Whether the operations read or change pixels.
+     */
+    static boolean needsPixels(final List<String> operationNames) {
+        for (final String operationName : operationNames) {
+            if (!"details".equals(operationName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Plans operations on an image.
+     *
+     * @param operationNames The names of the operations, all accepted by canPlan.
+     * @param operationArgs  The arguments of the operations, including the bucket and file name.
+     * @param firstIndex     The index of the first operation in the request, for error messages.
+     * @param image          The image the operations start from, accepted by PixelPipeline.supports.
+     * @return The plan.
+     */
+    static BatchPlanner plan(final List<String> operationNames, final List<HashMap<String, Object>> operationArgs,
+                             final int firstIndex, final BufferedImage image) {
+        final BatchPlanner planner = new BatchPlanner();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ColorModel colorModel = CanonicalLayout.getDecodedColorModel(image);
+
+        // Work out the response of every operation in request order, invalid operations do not change the image
+        for (int i = 0; i < operationNames.size(); i++) {
+            final String operationName = operationNames.get(i);
+            final HashMap<String, Object> args = operationArgs.get(i);
+            final HashMap<String, Object> response;
+            if (operationName.equals("details")) {
+                response = F1ImageDetails.plannedImageDetails(args, new ImageHeader(width, height, colorModel));
+            } else if (operationName.equals("resize")) {
+                response = F3ImageResize.planResize(args);
+                if (!response.containsKey(ERROR_KEY)) {
+                    response.put(ORIGINAL_WIDTH_KEY, width);
+                    response.put(ORIGINAL_HEIGHT_KEY, height);
+                    width = (Integer) args.get("target_width");
+                    height = (Integer) args.get("target_height");
+                    planner.steps.add(new Step(args, width, height, F3ImageResize.getFilter(args)));
+                }
+            } else {
+                response = STAGES.get(operationName).apply(args);
+                if (!response.containsKey(ERROR_KEY)) {
+                    final PixelPipeline.Stage stage = (PixelPipeline.Stage) response.remove(PIPELINE_STAGE_KEY);
+                    planner.steps.add(new Step(operationName, args, stage));
+                    if (stage.getRotationAngle() % 180 != 0) {
+                        final int rotatedWidth = height;
+                        height = width;
+                        width = rotatedWidth;
+                    }
+                    if (stage.getLuma() != null) {
+                        colorModel = GRAY_COLOR_MODEL;
+                    }
+                }
+            }
+
+            if (response.containsKey(ERROR_KEY)) {
+                System.out.println("Pipeline error: Error executing function at index " + (firstIndex + i));
+            }
+            planner.outputs.add(response);
+        }
+
+        planner.optimize(image.getWidth(), image.getHeight(), image.getColorModel());
+        return planner;
+    }
+
+    /**
+     * Returns the responses of the planned operations.
+     *
+     * @return The responses, in request order.
+     */
+    List<HashMap<String, Object>> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Checks whether the plan leaves the image as it is, e.g. when it only has details operations.
+     *
+     * @return Whether no operation runs.
+     */
+    boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * Describes the operations that run.
+     *
+     * @return The operations in request form, in the order they run.
+     */
+    List<List<Object>> describe() {
+        final List<List<Object>> description = new ArrayList<>();
+        for (final Step step : steps) {
+            description.add(describeOperation(step.name, step.args));
+        }
+        return description;
+    }
+
+    /**
+     * Runs the plan.
+     *
+     * @param image The image the operations start from. It is not modified.
+     * @return The output of the last operation.
+     */
+    BufferedImage run(final BufferedImage image) {
+        BufferedImage result = image;
+        final List<PixelPipeline.Stage> stages = new ArrayList<>();
+        for (final Step step : steps) {
+            if (step.stage != null) {
+                stages.add(step.stage);
+                continue;
+            }
+            if (!stages.isEmpty()) {
+                result = replace(image, result, PixelPipeline.run(result, stages));
+                stages.clear();
+            }
+            result = replace(image, result, Resampler.resize(result, step.width, step.height, step.filter));
+        }
+        return stages.isEmpty() ? result : replace(image, result, PixelPipeline.run(result, stages));
+    }
+
+    /**
+     * Moves on to the output of a step, returning the previous intermediate image to the buffer pool.
+     *
+     * @param image    The image the plan started from, which belongs to the caller.
+     * @param previous The input of the step.
+     * @param next     The output of the step.
+     * @return The output of the step.
+     */
+    private static BufferedImage replace(final BufferedImage image, final BufferedImage previous, final BufferedImage next) {
+        if (previous != image && previous != next) {
+            BufferPool.release(previous);
+        }
+        return next;
+    }
+
+    /**
+     * Describes an operation in request form, without the bucket and file name.
+     *
+     * @param operationName The name of the operation.
+     * @param operationArgs The arguments of the operation.
+     * @return The name and arguments of the operation.
+     */
+    static List<Object> describeOperation(final String operationName, final HashMap<String, Object> operationArgs) {
+        final HashMap<String, Object> args = new HashMap<>(operationArgs);
+        args.remove(BUCKET_KEY);
+        args.remove(FILE_NAME_KEY);
+
+        final List<Object> operation = new ArrayList<>();
+        operation.add(operationName);
+        operation.add(args);
+        return operation;
+    }
+
+    /**
+     * Rewrites the steps until no rewrite makes them cheaper.
+     *
+     * @param width      The width of the image the steps start from.
+     * @param height     The height of the image the steps start from.
+     * @param colorModel The color model of the image the steps start from.
+     */
+    private void optimize(final int width, final int height, final ColorModel colorModel) {
+        boolean rewritten;
+        do {
+            rewritten = combine(width, height, colorModel.getNumColorComponents() == 1) || reorder(width, height, colorModel.getNumComponents());
+        } while (rewritten);
+    }
+
+    /**
+     * Combines or drops a step, if one can be. Each rewrite removes at least one step.
+     *
+     * @param width     The width of the image the steps start from.
+     * @param height    The height of the image the steps start from.
+     * @param grayInput Whether the image the steps start from is gray.
+     * @return Whether a step was combined or dropped.
+     */
+    private boolean combine(int width, int height, final boolean grayInput) {
+        boolean gray = grayInput;
+        for (int i = 0; i < steps.size(); i++) {
+            final Step step = steps.get(i);
+            final Step next = i + 1 < steps.size() ? steps.get(i + 1) : null;
+
+            // Converting a gray image to grayscale does not change it
+            if (gray && step.isGrayscale()) {
+                steps.remove(i);
+                return true;
+            }
+
+            // Rotations add up, and a full turn does nothing
+            if (step.isRotation() && next != null && next.isRotation()) {
+                final int angle = (step.stage.getRotationAngle() + next.stage.getRotationAngle()) % 360;
+                steps.remove(i + 1);
+                steps.remove(i);
+                if (angle != 0) {
+                    final HashMap<String, Object> args = new HashMap<>(step.args);
+                    args.put("rotation_angle", angle);
+                    steps.add(i, new Step(step.name, args, PixelPipeline.rotation(angle)));
+                }
+                return true;
+            }
+
+            // Shrinking an image twice is close to shrinking it once. Upscaling first would blur the result.
+            if (step.isResize() && next != null && next.isResize() && step.filter == next.filter
+                    && width >= step.width && height >= step.height && step.width >= next.width && step.height >= next.height) {
+                steps.remove(i);
+                return true;
+            }
+
+            gray |= step.isGrayscale();
+            if (step.isResize()) {
+                width = step.width;
+                height = step.height;
+            } else if (step.stage.getRotationAngle() % 180 != 0) {
+                final int rotatedWidth = height;
+                height = width;
+                width = rotatedWidth;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Swaps two neighbouring steps, if that is cheaper than running them in order.
+     *
+     * @param width      The width of the image the steps start from.
+     * @param height     The height of the image the steps start from.
+     * @param components The number of color and alpha samples of a pixel of that image.
+     * @return Whether steps were swapped.
+     */
+    private boolean reorder(final int width, final int height, final int components) {
+        final double cost = getCost(steps, width, height, components);
+        for (int i = 0; i + 1 < steps.size(); i++) {
+            final Step[] swapped = swap(steps.get(i), steps.get(i + 1));
+            if (swapped == null) {
+                continue;
+            }
+            final List<Step> candidate = new ArrayList<>(steps);
+            candidate.set(i, swapped[0]);
+            candidate.set(i + 1, swapped[1]);
+            if (getCost(candidate, width, height, components) < cost) {
+                steps.set(i, swapped[0]);
+                steps.set(i + 1, swapped[1]);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs two steps the other way around, where the output stays equivalent:
+     * - rotations and grayscale or brightness steps touch each pixel on its own, swapping them is exact.
+     * - a resize after a rotation by 90 or 270 degrees becomes a resize to the transposed size before it.
+     * - grayscale and brightness factors up to 1 are close to linear, so they swap with resizes and with each
+     *   other within a few levels. Brightening clips each color on its own and is never moved.
+     *
+     * @param first  The step that runs first.
+     * @param second The step that runs second.
+     * @return The steps to run instead, in order, or null if the steps cannot be swapped.
+     */
+    private static Step[] swap(final Step first, final Step second) {
+        if (first.isRotation() == second.isRotation()) {
+            final boolean linear = first.isLinear() && second.isLinear() && !first.name.equals(second.name);
+            return linear ? new Step[]{second, first} : null;
+        }
+        final Step rotation = first.isRotation() ? first : second;
+        final Step other = first.isRotation() ? second : first;
+        final Step moved = other.isResize() && rotation.stage.getRotationAngle() % 180 != 0 ? other.transpose() : other;
+        return first.isRotation() ? new Step[]{moved, rotation} : new Step[]{rotation, moved};
+    }
+
+    /**
+     * Estimates the work of running steps. A run of pipeline stages costs a single pass over the image plus the
+     * work of each stage. A resize costs one filter tap per sample for each of its two passes.
+     *
+     * @param steps      The steps, in order.
+     * @param width      The width of the image the steps start from.
+     * @param height     The height of the image the steps start from.
+     * @param components The number of color and alpha samples of a pixel of that image.
+     * @return The estimated work.
+     */
+    private static double getCost(final List<Step> steps, int width, int height, int components) {
+        double cost = 0;
+        boolean inPass = false;
+        for (final Step step : steps) {
+            final double pixels = (double) width * height;
+            if (step.isResize()) {
+                final double taps = 2 * step.filter.getSupport();
+                cost += components * taps * ((double) height * Math.max(width, step.width) + (double) step.width * Math.max(height, step.height));
+                width = step.width;
+                height = step.height;
+                inPass = false;
+                continue;
+            }
+
+            if (!inPass) {
+                cost += pixels * components * PASS_SAMPLE_COST;
+                inPass = true;
+            }
+            if (step.isGrayscale()) {
+                cost += pixels * LUMA_PIXEL_COST;
+                components = 1;
+            } else if (step.isRotation()) {
+                if (step.stage.getRotationAngle() % 180 != 0) {
+                    final int rotatedWidth = height;
+                    height = width;
+                    width = rotatedWidth;
+                }
+            } else {
+                cost += pixels * components * LOOKUP_SAMPLE_COST;
+            }
+        }
+        return cost;
+    }
+
+
+    /**
+     * An operation of the plan: a PixelPipeline stage or a resize.
+     */
+    private static final class Step {
+        private final String name;
+        private final HashMap<String, Object> args;
+        private final PixelPipeline.Stage stage;
+        private final int width;
+        private final int height;
+        private final Resampler.Filter filter;
+
+        /**
+         * Creates a pipeline step.
+         */
+        Step(final String name, final HashMap<String, Object> args, final PixelPipeline.Stage stage) {
+            this.name = name;
+            this.args = args;
+            this.stage = stage;
+            this.width = 0;
+            this.height = 0;
+            this.filter = null;
+        }
+
+        /**
+         * Creates a resize step.
+         */
+        Step(final HashMap<String, Object> args, final int width, final int height, final Resampler.Filter filter) {
+            this.name = "resize";
+            this.args = args;
+            this.stage = null;
+            this.width = width;
+            this.height = height;
+            this.filter = filter;
+        }
+
+        boolean isResize() {
+            return stage == null;
+        }
+
+        boolean isRotation() {
+            return stage != null && stage.getRotationAngle() != 0;
+        }
+
+        boolean isGrayscale() {
+            return stage != null && stage.getLuma() != null;
+        }
+
+        /**
+         * Checks whether the step commutes with filtering within rounding: resizes, grayscale and dimming
+         * brightness steps.
+         */
+        boolean isLinear() {
+            return stage == null || stage.getLuma() != null || (stage.getRotationAngle() == 0 && stage.getBrightnessFactor() <= 1);
+        }
+
+        /**
+         * Returns a resize step to the transposed size.
+         */
+        Step transpose() {
+            final HashMap<String, Object> transposedArgs = new HashMap<>(args);
+            transposedArgs.put("target_width", height);
+            transposedArgs.put("target_height", width);
+            return new Step(transposedArgs, height, width, filter);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package functions;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import storage.ImageStore;
+import storage.ObjectInfo;
+import utils.Constants;
+import utils.ResultCache;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
+import static utils.Constants.FILE_NAME_KEY;
+import static utils.Constants.GET_DOWNLOAD_KEY;
+import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
+import static utils.Constants.IMAGE_URL_EXPIRES_IN;
+import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.SUCCESS_KEY;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Produces several outputs of one image, see ImageBatchProcessing.
+ *
+ *  The request holds the operations every output shares under OPERATIONS_KEY, and a list of operations for
+ *  each output under BRANCHES_KEY, e.g. a thumbnail and a grayscale copy of the same rotated image. The image is
+ *  fetched, decoded and run through the shared operations once. The branches then read the shared image at the
+ *  same time, each on its own thread, and encode and upload their output as soon as they finish. Every branch
+ *  is saved under its own name and has its own result cache entry.
+ */
+public class BranchingBatch {
+
+    /**
+     * The most branches a request may have.
+     */
+    private static final int MAX_BRANCHES = 16;
+
+    /**
+     * Runs the branches. Shared by every request in the container.
+     */
+    private static final ExecutorService BRANCH_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "batch-branch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Batch function with named output branches.
+     *
+     * @param store   The image store to read from and write to.
+     * @param request The image arguments, with the branches under BRANCHES_KEY.
+     * @param context The AWS Lambda context.
+     * @return A response object with the outcome of every branch.
+     */
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        final HashMap<String, Object> inspector = new HashMap<>();
+
+        // Validate input
+        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY, ImageBatchProcessing.BRANCHES_KEY);
+        if (validateMessage != null) {
+            return Constants.getErrorObject(validateMessage);
+        }
+        final List<Branch> branches = getBranches(request.get(ImageBatchProcessing.BRANCHES_KEY));
+        if (branches == null) {
+            return Constants.getErrorObject("Branches must map up to " + MAX_BRANCHES
+                    + " names of letters, digits, '-' and '_' to operation lists.");
+        }
+
+        try {
+            final String bucketName = (String) request.get(BUCKET_KEY);
+            final String fileName = (String) request.get(FILE_NAME_KEY);
+            @SuppressWarnings("unchecked")
+            final ArrayList<ArrayList<Object>> operations = request.containsKey(ImageBatchProcessing.OPERATIONS_KEY)
+                    ? (ArrayList<ArrayList<Object>>) request.get(ImageBatchProcessing.OPERATIONS_KEY)
+                    : new ArrayList<>();
+
+            // Look up an identical earlier result of every branch, the source only has to be fetched if one is missing.
+            // The source is looked up once for all branches, while the branches look up their outputs.
+            final CompletableFuture<ObjectInfo> source = store.headAsync(bucketName, fileName);
+            final List<CompletableFuture<Void>> lookups = new ArrayList<>();
+            for (final Branch branch : branches) {
+                lookups.add(CompletableFuture.runAsync(() -> branch.findCachedResult(store, bucketName, fileName, source, operations), BRANCH_EXECUTOR));
+            }
+            CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).join();
+
+            ImageBatchProcessing.Result prefix = null;
+            final List<CompletableFuture<Void>> runs = new ArrayList<>();
+            if (branches.stream().anyMatch(branch -> branch.cachedOutputs == null && branch.error == null)) {
+                // Fetch the initial image from S3
+                final BufferedImage image = Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
+                if (image == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+
+                // Run the shared operations once. The branches need the pixels, so an encoded result is decoded here
+                // rather than by every branch.
+                prefix = ImageBatchProcessing.process(store, bucketName, fileName, operations, image, null, context);
+                if (prefix.image == null) {
+                    prefix.image = prefix.encodedImage.getImage();
+                }
+
+                final ImageBatchProcessing.Result shared = prefix;
+                for (final Branch branch : branches) {
+                    if (branch.cachedOutputs == null && branch.error == null) {
+                        runs.add(CompletableFuture.runAsync(() -> branch.run(store, bucketName, fileName, operations, shared, context), BRANCH_EXECUTOR));
+                    }
+                }
+                try {
+                    CompletableFuture.allOf(runs.toArray(new CompletableFuture<?>[0])).join();
+                } finally {
+                    Constants.releaseImages(prefix.image);
+                }
+            }
+
+            // Per branch outcomes, in the order of the request
+            final boolean getDownload = (boolean) request.get(GET_DOWNLOAD_KEY);
+            final Map<String, Object> branchOutputs = new LinkedHashMap<>();
+            int failedCount = 0;
+            for (final Branch branch : branches) {
+                branchOutputs.put(branch.name, branch.describe(store, bucketName, getDownload));
+                failedCount += branch.error != null ? 1 : 0;
+            }
+
+            inspector.put(SUCCESS_KEY, String.format("Processed %d of %d branches.", branches.size() - failedCount, branches.size()));
+            inspector.put(RESULT_CACHE_HIT_KEY, prefix == null ? 1 : 0);
+            inspector.put("batch_operations_count", operations.size());
+            inspector.put("operation_outputs", prefix != null ? prefix.operationsOutput : new ArrayList<>());
+            inspector.put("executed_operations", prefix != null ? prefix.executedOperations : new ArrayList<>());
+            inspector.put("branches", branchOutputs);
+            inspector.put("branches_count", branches.size());
+            inspector.put("branches_failed", failedCount);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
+
+        return inspector;
+    }
+
+    /**
+     * Reads the branches of a request.
+     *
+     * @param value The branches of the request, a map of names to operation lists.
+     * @return The branches in the order of the request, or null if they are not valid.
+     */
+    private static List<Branch> getBranches(final Object value) {
+        if (!(value instanceof Map) || ((Map<?, ?>) value).isEmpty() || ((Map<?, ?>) value).size() > MAX_BRANCHES) {
+            return null;
+        }
+        final List<Branch> branches = new ArrayList<>();
+        for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!(entry.getKey() instanceof String) || !((String) entry.getKey()).matches("[A-Za-z0-9_-]+")
+                    || !(entry.getValue() instanceof ArrayList)) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            final ArrayList<ArrayList<Object>> operations = (ArrayList<ArrayList<Object>>) entry.getValue();
+            branches.add(new Branch((String) entry.getKey(), operations));
+        }
+        return branches;
+    }
+
+    /**
+     * An output of the image. Each branch runs on one thread at a time, the request thread only reads its
+     * fields once the branch is done.
+     */
+    private static final class Branch {
+        private final String name;
+        private final ArrayList<ArrayList<Object>> operations;
+        private final String outputPrefix;
+        private String fingerprint;
+        private List<HashMap<String, Object>> cachedOutputs;
+        private ImageBatchProcessing.Result result;
+        private String outputFileName;
+        private String error;
+
+        /**
+         * Time spent running the operations and saving the output.
+         */
+        private long processTime;
+        private long uploadTime;
+
+        Branch(final String name, final ArrayList<ArrayList<Object>> operations) {
+            this.name = name;
+            this.operations = operations;
+            this.outputPrefix = ImageBatchProcessing.OUTPUT_PREFIX + name + "_";
+        }
+
+        /**
+         * Looks up an identical earlier result. The shared operations are part of the fingerprint, so a branch
+         * is only reused if the operations leading to it are the same.
+         */
+        void findCachedResult(final ImageStore store,
+                              final String bucketName,
+                              final String fileName,
+                              final CompletableFuture<ObjectInfo> source,
+                              final ArrayList<ArrayList<Object>> prefixOperations) {
+            try {
+                final ArrayList<ArrayList<Object>> allOperations = new ArrayList<>(prefixOperations);
+                allOperations.addAll(operations);
+                final String cachedFileName = ImageBatchProcessing.getOutputFileName(outputPrefix, fileName, allOperations);
+                final ResultCache.Lookup lookup = ResultCache.lookup(store, bucketName, fileName, source, ImageBatchProcessing.describeOperations(allOperations), cachedFileName);
+                fingerprint = lookup.getFingerprint();
+                cachedOutputs = ImageBatchProcessing.getCachedOutputs(lookup);
+                if (cachedOutputs != null) {
+                    outputFileName = cachedFileName;
+                }
+            } catch (final Exception e) {
+                e.printStackTrace();
+                error = e.toString();
+            }
+        }
+
+        /**
+         * Runs the operations of the branch on the shared image, then encodes and uploads the output.
+         */
+        void run(final ImageStore store,
+                 final String bucketName,
+                 final String fileName,
+                 final ArrayList<ArrayList<Object>> prefixOperations,
+                 final ImageBatchProcessing.Result prefix,
+                 final Context context) {
+            final long startTime = System.currentTimeMillis();
+            try {
+                result = ImageBatchProcessing.process(store, bucketName, fileName, operations,
+                        new ImageBatchProcessing.Result(outputPrefix, ImageBatchProcessing.getOutputFileName(outputPrefix, fileName, prefixOperations),
+                                prefix.image, prefix.encodedImage, prefix.image),
+                        context);
+                processTime = System.currentTimeMillis() - startTime;
+
+                if (ImageBatchProcessing.save(store, bucketName, result, fingerprint)) {
+                    outputFileName = result.outputFileName;
+                } else {
+                    error = "Failed to save image to S3";
+                }
+            } catch (final Exception e) {
+                e.printStackTrace();
+                error = e.toString();
+            }
+            uploadTime = System.currentTimeMillis() - startTime - processTime;
+        }
+
+        /**
+         * Describes the outcome for the response.
+         *
+         * @param store       The image store the output was saved to.
+         * @param bucketName  The bucket the output was saved to.
+         * @param getDownload Whether to add a download URL of the output.
+         * @return The outcome of the branch.
+         */
+        HashMap<String, Object> describe(final ImageStore store, final String bucketName, final boolean getDownload) {
+            final HashMap<String, Object> output = new HashMap<>();
+            if (error != null) {
+                output.put(ERROR_KEY, error);
+                return output;
+            }
+            output.put(SUCCESS_KEY, "Successfully processed image.");
+            output.put(RESULT_CACHE_HIT_KEY, cachedOutputs != null ? 1 : 0);
+            output.put("operation_outputs", cachedOutputs != null ? cachedOutputs : result.operationsOutput);
+            output.put("executed_operations", cachedOutputs != null ? new ArrayList<>() : result.executedOperations);
+            output.put("process_ms", processTime);
+            output.put("upload_ms", uploadTime);
+            if (getDownload) {
+                output.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(store, bucketName, outputFileName));
+                output.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+            }
+            return output;
+        }
+    }
+
+}
@@ -1,11 +1,16 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.CanonicalLayout;
+import storage.ImageStore;
 import utils.Constants;
+import utils.EncodedImage;
+import utils.ImageHeader;
 
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
 import static utils.Constants.FILE_NAME_KEY;
@@ -27,30 +32,32 @@ public class F1ImageDetails {
     /**
      * Function #1: Image upload and validation
      *
+     * @param store   The image store to read from and write to.
      * @param request The image arguments.
      * @param context The AWS Lambda context.
      * @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageDetails(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageDetails(store, null, request, context);
     }
 
     /**
      * Function #1: Image Details Batch Method.
      * This function should only be called by the batch handler, which passes in a buffered image to use.
      *
+     * @param store   The image store to read from and write to.
      * @param image   The image to get the details of.
      * @param request The request arguments.
      * @param context The AWS Lambda Context.
      * @return A response object.
      */
-    public static HashMap<String, Object> imageDetails(final BufferedImage image, final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> imageDetails(final ImageStore store, final BufferedImage image, final HashMap<String, Object> request, final Context context) {
         final boolean isBatch = image != null;
 
         // This could be replaced with a hashmap, especially if we don't need info from the inspector
         final HashMap<String, Object> inspector = new HashMap<>();
 
-        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY);
+        final String validateMessage = getValidationError(request);
         if (validateMessage != null) {
             return Constants.getErrorObject(validateMessage);
         }
@@ -60,27 +67,25 @@ public class F1ImageDetails {
             final String bucketName = (String) request.get(BUCKET_KEY);
             final String fileName = (String) request.get(FILE_NAME_KEY);
 
+            // The download URL is signed in the background while the header is read
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, fileName)
+                    : null;
 
-            // Validate file extension
-            if (!fileName.toLowerCase().endsWith(".jpeg") && !fileName.toLowerCase().endsWith(".jpg") && !fileName.toLowerCase().endsWith(".png")) {
-                return Constants.getErrorObject("Unsupported file format. Only JPEG and PNG are allowed.");
-            }
-
-            final BufferedImage imageObject = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
-            if (imageObject == null) {
+            // Outside of a batch only the header is needed, the pixels are never downloaded or decoded
+            final ImageHeader header = isBatch
+                    ? new ImageHeader(image.getWidth(), image.getHeight(), CanonicalLayout.getDecodedColorModel(image))
+                    : Constants.getImageHeaderAndRecordLatency(store, bucketName, fileName, inspector);
+            if (header == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
-            inspector.put(SUCCESS_KEY, "Successfully retrieved image details.");
-            inspector.put("width", imageObject.getWidth());
-            inspector.put("height", imageObject.getHeight());
-            inspector.put("mode", getColorType(imageObject.getColorModel().getColorSpace().getType()));
-            inspector.put("has_transparency_data", imageObject.getColorModel().hasAlpha() ? 1 : 0);
+            putDetails(inspector, header);
             if (isBatch) {
-                inspector.put(IMAGE_FILE_KEY, imageObject);
+                inspector.put(IMAGE_FILE_KEY, image);
             } else {
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, fileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
             }
@@ -93,6 +98,79 @@ public class F1ImageDetails {
         return inspector;
     }
 
+    /**
+     * Function #1: Image Details Batch Method for an image that is still encoded, e.g. the output of a transform.
+     * Only the header of the image is read, so the image is not decoded.
+     *
+     * @param store   The image store to read from and write to.
+     * @param image   The encoded image to get the details of.
+     * @param request The request arguments.
+     * @param context The AWS Lambda Context.
+     * @return A response object.
+     */
+    public static HashMap<String, Object> encodedImageDetails(final ImageStore store, final EncodedImage image, final HashMap<String, Object> request, final Context context) {
+        final HashMap<String, Object> inspector = new HashMap<>();
+        try {
+            putDetails(inspector, image.getHeader());
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
+        return inspector;
+    }
+
+    /**
+     * Function #1: Image Details Batch Method for an image that only exists in a plan, answered from the header
+     * the batch handler predicts for it.
+     *
+     * @param request The request arguments.
+     * @param header  The predicted header of the image.
+     * @return A response object.
+     */
+    public static HashMap<String, Object> plannedImageDetails(final HashMap<String, Object> request, final ImageHeader header) {
+        final String validateMessage = getValidationError(request);
+        if (validateMessage != null) {
+            return Constants.getErrorObject(validateMessage);
+        }
+        final HashMap<String, Object> inspector = new HashMap<>();
+        putDetails(inspector, header);
+        return inspector;
+    }
+
+    /**
+     * Validates a details request.
+     *
+     * @param request The request arguments.
+     * @return The error message, or null if the request is valid.
+     */
+    private static String getValidationError(final HashMap<String, Object> request) {
+        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY);
+        if (validateMessage != null) {
+            return validateMessage;
+        }
+
+        // Validate file extension
+        final String fileName = String.valueOf(request.get(FILE_NAME_KEY)).toLowerCase();
+        if (!fileName.endsWith(".jpeg") && !fileName.endsWith(".jpg") && !fileName.endsWith(".png")) {
+            return "Unsupported file format. Only JPEG and PNG are allowed.";
+        }
+        return null;
+    }
+
+    /**
+     * Adds the details of an image to a response object.
+     *
+     * @param inspector The response object.
+     * @param header    The header of the image.
+     */
+    private static void putDetails(final HashMap<String, Object> inspector, final ImageHeader header) {
+        inspector.put(SUCCESS_KEY, "Successfully retrieved image details.");
+        inspector.put("width", header.getWidth());
+        inspector.put("height", header.getHeight());
+        inspector.put("mode", getColorType(header.getColorModel().getColorSpace().getType()));
+        inspector.put("has_transparency_data", header.getColorModel().hasAlpha() ? 1 : 0);
+    }
+
     /**
      * Converts an integer to color type String.
      *
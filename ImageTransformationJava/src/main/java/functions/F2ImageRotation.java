@@ -1,18 +1,32 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.CanonicalLayout;
+import imaging.ImageRotator;
+import imaging.JpegLosslessRotator;
+import imaging.PixelPipeline;
+import imaging.StripSource;
+import storage.ImageStore;
 import utils.Constants;
+import utils.EncodedImage;
 import utils.FileValidator;
+import utils.ResultCache;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import static utils.Constants.ERROR_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
 import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.PIPELINE_STAGE_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.STREAMING_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 /**
@@ -20,73 +34,134 @@ import static utils.Constants.SUCCESS_KEY;
  * Group 7
  * <p>
  * Rotates an image 90, 180, or 270 degrees.
+ * JPEG files are rotated losslessly when their dimensions allow it, see JpegLosslessRotator.
  */
 public class F2ImageRotation {
 
     /**
      * Function 2: Image Rotation
      *
+     * @param store   The image store to read from and write to.
      * @param request The image arguments.
      * @param context The AWS Lambda context.
      * @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageRotate(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageRotate(store, null, request, context);
     }
 
     /**
      * Function #2: Rotation Batch Method.
      * This function should only be called by the batch handler, which passes in a buffered image to use.
      *
+     * @param store   The image store to read from and write to.
      * @param image   The image to rotate.
      * @param request The request arguments.
      * @param context The AWS Lambda Context
      * @return A response object.
      */
-    public static HashMap<String, Object> imageRotate(final BufferedImage image, final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> imageRotate(final ImageStore store, final BufferedImage image, final HashMap<String, Object> request, final Context context) {
         final boolean isBatch = image != null;
 
         final HashMap<String, Object> inspector = new HashMap<>();
 
         try {
             // Validate request parameters
-            if (!request.containsKey(Constants.BUCKET_KEY) || !request.containsKey(Constants.FILE_NAME_KEY) || !request.containsKey("rotation_angle")) {
-                return Constants.getErrorObject("Missing required parameters: bucketName, fileName, or rotation_angle.");
+            final HashMap<String, Object> plan = planRotation(request);
+            if (plan.containsKey(ERROR_KEY)) {
+                return plan;
             }
 
             final String bucketName = request.get(Constants.BUCKET_KEY).toString();
             final String fileName = request.get(Constants.FILE_NAME_KEY).toString();
             final Integer rotationAngle = (Integer) request.get("rotation_angle");
+            // "lossless" (default) rotates JPEG files without re-encoding when possible, "pixel" always re-encodes
+            final String rotationMode = String.valueOf(request.getOrDefault("rotation_mode", "lossless")).toLowerCase();
             final String outputFileName = "rotated_" + fileName;
+            final String fileExtension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
 
-            // Validate file format
-            String fileExtension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
-            if (!(fileExtension.equals("jpeg") || fileExtension.equals("jpg") || fileExtension.equals("png"))) {
-                return Constants.getErrorObject("Unsupported file format. Only JPEG and PNG are allowed.");
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, outputFileName)
+                    : null;
+
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = isBatch ? null : ResultCache.lookup(store, bucketName, fileName, ResultCache.describeOperation("rotate", request), outputFileName);
+            final String fingerprint = isBatch ? null : lookup.getFingerprint();
+            if (!isBatch) {
+                final boolean cachedResult = lookup.getResult() != null;
+                inspector.put(RESULT_CACHE_HIT_KEY, cachedResult ? 1 : 0);
+                if (cachedResult) {
+                    if (downloadURL != null) {
+                        inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                        inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                    }
+                    inspector.put(SUCCESS_KEY, "Image rotated successfully.");
+                    inspector.put("rotation_angle", rotationAngle);
+                    return inspector;
+                }
             }
 
-            // Validate rotation angle
-            if (!(rotationAngle == 90 || rotationAngle == 180 || rotationAngle == 270)) {
-                return Constants.getErrorObject("Invalid rotation_angle. Only 90, 180, or 270 degrees are supported.");
+            // Very large images are rotated strip by strip while they are decoded and encoded. Only a half turn keeps
+            // rows as rows, 90 and 270 degree rotations still need the whole image. JPEG files in lossless mode are
+            // rotated without decoding below.
+            final boolean pixelRotation = fileExtension.equals("png") || "pixel".equals(rotationMode);
+            if (!isBatch && pixelRotation && rotationAngle == 180 && Boolean.TRUE.equals(request.get(STREAMING_KEY))) {
+                final StripSource originalStrips = Constants.getImageStripsAndRecordLatency(store, bucketName, fileName, 0, 0, inspector);
+                if (originalStrips == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+                final StripSource rotatedStrips = PixelPipeline.run(originalStrips, List.of(PixelPipeline.rotation(rotationAngle)));
+                if (!Constants.saveStripsToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), rotatedStrips, ResultCache.createMetadata(fingerprint))) {
+                    return Constants.getErrorObject("Failed to save image to S3");
+                }
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                    inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                }
+                inspector.put(SUCCESS_KEY, "Image rotated successfully.");
+                inspector.put("rotation_angle", rotationAngle);
+                return inspector;
             }
 
-            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
-            if (originalImage == null) {
+            // JPEG files are rotated in the DCT domain when the image allows it, without decoding or losing quality
+            BufferedImage originalImage = image;
+            EncodedImage rotatedJpeg = null;
+            if (!isBatch && !pixelRotation) {
+                final byte[] jpeg = Constants.getBytesFromS3AndRecordLatency(store, bucketName, fileName, inspector);
+                if (jpeg == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+                final byte[] rotated = JpegLosslessRotator.rotate(jpeg, rotationAngle);
+                if (rotated != null) {
+                    rotatedJpeg = new EncodedImage(rotated, "jpeg");
+                } else {
+                    // Partial edge MCUs, rotate the pixels of the downloaded file instead
+                    final BufferedImage decodedImage = ImageIO.read(new ByteArrayInputStream(jpeg));
+                    originalImage = decodedImage != null ? CanonicalLayout.toCanonical(decodedImage) : null;
+                }
+            } else if (!isBatch) {
+                originalImage = Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
+            }
+            if (rotatedJpeg == null && originalImage == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
             // Rotate image
-            BufferedImage rotatedImage = rotateImage(originalImage, rotationAngle);
+            BufferedImage rotatedImage = rotatedJpeg == null ? ImageRotator.rotate(originalImage, rotationAngle) : null;
 
             // Upload rotated image to S3
             if (!isBatch) {
-                final boolean uploadSuccess = Constants.saveImageToS3(bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), rotatedImage);
+                final boolean uploadSuccess = rotatedJpeg != null
+                        ? Constants.saveEncodedImageToS3(store, bucketName, outputFileName, rotatedJpeg, ResultCache.createMetadata(fingerprint))
+                        : Constants.saveImageToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), rotatedImage, ResultCache.createMetadata(fingerprint));
+                Constants.releaseImages(rotatedImage, originalImage);
                 if (!uploadSuccess) {
                     return Constants.getErrorObject("Failed to save image to S3");
                 }
 
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, outputFileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
 
@@ -105,38 +180,44 @@ public class F2ImageRotation {
         return inspector;
     }
 
-
-    /***
-     *  Helper method for image rotation.
+    /**
+     * Validates a rotation request and describes the rotation as a pipeline stage, without touching any pixels.
+     * Used by the batch handler to fuse consecutive operations into one pass.
      *
-     *  @param image            The image to rotate.
-     *  @param rotationAngle    The rotation angle.
-     *  @return The rotated angle.
+     * @param request The request arguments.
+     * @return The response of the operation with the stage under PIPELINE_STAGE_KEY, or an error object.
      */
-    private static BufferedImage rotateImage(final BufferedImage image, final int rotationAngle) {
-        final int width = image.getWidth();
-        final int height = image.getHeight();
-
-        // Create a new BufferedImage with appropriate dimensions and type
-        final BufferedImage rotatedImage = new BufferedImage((rotationAngle == 90 || rotationAngle == 270) ? height : width, (rotationAngle == 90 || rotationAngle == 270) ? width : height, BufferedImage.TYPE_INT_ARGB);
-
-        final Graphics2D graphics = rotatedImage.createGraphics();
-        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-
-        // Perform rotation with proper translation
-        if (rotationAngle == 90) {
-            graphics.translate(height, 0);
-        } else if (rotationAngle == 180) {
-            graphics.translate(width, height);
-        } else if (rotationAngle == 270) {
-            graphics.translate(0, width);
-        }
+    public static HashMap<String, Object> planRotation(final HashMap<String, Object> request) {
+        try {
+            // Validate request parameters
+            if (!request.containsKey(Constants.BUCKET_KEY) || !request.containsKey(Constants.FILE_NAME_KEY) || !request.containsKey("rotation_angle")) {
+                return Constants.getErrorObject("Missing required parameters: bucketName, fileName, or rotation_angle.");
+            }
+
+            final String fileName = request.get(Constants.FILE_NAME_KEY).toString();
+            final Integer rotationAngle = (Integer) request.get("rotation_angle");
+
+            // Validate file format
+            final String fileExtension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+            if (!(fileExtension.equals("jpeg") || fileExtension.equals("jpg") || fileExtension.equals("png"))) {
+                return Constants.getErrorObject("Unsupported file format. Only JPEG and PNG are allowed.");
+            }
 
-        graphics.rotate(Math.toRadians(rotationAngle));
-        graphics.drawImage(image, 0, 0, null);
-        graphics.dispose();
+            // Validate rotation angle
+            if (!(rotationAngle == 90 || rotationAngle == 180 || rotationAngle == 270)) {
+                return Constants.getErrorObject("Invalid rotation_angle. Only 90, 180, or 270 degrees are supported.");
+            }
 
-        return rotatedImage;
+            final HashMap<String, Object> plan = new HashMap<>();
+            plan.put(PIPELINE_STAGE_KEY, PixelPipeline.rotation(rotationAngle));
+            plan.put(SUCCESS_KEY, "Image rotated successfully.");
+            plan.put("rotation_angle", rotationAngle);
+            return plan;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
     }
 
 }
@@ -1,21 +1,30 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.Resampler;
+import imaging.StripSource;
+import storage.ImageStore;
 import utils.Constants;
 import utils.FileValidator;
+import utils.ResultCache;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
 import static utils.Constants.FILE_NAME_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
 import static utils.Constants.IMAGE_FILE_KEY;
 import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.ORIGINAL_HEIGHT_KEY;
+import static utils.Constants.ORIGINAL_WIDTH_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.STREAMING_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 
@@ -27,26 +36,34 @@ import static utils.Constants.SUCCESS_KEY;
  */
 public class F3ImageResize {
 
+    /**
+     * Metadata keys holding the dimensions of the source image on a resized image.
+     */
+    private static final String ORIGINAL_WIDTH_METADATA_KEY = "original-width";
+    private static final String ORIGINAL_HEIGHT_METADATA_KEY = "original-height";
 
     /**
      * Lambda entry point for Function 3: Image Resize.
      * Handles requests that include fetching an image from S3 and resizing it.
      *
+     * @param store   The image store to read from and write to.
      * @param request The input request map, containing:
      *                - "bucketname" (String): S3 bucket name.
      *                - "filename" (String): S3 file key.
      *                - "target_width" (Integer): Desired width of the resized image.
      *                - "target_height" (Integer): Desired height of the resized image.
+     *                - "filter" (String, optional): "bilinear", "bicubic" (default) or "lanczos".
      * @param context The Lambda execution context.
      * @return A response map containing metrics and result details.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageResize(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageResize(store, null, request, context);
     }
 
     /**
      * Secondary entry point: Processes an already fetched BufferedImage and resizes it.
      *
+     * @param store   The image store to read from and write to.
      * @param image   The original BufferedImage to resize.
      * @param request A map containing resize parameters:
      *                - "target_width" (Integer): Desired width of the resized image.
@@ -55,15 +72,15 @@ public class F3ImageResize {
      * @param context The Lambda execution context.
      * @return A response map containing the resized image and any associated metadata.
      */
-    public static HashMap<String, Object> imageResize(BufferedImage image, HashMap<String, Object> request, Context context) {
+    public static HashMap<String, Object> imageResize(ImageStore store, BufferedImage image, HashMap<String, Object> request, Context context) {
         final boolean isBatch = image != null;
         final HashMap<String, Object> inspector = new HashMap<>();
 
         try {
             // Validate input request
-            String validationError = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY, "target_width", "target_height");
-            if (validationError != null) {
-                return Constants.getErrorObject(validationError);
+            HashMap<String, Object> plan = planResize(request);
+            if (plan.containsKey(ERROR_KEY)) {
+                return plan;
             }
 
             // Extract inputs
@@ -71,43 +88,86 @@ public class F3ImageResize {
             String fileName = (String) request.get(FILE_NAME_KEY);
             Integer targetWidth = (Integer) request.get("target_width");
             Integer targetHeight = (Integer) request.get("target_height");
+            Resampler.Filter filter = getFilter(request);
 
-            // Validate image format
-            if (!fileName.endsWith(".png") && !fileName.endsWith(".jpg") && !fileName.endsWith(".jpeg")) {
-                return Constants.getErrorObject("Unsupported image format. Only PNG and JPEG are supported.");
+            String resizedFileName = "resized_" + fileName;
+
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, resizedFileName)
+                    : null;
+
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = isBatch ? null : ResultCache.lookup(store, bucketName, fileName, ResultCache.describeOperation("resize", request), resizedFileName);
+            String fingerprint = isBatch ? null : lookup.getFingerprint();
+            if (!isBatch) {
+                Map<String, String> cachedResult = lookup.getResult();
+                inspector.put(RESULT_CACHE_HIT_KEY, cachedResult != null ? 1 : 0);
+                if (cachedResult != null) {
+                    if (downloadURL != null) {
+                        inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                        inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                    }
+                    inspector.put(SUCCESS_KEY, "Image resized successfully.");
+                    inspector.put(ORIGINAL_WIDTH_KEY, Integer.parseInt(cachedResult.get(ORIGINAL_WIDTH_METADATA_KEY)));
+                    inspector.put(ORIGINAL_HEIGHT_KEY, Integer.parseInt(cachedResult.get(ORIGINAL_HEIGHT_METADATA_KEY)));
+                    inspector.put("target_width", targetWidth);
+                    inspector.put("target_height", targetHeight);
+                    return inspector;
+                }
             }
 
-            // Validate dimensions
-            if (targetWidth == null || targetHeight == null || targetWidth <= 0 || targetHeight <= 0) {
-                return Constants.getErrorObject("Target dimensions must be positive integers.");
+            if (!isBatch && Boolean.TRUE.equals(request.get(STREAMING_KEY))) {
+                // Very large images are resized strip by strip while they are decoded and encoded
+                final StripSource originalStrips = Constants.getImageStripsAndRecordLatency(store, bucketName, fileName, targetWidth, targetHeight, inspector);
+                if (originalStrips == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+                Map<String, String> metadata = ResultCache.createMetadata(fingerprint);
+                metadata.put(ORIGINAL_WIDTH_METADATA_KEY, String.valueOf(inspector.get(ORIGINAL_WIDTH_KEY)));
+                metadata.put(ORIGINAL_HEIGHT_METADATA_KEY, String.valueOf(inspector.get(ORIGINAL_HEIGHT_KEY)));
+
+                final StripSource resizedStrips = Resampler.resize(originalStrips, targetWidth, targetHeight, filter);
+                if (!Constants.saveStripsToS3(store, bucketName, resizedFileName, FileValidator.getFileExtension(resizedFileName), resizedStrips, metadata)) {
+                    return Constants.getErrorObject("Failed to save image to S3.");
+                }
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                    inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                }
+                inspector.put(SUCCESS_KEY, "Image resized successfully.");
+                inspector.put("target_width", targetWidth);
+                inspector.put("target_height", targetHeight);
+                return inspector;
             }
 
-            // Fetch the image from S3 and measure network latency
-            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
+            // Fetch the image from S3 and measure network latency. Large downscales let the decoder skip pixels.
+            final BufferedImage originalImage = isBatch ? image : Constants.getSubsampledImageAndRecordLatency(store, bucketName, fileName, targetWidth, targetHeight, inspector);
             if (originalImage == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
             // Record original dimensions
-            int originalWidth = originalImage.getWidth();
-            int originalHeight = originalImage.getHeight();
+            int originalWidth = isBatch ? originalImage.getWidth() : (Integer) inspector.get(ORIGINAL_WIDTH_KEY);
+            int originalHeight = isBatch ? originalImage.getHeight() : (Integer) inspector.get(ORIGINAL_HEIGHT_KEY);
 
 
-            Image resizedImage = originalImage.getScaledInstance(targetWidth, targetHeight, Image.SCALE_SMOOTH);
-            BufferedImage outputImage = new BufferedImage(targetWidth, targetHeight, originalImage.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : originalImage.getType());
-            Graphics2D graphics = outputImage.createGraphics();
-            graphics.drawImage(resizedImage, 0, 0, null);
-            graphics.dispose();
+            BufferedImage outputImage = Resampler.resize(originalImage, targetWidth, targetHeight, filter);
 
             if (!isBatch) {
-                String resizedFileName = "resized_" + fileName;
-                boolean savedSuccessfully = Constants.saveImageToS3(bucketName, resizedFileName, FileValidator.getFileExtension(resizedFileName), outputImage);
+                // The original dimensions are part of the response, keep them for requests served from the cache
+                Map<String, String> metadata = ResultCache.createMetadata(fingerprint);
+                metadata.put(ORIGINAL_WIDTH_METADATA_KEY, String.valueOf(originalWidth));
+                metadata.put(ORIGINAL_HEIGHT_METADATA_KEY, String.valueOf(originalHeight));
+
+                boolean savedSuccessfully = Constants.saveImageToS3(store, bucketName, resizedFileName, FileValidator.getFileExtension(resizedFileName), outputImage, metadata);
+                Constants.releaseImages(outputImage, originalImage);
                 if (!savedSuccessfully) {
                     return Constants.getErrorObject("Failed to save image to S3.");
                 }
 
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, fileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
             } else {
@@ -116,8 +176,8 @@ public class F3ImageResize {
 
             // Add success message
             inspector.put(SUCCESS_KEY, "Image resized successfully.");
-            inspector.put("original_width", originalWidth);
-            inspector.put("original_height", originalHeight);
+            inspector.put(ORIGINAL_WIDTH_KEY, originalWidth);
+            inspector.put(ORIGINAL_HEIGHT_KEY, originalHeight);
             inspector.put("target_width", targetWidth);
             inspector.put("target_height", targetHeight);
 
@@ -130,5 +190,60 @@ public class F3ImageResize {
         return inspector; // Return collected metrics
     }
 
+    /**
+     * Validates a resize request without touching any pixels. Used by the batch handler to plan operations.
+     *
+     * @param request The request arguments.
+     * @return The response of the operation without the original dimensions, or an error object.
+     */
+    public static HashMap<String, Object> planResize(HashMap<String, Object> request) {
+        try {
+            // Validate input request
+            String validationError = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY, "target_width", "target_height");
+            if (validationError != null) {
+                return Constants.getErrorObject(validationError);
+            }
+
+            String fileName = (String) request.get(FILE_NAME_KEY);
+            Integer targetWidth = (Integer) request.get("target_width");
+            Integer targetHeight = (Integer) request.get("target_height");
+
+            // Validate image format
+            if (!fileName.endsWith(".png") && !fileName.endsWith(".jpg") && !fileName.endsWith(".jpeg")) {
+                return Constants.getErrorObject("Unsupported image format. Only PNG and JPEG are supported.");
+            }
+
+            // Validate dimensions
+            if (targetWidth == null || targetHeight == null || targetWidth <= 0 || targetHeight <= 0) {
+                return Constants.getErrorObject("Target dimensions must be positive integers.");
+            }
+
+            // Validate filter
+            if (getFilter(request) == null) {
+                return Constants.getErrorObject("Unsupported filter. Only bilinear, bicubic and lanczos are supported.");
+            }
+
+            HashMap<String, Object> plan = new HashMap<>();
+            plan.put(SUCCESS_KEY, "Image resized successfully.");
+            plan.put("target_width", targetWidth);
+            plan.put("target_height", targetHeight);
+            return plan;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
+    }
+
+    /**
+     * Reads the interpolation filter of a request: "bicubic" (default), "bilinear" or "lanczos".
+     *
+     * @param request The request arguments.
+     * @return The filter, or null if it is not supported.
+     */
+    public static Resampler.Filter getFilter(HashMap<String, Object> request) {
+        return Resampler.Filter.forName(String.valueOf(request.getOrDefault("filter", "bicubic")));
+    }
+
 
 }
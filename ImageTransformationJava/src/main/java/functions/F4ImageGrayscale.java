@@ -1,19 +1,30 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.GrayscaleConverter;
+import imaging.PixelPipeline;
+import imaging.StripSource;
+import storage.ImageStore;
 import utils.Constants;
 import utils.FileValidator;
+import utils.ResultCache;
 
 import java.awt.image.BufferedImage;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
 import static utils.Constants.FILE_NAME_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
 import static utils.Constants.IMAGE_FILE_KEY;
 import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.PIPELINE_STAGE_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.STREAMING_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 /**
@@ -27,65 +38,99 @@ public class F4ImageGrayscale {
     /**
      *  Function 4: Image Grayscale
      *
+     *  @param store    The image store to read from and write to.
      *  @param request  The image arguments.
      *  @param context  The AWS Lambda context.
      *  @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageGrayscale(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageGrayscale(store, null, request, context);
     }
 
     /**
      *  Function #4: Grayscale Batch Method.
      *      This function should only be called by the batch handler, which passes in a buffered image to use.
      *
+     *  @param store    The image store to read from and write to.
      *  @param image    The image to modify.
      *  @param request  The request arguments.
      *  @param context  The AWS Lambda Context
      *  @return A response object.
      */
-    public static HashMap<String, Object> imageGrayscale(final BufferedImage image, final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> imageGrayscale(final ImageStore store, final BufferedImage image, final HashMap<String, Object> request, final Context context) {
         final boolean isBatch = image != null;
         final HashMap<String, Object> inspector = new HashMap<>();
 
         try {
             // Validate request parameters
-            String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY);
-            if (validateMessage != null) {
-                return Constants.getErrorObject(validateMessage);
+            final HashMap<String, Object> plan = planGrayscale(request);
+            if (plan.containsKey(ERROR_KEY)) {
+                return plan;
             }
 
             final String bucketName = (String) request.get(BUCKET_KEY);
             final String fileName = (String) request.get(FILE_NAME_KEY);
+            final GrayscaleConverter.Luma luma = getLuma(request);
+            final GrayscaleConverter.Engine engine = getEngine(request);
 
-            // Check if file format is supported
-            if (!fileName.endsWith(".jpeg") && !fileName.endsWith(".jpg") && !fileName.endsWith(".png")) {
-                return Constants.getErrorObject("Unsupported file format. Only JPEG and PNG are allowed.");
+            final String outputFileName = "grayscaled_" + fileName;
+
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, outputFileName)
+                    : null;
+
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = isBatch ? null : ResultCache.lookup(store, bucketName, fileName, ResultCache.describeOperation("grayscale", request), outputFileName);
+            final String fingerprint = isBatch ? null : lookup.getFingerprint();
+            if (!isBatch) {
+                final boolean cachedResult = lookup.getResult() != null;
+                inspector.put(RESULT_CACHE_HIT_KEY, cachedResult ? 1 : 0);
+                if (cachedResult) {
+                    if (downloadURL != null) {
+                        inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                        inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                    }
+                    inspector.put(SUCCESS_KEY, "Image successfully converted to grayscale.");
+                    return inspector;
+                }
             }
 
-            final String outputFileName = "grayscaled_" + fileName;
+            if (!isBatch && Boolean.TRUE.equals(request.get(STREAMING_KEY))) {
+                // Very large images are converted strip by strip while they are decoded and encoded
+                final StripSource originalStrips = Constants.getImageStripsAndRecordLatency(store, bucketName, fileName, 0, 0, inspector);
+                if (originalStrips == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+                final StripSource grayscaleStrips = PixelPipeline.run(originalStrips, List.of(PixelPipeline.grayscale(luma)));
+                if (!Constants.saveStripsToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), grayscaleStrips, ResultCache.createMetadata(fingerprint))) {
+                    return Constants.getErrorObject("Failed to save image to S3");
+                }
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                    inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                }
+                inspector.put(SUCCESS_KEY, "Image successfully converted to grayscale.");
+                return inspector;
+            }
 
-            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
+            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
             if (originalImage == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
             // Convert image to grayscale
-            BufferedImage grayscaleImage = new BufferedImage(
-                    originalImage.getWidth(),
-                    originalImage.getHeight(),
-                    BufferedImage.TYPE_BYTE_GRAY
-            );
-            grayscaleImage.getGraphics().drawImage(originalImage, 0, 0, null);
+            BufferedImage grayscaleImage = GrayscaleConverter.toGrayscale(originalImage, luma, engine);
 
             // Upload grayscale image to S3
             if (!isBatch) {
-                boolean uploadSuccess = Constants.saveImageToS3(bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), grayscaleImage);
+                boolean uploadSuccess = Constants.saveImageToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), grayscaleImage, ResultCache.createMetadata(fingerprint));
+                Constants.releaseImages(grayscaleImage, originalImage);
                 if (!uploadSuccess) {
                     return Constants.getErrorObject("Failed to save image to S3");
                 }
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, outputFileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
             } else {
@@ -101,4 +146,60 @@ public class F4ImageGrayscale {
 
         return inspector;
     }
+
+    /**
+     *  Validates a grayscale request and describes the conversion as a pipeline stage, without touching any pixels.
+     *  Used by the batch handler to fuse consecutive operations into one pass.
+     *
+     *  @param request  The request arguments.
+     *  @return The response of the operation with the stage under PIPELINE_STAGE_KEY, or an error object.
+     */
+    public static HashMap<String, Object> planGrayscale(final HashMap<String, Object> request) {
+        // Validate request parameters
+        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY);
+        if (validateMessage != null) {
+            return Constants.getErrorObject(validateMessage);
+        }
+
+        // Check if file format is supported
+        final String fileName = (String) request.get(FILE_NAME_KEY);
+        if (!fileName.endsWith(".jpeg") && !fileName.endsWith(".jpg") && !fileName.endsWith(".png")) {
+            return Constants.getErrorObject("Unsupported file format. Only JPEG and PNG are allowed.");
+        }
+
+        // Check if the conversion is supported
+        final GrayscaleConverter.Luma luma = getLuma(request);
+        final GrayscaleConverter.Engine engine = getEngine(request);
+        if (luma == null) {
+            return Constants.getErrorObject("Unsupported luma weights. Only bt601 and bt709 are allowed.");
+        }
+        if (engine == null || (engine == GrayscaleConverter.Engine.JAVA2D && luma != GrayscaleConverter.Luma.BT601)) {
+            return Constants.getErrorObject("Unsupported grayscale engine. Only auto, kernel and java2d (bt601 only) are allowed.");
+        }
+
+        final HashMap<String, Object> plan = new HashMap<>();
+        plan.put(PIPELINE_STAGE_KEY, PixelPipeline.grayscale(luma));
+        plan.put(SUCCESS_KEY, "Image successfully converted to grayscale.");
+        return plan;
+    }
+
+    /**
+     *  Reads the luma weights of a request: "bt601" (default) or "bt709".
+     *
+     *  @param request  The request arguments.
+     *  @return The luma weights, or null if they are not supported.
+     */
+    private static GrayscaleConverter.Luma getLuma(final HashMap<String, Object> request) {
+        return GrayscaleConverter.Luma.forName(String.valueOf(request.getOrDefault("luma", "bt601")));
+    }
+
+    /**
+     *  Reads the grayscale engine of a request: "auto" (default), "kernel" or "java2d", to compare the two implementations.
+     *
+     *  @param request  The request arguments.
+     *  @return The engine, or null if it is not supported.
+     */
+    private static GrayscaleConverter.Engine getEngine(final HashMap<String, Object> request) {
+        return GrayscaleConverter.Engine.forName(String.valueOf(request.getOrDefault("grayscale_engine", "auto")));
+    }
 }
@@ -1,21 +1,31 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.BrightnessAdjuster;
+import imaging.PixelPipeline;
+import imaging.StripSource;
+import storage.ImageStore;
 import utils.Constants;
+import utils.DecodedImageCache;
 import utils.FileValidator;
+import utils.ResultCache;
 
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.RescaleOp;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
 import static utils.Constants.FILE_NAME_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
 import static utils.Constants.IMAGE_FILE_KEY;
 import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.PIPELINE_STAGE_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.STREAMING_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 /**
@@ -40,31 +50,33 @@ public class F5ImageBrightness {
     /**
      *  Function 5: Image Brightness
      *
+     *  @param store    The image store to read from and write to.
      *  @param request  The image arguments.
      *  @param context  The AWS Lambda context.
      *  @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageBrightness(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageBrightness(store, null, request, context);
     }
 
     /**
      *  Function #5: Brightness Batch Method.
      *      This function should only be called by the batch handler, which passes in a buffered image to use.
      *
+     *  @param store    The image store to read from and write to.
      *  @param image    The image to modify.
      *  @param request  The request arguments.
      *  @param context  The AWS Lambda Context
      *  @return A response object.
      */
-    public static HashMap<String, Object> imageBrightness(final BufferedImage image, final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> imageBrightness(final ImageStore store, final BufferedImage image, final HashMap<String, Object> request, final Context context) {
         final boolean isBatch = image != null;
 
         final HashMap<String, Object> inspector = new HashMap<>();
 
-        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY, "brightness_delta");
-        if (validateMessage != null) {
-            return Constants.getErrorObject(validateMessage);
+        final HashMap<String, Object> plan = planBrightness(request);
+        if (plan.containsKey(ERROR_KEY)) {
+            return plan;
         }
 
         try {
@@ -73,31 +85,65 @@ public class F5ImageBrightness {
             final String fileName = (String) request.get(FILE_NAME_KEY);
             final Integer brightnessDelta = (Integer) request.get("brightness_delta");
             final String outputFileName = "brightness_" + fileName;
+            final float brightnessFactor = getBrightnessFactor(brightnessDelta);
 
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, outputFileName)
+                    : null;
 
-            // Validate brightness_delta
-            if (brightnessDelta < MIN_BRIGHTNESS || brightnessDelta > MAX_BRIGHTNESS) {
-                throw new IllegalArgumentException(String.format("Invalid brightness_delta. Must be between %d and %d.", MIN_BRIGHTNESS, MAX_BRIGHTNESS));
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = isBatch ? null : ResultCache.lookup(store, bucketName, fileName, ResultCache.describeOperation("brightness", request), outputFileName);
+            final String fingerprint = isBatch ? null : lookup.getFingerprint();
+            if (!isBatch) {
+                final boolean cachedResult = lookup.getResult() != null;
+                inspector.put(RESULT_CACHE_HIT_KEY, cachedResult ? 1 : 0);
+                if (cachedResult) {
+                    if (downloadURL != null) {
+                        inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                        inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                    }
+                    inspector.put(SUCCESS_KEY, "Successfully changed image brightness.");
+                    inspector.put("brightness_delta", brightnessDelta);
+                    return inspector;
+                }
             }
 
-            // Map brightness_delta (1–100) to RescaleOp factor (0.0–2.0)
-            final float brightnessFactor = brightnessDelta / 50.0f;
+            if (!isBatch && Boolean.TRUE.equals(request.get(STREAMING_KEY))) {
+                // Very large images are adjusted strip by strip while they are decoded and encoded
+                final StripSource originalStrips = Constants.getImageStripsAndRecordLatency(store, bucketName, fileName, 0, 0, inspector);
+                if (originalStrips == null) {
+                    return Constants.getErrorObject("Could not access image from S3.");
+                }
+                final StripSource brightenedStrips = PixelPipeline.run(originalStrips, List.of(PixelPipeline.brightness(brightnessFactor)));
+                if (!Constants.saveStripsToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), brightenedStrips, ResultCache.createMetadata(fingerprint))) {
+                    return Constants.getErrorObject("Failed to save image to S3");
+                }
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                    inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                }
+                inspector.put(SUCCESS_KEY, "Successfully changed image brightness.");
+                inspector.put("brightness_delta", brightnessDelta);
+                return inspector;
+            }
 
-            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
+            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
             if (originalImage == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
-            // Adjust brightness
-            final BufferedImage brightenedImage = adjustBrightness(originalImage, brightnessFactor);
+            // Adjust brightness, in place unless the image is shared through the decoded image cache
+            final BufferedImage brightenedImage = BrightnessAdjuster.adjust(originalImage, brightnessFactor, !DecodedImageCache.contains(originalImage));
 
             if (!isBatch) {
-                final boolean successfulWriteToS3 = Constants.saveImageToS3(bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), brightenedImage);
+                final boolean successfulWriteToS3 = Constants.saveImageToS3(store, bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), brightenedImage, ResultCache.createMetadata(fingerprint));
+                Constants.releaseImages(brightenedImage, originalImage);
                 if (!successfulWriteToS3) {
                     return Constants.getErrorObject("Failed to save image to S3");
                 }
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, outputFileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
             } else {
@@ -117,22 +163,46 @@ public class F5ImageBrightness {
         return inspector;
     }
 
+    /**
+     *  Validates a brightness request and describes the adjustment as a pipeline stage, without touching any pixels.
+     *  Used by the batch handler to fuse consecutive operations into one pass.
+     *
+     *  @param request  The request arguments.
+     *  @return The response of the operation with the stage under PIPELINE_STAGE_KEY, or an error object.
+     */
+    public static HashMap<String, Object> planBrightness(final HashMap<String, Object> request) {
+        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAME_KEY, "brightness_delta");
+        if (validateMessage != null) {
+            return Constants.getErrorObject(validateMessage);
+        }
+
+        try {
+            // Validate brightness_delta
+            final Integer brightnessDelta = (Integer) request.get("brightness_delta");
+            if (brightnessDelta < MIN_BRIGHTNESS || brightnessDelta > MAX_BRIGHTNESS) {
+                throw new IllegalArgumentException(String.format("Invalid brightness_delta. Must be between %d and %d.", MIN_BRIGHTNESS, MAX_BRIGHTNESS));
+            }
+
+            final HashMap<String, Object> plan = new HashMap<>();
+            plan.put(PIPELINE_STAGE_KEY, PixelPipeline.brightness(getBrightnessFactor(brightnessDelta)));
+            plan.put(SUCCESS_KEY, "Successfully changed image brightness.");
+            plan.put("brightness_delta", brightnessDelta);
+            return plan;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
+    }
 
     /**
-     * Helper function to adjust brightness.
+     *  Maps brightness_delta (1–100) to a brightness factor (0.0–2.0).
      *
-     * @param image            The original image to modify.
-     * @param brightnessFactor The factor to adjust the brightness (1.0 = original, < 1.0 = darker, > 1.0 = brighter).
-     * @return The modified image with adjusted brightness.
+     *  @param brightnessDelta  The brightness_delta of the request.
+     *  @return The brightness factor.
      */
-    private static BufferedImage adjustBrightness(final BufferedImage image, final float brightnessFactor) {
-        final BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        final Graphics2D g = result.createGraphics();
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-
-        final RescaleOp rescaleOp = new RescaleOp(brightnessFactor, 0, null);
-        rescaleOp.filter(result, result);
-        return result;
+    private static float getBrightnessFactor(final int brightnessDelta) {
+        return brightnessDelta / 50.0f;
     }
+
 }
@@ -1,22 +1,26 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import imaging.CanonicalLayout;
+import storage.ImageStore;
 import utils.Constants;
+import utils.EncodedImage;
+import utils.ResultCache;
 
 import javax.imageio.ImageIO;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ENCODED_IMAGE_KEY;
 import static utils.Constants.FILE_NAME_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
-import static utils.Constants.IMAGE_FILE_KEY;
 import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 /**
@@ -30,24 +34,26 @@ public class F6ImageTransform {
     /**
      * Function 6: Image Transform
      *
+     * @param store   The image store to read from and write to.
      * @param request The image arguments.
      * @param context The AWS Lambda context.
      * @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
-        return imageTransform(null, request, context);
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        return imageTransform(store, null, request, context);
     }
 
     /**
      * Function #6: Transform Batch Method.
      * This function should only be called by the batch handler, which passes in a buffered image to use.
      *
+     * @param store   The image store to read from and write to.
      * @param image   The image to modify.
      * @param request The request arguments.
      * @param context The AWS Lambda Context
      * @return A response object.
      */
-    public static HashMap<String, Object> imageTransform(final BufferedImage image, final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> imageTransform(final ImageStore store, final BufferedImage image, final HashMap<String, Object> request, final Context context) {
         final HashMap<String, Object> inspector = new HashMap<>();
 
         final boolean isBatch = image != null;
@@ -76,35 +82,59 @@ public class F6ImageTransform {
 
             final String outputFileName = "transformed_" + fileName.substring(0, fileName.lastIndexOf('.')) + "." + targetFormat.toLowerCase();
 
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = !isBatch && (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, outputFileName)
+                    : null;
+
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = isBatch ? null : ResultCache.lookup(store, bucketName, fileName, ResultCache.describeOperation("transform", request), outputFileName);
+            final String fingerprint = isBatch ? null : lookup.getFingerprint();
+            if (!isBatch) {
+                final boolean cachedResult = lookup.getResult() != null;
+                inspector.put(RESULT_CACHE_HIT_KEY, cachedResult ? 1 : 0);
+                if (cachedResult) {
+                    if (downloadURL != null) {
+                        inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                        inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                    }
+                    inspector.put(SUCCESS_KEY, "Successfully transformed image.");
+                    inspector.put("target_format", targetFormat);
+                    return inspector;
+                }
+            }
+
             // Read the original image
-            BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
+            final BufferedImage originalImage = isBatch ? image : Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
             if (originalImage == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
-            if (fileExtension.equalsIgnoreCase("png") && targetFormat.equalsIgnoreCase("jpeg")) {
-                originalImage = removeAlphaChannel(originalImage);
-            }
-
-            // Transform the image to the target format
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            if (!ImageIO.write(originalImage, targetFormat, outputStream)) {
-                throw new IllegalArgumentException("Unsupported target format: " + targetFormat);
-            }
-            BufferedImage transformedImage = ImageIO.read(new ByteArrayInputStream(outputStream.toByteArray()));
+            // JPEG cannot store transparency, it is replaced with white
+            final BufferedImage encodableImage = CanonicalLayout.toEncodable(originalImage, targetFormat);
 
-            // Upload transformed image to S3 (if not in batch mode)
             if (!isBatch) {
-                boolean uploadSuccess = Constants.saveImageToS3(bucketName, outputFileName, targetFormat.toLowerCase(), transformedImage);
+                // Encode once, straight into the upload
+                boolean uploadSuccess = Constants.saveImageToS3(store, bucketName, outputFileName, targetFormat.toLowerCase(), encodableImage, ResultCache.createMetadata(fingerprint));
+                Constants.releaseImages(encodableImage, originalImage);
                 if (!uploadSuccess) {
                     return Constants.getErrorObject("Failed to save image to S3");
                 }
-                if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                    inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, outputFileName));
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
                     inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
                 }
             } else {
-                inspector.put(IMAGE_FILE_KEY, transformedImage);
+                // Keep the encoded bytes, the batch handler only decodes them if a later operation needs the pixels
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                if (!ImageIO.write(encodableImage, targetFormat, outputStream)) {
+                    throw new IllegalArgumentException("Unsupported target format: " + targetFormat);
+                }
+                // The pixels stay with the batch handler, only a converted copy is done with here
+                if (encodableImage != originalImage) {
+                    Constants.releaseImages(encodableImage);
+                }
+                inspector.put(ENCODED_IMAGE_KEY, new EncodedImage(outputStream.toByteArray(), targetFormat.toLowerCase()));
             }
 
             // Collect success attributes
@@ -119,25 +149,4 @@ public class F6ImageTransform {
         return inspector;
     }
 
-
-    /**
-     * Removes any transparency from an image and replaces it with white.
-     *
-     * @param image The image to modify
-     * @return The image without any transparency.
-     */
-    private static BufferedImage removeAlphaChannel(final BufferedImage image) {
-        if (!image.getColorModel().hasAlpha()) {
-            return image;
-        }
-
-        final BufferedImage target = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
-        final Graphics2D g = target.createGraphics();
-        g.fillRect(0, 0, image.getWidth(), image.getHeight());
-        g.drawImage(image, 0, 0, null);
-        g.dispose();
-
-        return target;
-    }
-
 }
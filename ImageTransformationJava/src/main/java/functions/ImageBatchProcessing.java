@@ -1,17 +1,26 @@
 package functions;
 
 import com.amazonaws.services.lambda.runtime.Context;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import storage.ImageStore;
 import utils.Constants;
+import utils.EncodedImage;
 import utils.FileValidator;
+import utils.ResultCache;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ENCODED_IMAGE_KEY;
 import static utils.Constants.ERROR_KEY;
+import static utils.Constants.FILE_NAMES_KEY;
 import static utils.Constants.FILE_NAME_KEY;
 import static utils.Constants.GET_DOWNLOAD_KEY;
 import static utils.Constants.IMAGE_FILE_KEY;
@@ -19,6 +28,7 @@ import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
 import static utils.Constants.IMAGE_URL_EXPIRES_IN;
 import static utils.Constants.IMAGE_URL_KEY;
 import static utils.Constants.ImageBatchFunction;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
 import static utils.Constants.SUCCESS_KEY;
 
 /***
@@ -32,7 +42,27 @@ public class ImageBatchProcessing {
     /**
      * Key of the operation list in the request body.
      */
-    private static final String OPERATIONS_KEY = "operations";
+    static final String OPERATIONS_KEY = "operations";
+
+    /**
+     * Key of the named output branches in the request body, see BranchingBatch.
+     */
+    static final String BRANCHES_KEY = "branches";
+
+    /**
+     * Prefix of the name the final image of a batch is saved under.
+     */
+    static final String OUTPUT_PREFIX = "batch_";
+
+    /**
+     * Metadata key holding the operation outputs on a batch result, so cached results can return them.
+     */
+    private static final String OPERATION_OUTPUTS_METADATA_KEY = "operation-outputs";
+
+    /**
+     * The longest operation output list stored in metadata. S3 limits user metadata to 2 KB.
+     */
+    private static final int MAX_OPERATION_OUTPUTS_METADATA_LENGTH = 1536;
 
     /**
      * Holds the functions in a map.
@@ -49,13 +79,22 @@ public class ImageBatchProcessing {
     }
 
     /**
-     * Batch function: Execute multiple transformations on a single image.
+     * Batch function: Execute multiple transformations on a single image, or on every image of a list,
+     * see MultiImageBatch, or into several outputs of one image, see BranchingBatch.
      *
+     * @param store   The image store to read from and write to.
      * @param request The image arguments.
      * @param context The AWS Lambda context.
      * @return A response object.
      */
-    public static HashMap<String, Object> handleRequest(final HashMap<String, Object> request, final Context context) {
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        if (request.containsKey(FILE_NAMES_KEY)) {
+            return MultiImageBatch.handleRequest(store, request, context);
+        }
+        if (request.containsKey(BRANCHES_KEY)) {
+            return BranchingBatch.handleRequest(store, request, context);
+        }
+
         final HashMap<String, Object> inspector = new HashMap<>();
 
         // Validate input
@@ -68,71 +107,318 @@ public class ImageBatchProcessing {
             final String bucketName = (String) request.get(BUCKET_KEY);
             final String fileName = (String) request.get(FILE_NAME_KEY);
             final ArrayList<ArrayList<Object>> operations = (ArrayList<ArrayList<Object>>) request.get(OPERATIONS_KEY);
-            String outputFileName = "batch_" + fileName;
-            final List<HashMap<String, Object>> operationsOutput = new ArrayList<>();
+
+            final String outputFileName = getOutputFileName(fileName, operations);
+
+            // The download URL is signed in the background while the image is looked up, processed and uploaded
+            final CompletableFuture<String> downloadURL = (boolean) request.get(GET_DOWNLOAD_KEY)
+                    ? Constants.getDownloadableImageURLAsync(store, bucketName, outputFileName)
+                    : null;
+
+            // Reuse the output of an identical earlier request if the source has not changed since
+            final ResultCache.Lookup lookup = ResultCache.lookup(store, bucketName, fileName, describeOperations(operations), outputFileName);
+            final String fingerprint = lookup.getFingerprint();
+            final List<HashMap<String, Object>> cachedOutputs = getCachedOutputs(lookup);
+            inspector.put(RESULT_CACHE_HIT_KEY, cachedOutputs != null ? 1 : 0);
+            if (cachedOutputs != null) {
+                inspector.put(SUCCESS_KEY, "Successfully processed image.");
+                inspector.put("batch_operations_count", operations.size());
+                inspector.put("operation_outputs", cachedOutputs);
+                inspector.put("executed_operations", new ArrayList<>());
+
+                if (downloadURL != null) {
+                    inspector.put(IMAGE_URL_KEY, downloadURL.join());
+                    inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+                }
+                return inspector;
+            }
 
             // Fetch the initial image from S3
-            BufferedImage image = Constants.getImageFromS3AndRecordLatency(bucketName, fileName, inspector);
+            final BufferedImage image = Constants.getImageFromS3AndRecordLatency(store, bucketName, fileName, inspector);
             if (image == null) {
                 return Constants.getErrorObject("Could not access image from S3.");
             }
 
-            // Process all operations
-            for (int i = 0; i < operations.size(); i++) {
-                final String operationName = (String) safeListAccess(operations.get(i), 0, "");
-                final HashMap<String, Object> operationArgs = (HashMap<String, Object>) safeListAccess(operations.get(i), 1, new HashMap<String, Object>());
+            final Result result = process(store, bucketName, fileName, operations, image, null, context);
+            if (!save(store, bucketName, result, fingerprint)) {
+                return Constants.getErrorObject("Failed to save image to S3");
+            }
 
-                if (!FUNCTIONS.containsKey(operationName)) {
-                    System.out.println("Pipeline error: Invalid operation name at index " + i + ": " + operationName);
-                    continue;
-                }
+            inspector.put(SUCCESS_KEY, "Successfully processed image.");
+            inspector.put("batch_operations_count", operations.size());
+            inspector.put("operation_outputs", result.operationsOutput);
+            inspector.put("executed_operations", result.executedOperations);
 
-                // Add required params to the operation arguments
-                operationArgs.put(BUCKET_KEY, bucketName);
-                operationArgs.put(FILE_NAME_KEY, fileName);
 
-                // Execute the operation
-                final ImageBatchFunction operationFunction = FUNCTIONS.get(operationName);
-                final Map<String, Object> responseObject = operationFunction.process(image, operationArgs, context);
+            if (downloadURL != null) {
+                // A transform that failed leaves the output under a name other than the predicted one
+                inspector.put(IMAGE_URL_KEY, result.outputFileName.equals(outputFileName)
+                        ? downloadURL.join()
+                        : Constants.getDownloadableImageURL(store, bucketName, result.outputFileName));
+                inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+            }
 
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        }
+
+        return inspector;
+    }
+
+    /**
+     * Runs the operations of a batch on an image. The operation arguments of the request are not modified, so
+     * several images can be processed with the same operations at once.
+     *
+     * @param store        The image store the operations write to.
+     * @param bucketName   The bucket of the image.
+     * @param fileName     The name of the image.
+     * @param operations   The operations of the request.
+     * @param image        The decoded image, or null if it is only available encoded.
+     * @param encodedImage The encoded image, or null if it is decoded.
+     * @param context      The AWS Lambda context.
+     * @return The final image and the outputs of the operations.
+     * @throws IOException If the image had to be decoded and could not be.
+     */
+    static Result process(final ImageStore store,
+                          final String bucketName,
+                          final String fileName,
+                          final ArrayList<ArrayList<Object>> operations,
+                          final BufferedImage image,
+                          final EncodedImage encodedImage,
+                          final Context context) throws IOException {
+        return process(store, bucketName, fileName, operations, new Result(OUTPUT_PREFIX, OUTPUT_PREFIX + fileName, image, encodedImage, null), context);
+    }
+
+    /**
+     * Runs the operations of a batch starting from the state another batch left, e.g. on the shared prefix of the
+     * branches of a BranchingBatch.
+     *
+     * @param store      The image store the operations write to.
+     * @param bucketName The bucket of the image.
+     * @param fileName   The name of the image.
+     * @param operations The operations to run.
+     * @param result     The state to start from, which is updated as the operations run.
+     * @param context    The AWS Lambda context.
+     * @return The result.
+     * @throws IOException If the image had to be decoded and could not be.
+     */
+    static Result process(final ImageStore store,
+                          final String bucketName,
+                          final String fileName,
+                          final ArrayList<ArrayList<Object>> operations,
+                          final Result result,
+                          final Context context) throws IOException {
+        // Process all operations
+        for (int i = 0; i < operations.size(); i++) {
+            final String operationName = (String) safeListAccess(operations.get(i), 0, "");
+            final HashMap<String, Object> operationArgs = new HashMap<>((HashMap<String, Object>) safeListAccess(operations.get(i), 1, new HashMap<String, Object>()));
 
-                if (responseObject.containsKey(ERROR_KEY)) {
-                    System.out.println("Pipeline error: Error executing function at index " + i);
-                } else {
-                    if (operationName.equals("transform")) {
-                        outputFileName = "batch_" + fileName.split("\\.")[0] + "." + ((String) operationArgs.get("target_format")).toLowerCase();
+            // Runs of operations the planner understands are rewritten into a cheaper plan, see BatchPlanner
+            final int plannedCount = countPlannableOperations(operations, i);
+            if (plannedCount > 0) {
+                final List<String> plannedNames = new ArrayList<>();
+                final List<HashMap<String, Object>> plannedArgs = new ArrayList<>();
+                for (int j = i; j < i + plannedCount; j++) {
+                    @SuppressWarnings("unchecked")
+                    final HashMap<String, Object> args = new HashMap<>((HashMap<String, Object>) safeListAccess(operations.get(j), 1, new HashMap<String, Object>()));
+                    args.put(BUCKET_KEY, bucketName);
+                    args.put(FILE_NAME_KEY, fileName);
+                    plannedNames.add((String) safeListAccess(operations.get(j), 0, ""));
+                    plannedArgs.add(args);
+                }
+                if (result.image == null && BatchPlanner.needsPixels(plannedNames)) {
+                    result.image = result.encodedImage.getImage();
+                }
+                if (result.image != null) {
+                    final BatchPlanner plan = BatchPlanner.plan(plannedNames, plannedArgs, i, result.image);
+                    result.operationsOutput.addAll(plan.getOutputs());
+                    result.executedOperations.addAll(plan.describe());
+                    if (!plan.isEmpty()) {
+                        result.replaceImage(plan.run(result.image));
+                        result.encodedImage = null;
                     }
+                    i += plannedCount - 1;
+                    continue;
                 }
+            }
 
-                image = responseObject.containsKey(IMAGE_FILE_KEY) ? (BufferedImage) responseObject.get(IMAGE_FILE_KEY) : image;
-                final HashMap<String, Object> appendedOutput = new HashMap<>(responseObject);
-                appendedOutput.remove(IMAGE_FILE_KEY);
-                operationsOutput.add(appendedOutput);
+            if (!FUNCTIONS.containsKey(operationName)) {
+                System.out.println("Pipeline error: Invalid operation name at index " + i + ": " + operationName);
+                continue;
+            }
+
+            // Add required params to the operation arguments
+            operationArgs.put(BUCKET_KEY, bucketName);
+            operationArgs.put(FILE_NAME_KEY, fileName);
 
+            // Execute the operation. Details of an encoded image only need its header, anything else needs the pixels.
+            final Map<String, Object> responseObject;
+            if (result.image == null && operationName.equals("details")) {
+                responseObject = F1ImageDetails.encodedImageDetails(store, result.encodedImage, operationArgs, context);
+            } else {
+                if (result.image == null) {
+                    result.image = result.encodedImage.getImage();
+                }
+                final ImageBatchFunction operationFunction = FUNCTIONS.get(operationName);
+                responseObject = operationFunction.process(store, result.image, operationArgs, context);
             }
 
-            // Save the final processed image to S3
-            final boolean successfulWriteToS3 = Constants.saveImageToS3(bucketName, outputFileName, FileValidator.getFileExtension(outputFileName), image);
-            if (!successfulWriteToS3) {
-                return Constants.getErrorObject("Failed to save image to S3");
+
+            if (responseObject.containsKey(ERROR_KEY)) {
+                System.out.println("Pipeline error: Error executing function at index " + i);
+            } else {
+                result.executedOperations.add(BatchPlanner.describeOperation(operationName, operationArgs));
+                if (operationName.equals("transform")) {
+                    result.outputFileName = result.outputPrefix + fileName.split("\\.")[0] + "." + ((String) operationArgs.get("target_format")).toLowerCase();
+                }
             }
 
-            inspector.put(SUCCESS_KEY, "Successfully processed image.");
-            inspector.put("batch_operations_count", operations.size());
-            inspector.put("operation_outputs", operationsOutput);
+            if (responseObject.containsKey(ENCODED_IMAGE_KEY)) {
+                result.encodedImage = (EncodedImage) responseObject.get(ENCODED_IMAGE_KEY);
+                result.replaceImage(null);
+            } else if (responseObject.containsKey(IMAGE_FILE_KEY)) {
+                // A new image, or the decoded image modified in place. The encoded form is out of date either way.
+                result.replaceImage((BufferedImage) responseObject.get(IMAGE_FILE_KEY));
+                result.encodedImage = null;
+            }
+            final HashMap<String, Object> appendedOutput = new HashMap<>(responseObject);
+            appendedOutput.remove(IMAGE_FILE_KEY);
+            appendedOutput.remove(ENCODED_IMAGE_KEY);
+            result.operationsOutput.add(appendedOutput);
 
+        }
+        return result;
+    }
 
-            if ((boolean) request.get(GET_DOWNLOAD_KEY)) {
-                inspector.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(bucketName, outputFileName));
-                inspector.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+    /**
+     * Saves the final image of a batch, along with the operation outputs for the result cache. The final image
+     * is returned to the buffer pool unless it is shared with other batches.
+     *
+     * @param store       The image store to save to.
+     * @param bucketName  The bucket to save to.
+     * @param result      The result of the batch.
+     * @param fingerprint The fingerprint of the request, see ResultCache.
+     * @return True if the image was saved, false otherwise.
+     * @throws IOException If the final image had to be decoded and could not be.
+     */
+    static boolean save(final ImageStore store, final String bucketName, final Result result, final String fingerprint) throws IOException {
+        // Only cache the result if the operation outputs fit into the metadata
+        final String operationOutputs = new Gson().toJson(result.operationsOutput);
+        final Map<String, String> metadata = ResultCache.createMetadata(operationOutputs.length() <= MAX_OPERATION_OUTPUTS_METADATA_LENGTH ? fingerprint : null);
+        if (!metadata.isEmpty()) {
+            metadata.put(OPERATION_OUTPUTS_METADATA_KEY, operationOutputs);
+        }
+
+        // Save the final processed image to S3
+        // The output of a final transform is uploaded as encoded, without another codec pass
+        final String outputExtension = FileValidator.getFileExtension(result.outputFileName);
+        if (result.encodedImage != null && result.encodedImage.getFormat().equals(outputExtension)) {
+            return Constants.saveEncodedImageToS3(store, bucketName, result.outputFileName, result.encodedImage, metadata);
+        }
+        final BufferedImage finalImage = result.image != null ? result.image : result.encodedImage.getImage();
+        final boolean successfulWriteToS3 = Constants.saveImageToS3(store, bucketName, result.outputFileName, outputExtension, finalImage, metadata);
+        if (finalImage != result.sharedImage) {
+            Constants.releaseImages(finalImage);
+        }
+        return successfulWriteToS3;
+    }
+
+    /**
+     * Returns the operation outputs of an identical earlier request.
+     *
+     * @param lookup The result cache lookup of the request, for the output named by getOutputFileName.
+     * @return The operation outputs of the cached result, or null if there is none.
+     */
+    static List<HashMap<String, Object>> getCachedOutputs(final ResultCache.Lookup lookup) {
+        final Map<String, String> cachedResult = lookup.getResult();
+        return cachedResult != null ? parseOperationOutputs(cachedResult.get(OPERATION_OUTPUTS_METADATA_KEY)) : null;
+    }
+
+    /**
+     * Counts the operations starting at an index that BatchPlanner can plan together.
+     *
+     * @param operations The operations of the request.
+     * @param index      The index of the first operation.
+     * @return The number of consecutive plannable operations, 0 if the operation at the index is not one.
+     */
+    private static int countPlannableOperations(final ArrayList<ArrayList<Object>> operations, final int index) {
+        int count = 0;
+        while (index + count < operations.size() && BatchPlanner.canPlan(String.valueOf(safeListAccess(operations.get(index + count), 0, "")))) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Describes the operation list in the canonical form used by the result cache.
+     *
+     * @param operations The operations of the request.
+     * @return The canonical description of every operation, in order.
+     */
+    static String describeOperations(final ArrayList<ArrayList<Object>> operations) {
+        final StringBuilder sb = new StringBuilder();
+        for (final ArrayList<Object> operation : operations) {
+            final String operationName = (String) safeListAccess(operation, 0, "");
+            @SuppressWarnings("unchecked")
+            final HashMap<String, Object> operationArgs = (HashMap<String, Object>) safeListAccess(operation, 1, new HashMap<String, Object>());
+            sb.append(ResultCache.describeOperation(operationName, operationArgs)).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Predicts the name the final image is saved under. The last transform operation decides the format.
+     *
+     * @param fileName   The name of the source image.
+     * @param operations The operations of the request.
+     * @return The name of the output image.
+     */
+    static String getOutputFileName(final String fileName, final ArrayList<ArrayList<Object>> operations) {
+        return getOutputFileName(OUTPUT_PREFIX, fileName, operations);
+    }
+
+    /**
+     * Predicts the name the final image is saved under. The last transform operation decides the format.
+     *
+     * @param outputPrefix The prefix of the output name.
+     * @param fileName     The name of the source image.
+     * @param operations   The operations of the request.
+     * @return The name of the output image.
+     */
+    static String getOutputFileName(final String outputPrefix, final String fileName, final ArrayList<ArrayList<Object>> operations) {
+        String outputFileName = outputPrefix + fileName;
+        for (final ArrayList<Object> operation : operations) {
+            @SuppressWarnings("unchecked")
+            final HashMap<String, Object> operationArgs = (HashMap<String, Object>) safeListAccess(operation, 1, new HashMap<String, Object>());
+            final Object targetFormat = operationArgs.get("target_format");
+            if ("transform".equals(safeListAccess(operation, 0, "")) && targetFormat instanceof String) {
+                outputFileName = outputPrefix + fileName.split("\\.")[0] + "." + ((String) targetFormat).toLowerCase();
             }
+        }
+        return outputFileName;
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Constants.getErrorObject(e.toString());
+    /**
+     * Restores the operation outputs stored with a cached result.
+     *
+     * @param json The operation outputs as JSON.
+     * @return The operation outputs, or null if there are none.
+     */
+    private static List<HashMap<String, Object>> parseOperationOutputs(final String json) {
+        if (json == null) {
+            return null;
         }
+        final List<HashMap<String, Object>> operationOutputs = new Gson().fromJson(json, new TypeToken<List<HashMap<String, Object>>>() {
+        }.getType());
 
-        return inspector;
+        // Gson reads every number as a double, the original outputs hold integers
+        for (final HashMap<String, Object> operationOutput : operationOutputs) {
+            operationOutput.replaceAll((key, value) -> value instanceof Double && (Double) value == Math.rint((Double) value)
+                    ? (Object) ((Double) value).intValue()
+                    : value);
+        }
+        return operationOutputs;
     }
 
     /**
@@ -151,6 +437,61 @@ public class ImageBatchProcessing {
         }
     }
 
+    /**
+     * The state of a batch after its operations ran on an image.
+     */
+    static final class Result {
+        final List<HashMap<String, Object>> operationsOutput = new ArrayList<>();
+        final List<List<Object>> executedOperations = new ArrayList<>();
 
-}
+        /**
+         * The prefix of the name the final image is saved under.
+         */
+        final String outputPrefix;
+
+        /**
+         * An image other batches read at the same time, which this one must neither modify nor release.
+         */
+        final BufferedImage sharedImage;
+
+        /**
+         * The name the final image is saved under, set by the last transform.
+         */
+        String outputFileName;
+
+        /**
+         * The final image, or null if it is only available encoded.
+         */
+        BufferedImage image;
+
+        /**
+         * The output of the last transform in its encoded form. While set, image is only decoded when needed.
+         */
+        EncodedImage encodedImage;
 
+        Result(final String outputPrefix,
+               final String outputFileName,
+               final BufferedImage image,
+               final EncodedImage encodedImage,
+               final BufferedImage sharedImage) {
+            this.outputPrefix = outputPrefix;
+            this.outputFileName = outputFileName;
+            this.image = image;
+            this.encodedImage = encodedImage;
+            this.sharedImage = sharedImage;
+        }
+
+        /**
+         * Moves the batch on to the output of an operation, returning the image it replaces to the buffer pool.
+         *
+         * @param next The output of the operation, or null if it is only available encoded.
+         */
+        void replaceImage(final BufferedImage next) {
+            if (image != next && image != sharedImage) {
+                Constants.releaseImages(image);
+            }
+            image = next;
+        }
+    }
+
+}
@@ -0,0 +1,373 @@
+package functions;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import storage.HedgedRequests;
+import storage.ImageStore;
+import storage.StoredObject;
+import utils.Constants;
+import utils.DecodedImageCache;
+import utils.ResultCache;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import static utils.Constants.BUCKET_KEY;
+import static utils.Constants.ERROR_KEY;
+import static utils.Constants.FILE_NAMES_KEY;
+import static utils.Constants.FILE_NAME_KEY;
+import static utils.Constants.GET_DOWNLOAD_KEY;
+import static utils.Constants.IMAGE_URL_EXPIRATION_SECONDS;
+import static utils.Constants.IMAGE_URL_EXPIRES_IN;
+import static utils.Constants.IMAGE_URL_KEY;
+import static utils.Constants.NETWORK_LATENCY_KEY;
+import static utils.Constants.RESULT_CACHE_HIT_KEY;
+import static utils.Constants.SUCCESS_KEY;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Conducts the same image transformations on every image of a list, see ImageBatchProcessing.
+ *
+ *  Images move through three stages: fetching the encoded image, decoding it and running the operations, then
+ *  encoding and uploading the result. Encoding streams straight into the upload, so the two form one stage.
+ *  Images are revalidated against the decoded image cache like a single image, warm containers skip the
+ *  download and decode of images they still hold.
+ *  Every stage has its own threads, so downloads and uploads wait on the network while other images use the
+ *  CPU. The number of images in the pipeline is bounded by the total number of stage threads, so fetched and
+ *  decoded images cannot pile up in front of a slower stage.
+ */
+public class MultiImageBatch {
+
+    /**
+     * Request keys holding the number of images each stage works on at once.
+     */
+    private static final String FETCH_CONCURRENCY_KEY = "fetch_concurrency";
+    private static final String PROCESS_CONCURRENCY_KEY = "process_concurrency";
+    private static final String UPLOAD_CONCURRENCY_KEY = "upload_concurrency";
+
+    /**
+     * Concurrent downloads and uploads if none are requested, well below the connection limit of the S3 client.
+     */
+    private static final int DEFAULT_NETWORK_CONCURRENCY = 8;
+
+    /**
+     * The most threads a stage may use.
+     */
+    private static final int MAX_CONCURRENCY = 32;
+
+
+    /**
+     * Batch function over several images.
+     *
+     * @param store   The image store to read from and write to.
+     * @param request The image arguments, with the images under FILE_NAMES_KEY instead of FILE_NAME_KEY.
+     * @param context The AWS Lambda context.
+     * @return A response object with the outcome of every image and the throughput of the batch.
+     */
+    public static HashMap<String, Object> handleRequest(final ImageStore store, final HashMap<String, Object> request, final Context context) {
+        final HashMap<String, Object> inspector = new HashMap<>();
+
+        // Validate input
+        final String validateMessage = Constants.validateRequestMap(request, BUCKET_KEY, FILE_NAMES_KEY, ImageBatchProcessing.OPERATIONS_KEY);
+        if (validateMessage != null) {
+            return Constants.getErrorObject(validateMessage);
+        }
+        if (request.containsKey(ImageBatchProcessing.BRANCHES_KEY)) {
+            return Constants.getErrorObject("Branches are only supported for a single image.");
+        }
+
+        final String bucketName = (String) request.get(BUCKET_KEY);
+        @SuppressWarnings("unchecked")
+        final List<String> fileNames = (List<String>) request.get(FILE_NAMES_KEY);
+        @SuppressWarnings("unchecked")
+        final ArrayList<ArrayList<Object>> operations = (ArrayList<ArrayList<Object>>) request.get(ImageBatchProcessing.OPERATIONS_KEY);
+        final String describedOperations = ImageBatchProcessing.describeOperations(operations);
+
+        final int fetchConcurrency = getConcurrency(request, FETCH_CONCURRENCY_KEY, DEFAULT_NETWORK_CONCURRENCY);
+        final int processConcurrency = getConcurrency(request, PROCESS_CONCURRENCY_KEY, Runtime.getRuntime().availableProcessors());
+        final int uploadConcurrency = getConcurrency(request, UPLOAD_CONCURRENCY_KEY, DEFAULT_NETWORK_CONCURRENCY);
+        final ExecutorService fetchExecutor = newStageExecutor("batch-fetch", fetchConcurrency);
+        final ExecutorService processExecutor = newStageExecutor("batch-process", processConcurrency);
+        final ExecutorService uploadExecutor = newStageExecutor("batch-upload", uploadConcurrency);
+        final Semaphore pipelineSlots = new Semaphore(fetchConcurrency + processConcurrency + uploadConcurrency);
+
+        final long batchStartTime = System.currentTimeMillis();
+        final List<BatchImage> images = new ArrayList<>();
+        try {
+            final List<CompletableFuture<?>> pipelines = new ArrayList<>();
+            for (final String fileName : fileNames) {
+                final BatchImage image = new BatchImage(fileName);
+                images.add(image);
+
+                // Wait for an image to leave the pipeline before fetching another one
+                pipelineSlots.acquire();
+                pipelines.add(CompletableFuture
+                        .runAsync(() -> image.fetch(store, bucketName, operations, describedOperations), fetchExecutor)
+                        .thenRunAsync(() -> image.process(store, bucketName, operations, context), processExecutor)
+                        .thenRunAsync(() -> image.upload(store, bucketName), uploadExecutor)
+                        .handle((ignored, failure) -> {
+                            // A failure the stages did not catch only fails this image
+                            if (failure != null) {
+                                image.fail(failure);
+                            }
+                            pipelineSlots.release();
+                            return null;
+                        }));
+            }
+            CompletableFuture.allOf(pipelines.toArray(new CompletableFuture<?>[0])).join();
+
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return Constants.getErrorObject(e.toString());
+        } finally {
+            fetchExecutor.shutdownNow();
+            processExecutor.shutdownNow();
+            uploadExecutor.shutdownNow();
+        }
+        final long batchRunTime = Math.max(1, System.currentTimeMillis() - batchStartTime);
+
+        // Per image outcomes, in the order of the request
+        final boolean getDownload = (boolean) request.get(GET_DOWNLOAD_KEY);
+        final List<HashMap<String, Object>> imageOutputs = new ArrayList<>();
+        int failedCount = 0;
+        long fetchTime = 0, processTime = 0, uploadTime = 0, fetchedBytes = 0;
+        for (final BatchImage image : images) {
+            imageOutputs.add(image.describe(store, bucketName, getDownload));
+            failedCount += image.error != null ? 1 : 0;
+            fetchTime += image.fetchTime;
+            processTime += image.processTime;
+            uploadTime += image.uploadTime;
+            fetchedBytes += image.fetchedBytes;
+        }
+
+        final HashMap<String, Object> stageConcurrency = new HashMap<>();
+        stageConcurrency.put("fetch", fetchConcurrency);
+        stageConcurrency.put("process", processConcurrency);
+        stageConcurrency.put("upload", uploadConcurrency);
+        final HashMap<String, Object> stageBusyTime = new HashMap<>();
+        stageBusyTime.put("fetch", fetchTime);
+        stageBusyTime.put("process", processTime);
+        stageBusyTime.put("upload", uploadTime);
+
+        inspector.put(SUCCESS_KEY, String.format("Processed %d of %d images.", images.size() - failedCount, images.size()));
+        inspector.put("batch_operations_count", operations.size());
+        inspector.put("images", imageOutputs);
+        inspector.put("images_count", images.size());
+        inspector.put("images_failed", failedCount);
+        inspector.put("batch_runtime_ms", batchRunTime);
+        inspector.put("images_per_second", (images.size() - failedCount) * 1000.0 / batchRunTime);
+        inspector.put("input_mb_per_second", fetchedBytes / (1024.0 * 1024.0) * 1000.0 / batchRunTime);
+        inspector.put("stage_concurrency", stageConcurrency);
+        inspector.put("stage_busy_ms", stageBusyTime);
+        inspector.put(NETWORK_LATENCY_KEY, fetchTime);
+        return inspector;
+    }
+
+    /**
+     * Reads the concurrency of a stage from a request.
+     *
+     * @param request      The request arguments.
+     * @param key          The key of the concurrency.
+     * @param defaultValue The concurrency if the request does not set one.
+     * @return The number of threads of the stage, between 1 and MAX_CONCURRENCY.
+     */
+    private static int getConcurrency(final HashMap<String, Object> request, final String key, final int defaultValue) {
+        final Object value = request.get(key);
+        final int concurrency = value instanceof Number ? ((Number) value).intValue() : defaultValue;
+        return Math.max(1, Math.min(MAX_CONCURRENCY, concurrency));
+    }
+
+    /**
+     * Creates the threads of a stage. They only live for one invocation.
+     *
+     * @param name    The name of the threads.
+     * @param threads The number of threads.
+     * @return The executor of the stage.
+     */
+    private static ExecutorService newStageExecutor(final String name, final int threads) {
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * An image on its way through the pipeline. Each stage runs on one thread at a time and hands the image to
+     * the next stage through its executor, so the fields need no further synchronization. A stage that fails
+     * records the error, and the stages after it skip the image.
+     */
+    private static final class BatchImage {
+        private final String fileName;
+        private String fingerprint;
+        private List<HashMap<String, Object>> cachedOutputs;
+
+        /**
+         * The decoded image if the decoded image cache holds the current version, else the encoded image.
+         */
+        private BufferedImage cachedImage;
+        private byte[] data;
+        private String eTag;
+        private ImageBatchProcessing.Result result;
+        private String outputFileName;
+        private String error;
+
+        /**
+         * Time spent in each stage and the size of the encoded image, for the throughput of the batch.
+         */
+        private long fetchTime;
+        private long processTime;
+        private long uploadTime;
+        private long fetchedBytes;
+
+        BatchImage(final String fileName) {
+            this.fileName = fileName;
+        }
+
+        /**
+         * Stage 1: Looks up an identical earlier result and downloads the encoded image if there is none,
+         * unless the decoded image cache holds the current version.
+         */
+        void fetch(final ImageStore store, final String bucketName, final ArrayList<ArrayList<Object>> operations, final String describedOperations) {
+            final long startTime = System.currentTimeMillis();
+            try {
+                final String cachedFileName = ImageBatchProcessing.getOutputFileName(fileName, operations);
+                final ResultCache.Lookup lookup = ResultCache.lookup(store, bucketName, fileName, describedOperations, cachedFileName);
+                fingerprint = lookup.getFingerprint();
+                cachedOutputs = ImageBatchProcessing.getCachedOutputs(lookup);
+                if (cachedOutputs != null) {
+                    outputFileName = cachedFileName;
+                } else {
+                    final String cachedETag = DecodedImageCache.getETag(bucketName, fileName);
+                    download(store, bucketName, cachedETag);
+                    cachedImage = data == null ? DecodedImageCache.get(bucketName, fileName, cachedETag) : null;
+
+                    // The cached copy was evicted after the request was made
+                    if (data == null && cachedImage == null) {
+                        download(store, bucketName, null);
+                    }
+                }
+            } catch (final Exception | OutOfMemoryError e) {
+                e.printStackTrace();
+                data = null;
+                error = "Could not access image from S3.";
+            }
+            fetchTime = System.currentTimeMillis() - startTime;
+        }
+
+        /**
+         * Downloads the encoded image unless it still has a version.
+         */
+        private void download(final ImageStore store, final String bucketName, final String cachedETag) throws IOException {
+            try (StoredObject object = HedgedRequests.send(() -> store.getObjectIfChanged(bucketName, fileName, cachedETag))) {
+                if (object != null) {
+                    data = object.getStream().readAllBytes();
+                    eTag = object.getETag();
+                    fetchedBytes = data.length;
+                }
+            }
+        }
+
+        /**
+         * Stage 2: Decodes the image and runs the operations.
+         */
+        void process(final ImageStore store, final String bucketName, final ArrayList<ArrayList<Object>> operations, final Context context) {
+            if (error != null || cachedOutputs != null) {
+                return;
+            }
+            final long startTime = System.currentTimeMillis();
+            try {
+                final BufferedImage image = cachedImage != null
+                        ? cachedImage
+                        : Constants.decodeAndCache(bucketName, fileName, new StoredObject(new ByteArrayInputStream(data), eTag, data.length));
+                data = null;
+                cachedImage = null;
+                if (image == null) {
+                    throw new IOException("Could not decode " + fileName);
+                }
+                result = ImageBatchProcessing.process(store, bucketName, fileName, operations, image, null, context);
+            } catch (final Exception | OutOfMemoryError e) {
+                e.printStackTrace();
+                error = e.toString();
+            }
+            processTime = System.currentTimeMillis() - startTime;
+        }
+
+        /**
+         * Stage 3: Encodes the final image into its upload.
+         */
+        void upload(final ImageStore store, final String bucketName) {
+            if (error != null || cachedOutputs != null) {
+                return;
+            }
+            final long startTime = System.currentTimeMillis();
+            try {
+                if (ImageBatchProcessing.save(store, bucketName, result, fingerprint)) {
+                    outputFileName = result.outputFileName;
+                } else {
+                    error = "Failed to save image to S3";
+                }
+            } catch (final Exception | OutOfMemoryError e) {
+                e.printStackTrace();
+                error = e.toString();
+            }
+            uploadTime = System.currentTimeMillis() - startTime;
+
+            // Only the operation outputs are needed for the response, the pixels can go while the batch goes on
+            result.image = null;
+            result.encodedImage = null;
+        }
+
+        /**
+         * Records a failure of a stage that was not caught by the stage, and drops the image.
+         *
+         * @param failure The failure, possibly wrapped by the pipeline.
+         */
+        void fail(final Throwable failure) {
+            failure.printStackTrace();
+            error = (failure.getCause() != null ? failure.getCause() : failure).toString();
+            data = null;
+            cachedImage = null;
+            result = null;
+        }
+
+        /**
+         * Describes the outcome for the response.
+         *
+         * @param store       The image store the output was saved to.
+         * @param bucketName  The bucket the output was saved to.
+         * @param getDownload Whether to add a download URL of the output.
+         * @return The outcome of the image.
+         */
+        HashMap<String, Object> describe(final ImageStore store, final String bucketName, final boolean getDownload) {
+            final HashMap<String, Object> output = new HashMap<>();
+            output.put(FILE_NAME_KEY, fileName);
+            if (error != null) {
+                output.put(ERROR_KEY, error);
+                return output;
+            }
+            output.put(SUCCESS_KEY, "Successfully processed image.");
+            output.put(RESULT_CACHE_HIT_KEY, cachedOutputs != null ? 1 : 0);
+            output.put("operation_outputs", cachedOutputs != null ? cachedOutputs : result.operationsOutput);
+            output.put("executed_operations", cachedOutputs != null ? new ArrayList<>() : result.executedOperations);
+            output.put("fetch_ms", fetchTime);
+            output.put("process_ms", processTime);
+            output.put("upload_ms", uploadTime);
+            if (getDownload) {
+                output.put(IMAGE_URL_KEY, Constants.getDownloadableImageURL(store, bucketName, outputFileName));
+                output.put(IMAGE_URL_EXPIRES_IN, IMAGE_URL_EXPIRATION_SECONDS);
+            }
+            return output;
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Scales the brightness of images through a lookup table.
+ *
+ *  The scaled value of each of the 256 possible samples is computed once, with the same truncation as a
+ *  RescaleOp, and applied to the color samples of the native raster. Alpha is left as it is. Images that
+ *  belong to the caller are adjusted in place, others are read once and written to a new image of the same
+ *  type. Images without a canonical layout are converted first, see CanonicalLayout. Row bands run in parallel
+ *  on large images.
+ */
+public class BrightnessAdjuster {
+
+    /**
+     * Scales the brightness of an image.
+     *
+     * @param image   The image to adjust.
+     * @param factor  The brightness factor, 1 leaves the image unchanged.
+     * @param inPlace Whether the image may be modified. Images shared with others, e.g. cached images, must not be.
+     * @return The adjusted image. This is the source image if it was adjusted in place.
+     */
+    public static BufferedImage adjust(final BufferedImage image, final float factor, final boolean inPlace) {
+        if (!CanonicalLayout.isCanonical(image)) {
+            return adjust(CanonicalLayout.toCanonical(image), factor, true);
+        }
+
+        final BufferedImage target = inPlace ? image : Rasters.createCompatibleImage(image, image.getWidth(), image.getHeight());
+        final byte[] lookupTable = createLookupTable(factor);
+        final int multiplier = Simd.isEnabled() ? VectorKernels.getMultiplier(lookupTable) : 0;
+
+        final WritableRaster sourceRaster = image.getRaster();
+        final WritableRaster targetRaster = target.getRaster();
+        final int width = sourceRaster.getWidth();
+        final int height = sourceRaster.getHeight();
+        final int bands = sourceRaster.getNumBands();
+        final int alphaBand = image.getColorModel().hasAlpha() ? bands - 1 : -1;
+        final int sourceStride = Rasters.getScanlineStride(sourceRaster);
+        final int targetStride = Rasters.getScanlineStride(targetRaster);
+
+        if (sourceRaster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) sourceRaster.getSampleModel();
+            final int[] offsets = sampleModel.getBitOffsets();
+            final int[] masks = sampleModel.getBitMasks();
+            final int[] source = ((DataBufferInt) sourceRaster.getDataBuffer()).getData();
+            final int[] destination = ((DataBufferInt) targetRaster.getDataBuffer()).getData();
+            final int alphaMask = alphaBand >= 0 ? masks[alphaBand] : 0;
+
+            Parallel.forEachBand(height, width, (startRow, endRow) -> {
+                for (int y = startRow; y < endRow; y++) {
+                    final int start = multiplier > 0 ? VectorKernels.scaleInts(source, y * sourceStride, destination, y * targetStride, width, multiplier, alphaMask) : 0;
+                    for (int i = y * sourceStride + start, t = y * targetStride + start, end = y * sourceStride + width; i < end; i++, t++) {
+                        final int pixel = source[i];
+                        int value = pixel & alphaMask;
+                        for (int band = 0; band < bands; band++) {
+                            if (band != alphaBand) {
+                                value |= (lookupTable[(pixel & masks[band]) >>> offsets[band]] & 0xFF) << offsets[band];
+                            }
+                        }
+                        destination[t] = value;
+                    }
+                }
+            });
+            return target;
+        }
+
+        final int pixelStride = Rasters.getElementsPerPixel(sourceRaster);
+        final int alphaOffset = alphaBand >= 0 ? ((ComponentSampleModel) sourceRaster.getSampleModel()).getBandOffsets()[alphaBand] : -1;
+        final byte[] source = ((DataBufferByte) sourceRaster.getDataBuffer()).getData();
+        final byte[] destination = ((DataBufferByte) targetRaster.getDataBuffer()).getData();
+
+        Parallel.forEachBand(height, width, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                final int sourceOffset = y * sourceStride;
+                final int targetOffset = y * targetStride;
+                final int rowLength = width * pixelStride;
+                final int start = multiplier > 0 ? VectorKernels.scaleBytes(source, sourceOffset, destination, targetOffset, rowLength, multiplier, pixelStride, alphaOffset) : 0;
+                if (alphaOffset < 0) {
+                    // Only color samples, e.g. gray or BGR images
+                    for (int i = start; i < rowLength; i++) {
+                        destination[targetOffset + i] = lookupTable[source[sourceOffset + i] & 0xFF];
+                    }
+                    continue;
+                }
+                for (int pixel = start; pixel < rowLength; pixel += pixelStride) {
+                    for (int i = 0; i < pixelStride; i++) {
+                        final int sample = source[sourceOffset + pixel + i] & 0xFF;
+                        destination[targetOffset + pixel + i] = i == alphaOffset ? (byte) sample : lookupTable[sample];
+                    }
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * Computes the scaled value of every 8-bit sample, truncated and clamped like a RescaleOp.
+     *
+     * @param factor The brightness factor.
+     * @return The scaled samples, indexed by the original sample.
+     */
+    static byte[] createLookupTable(final float factor) {
+        final byte[] lookupTable = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            lookupTable[i] = (byte) Math.max(0, Math.min(255, (int) (i * factor)));
+        }
+        return lookupTable;
+    }
+
+}
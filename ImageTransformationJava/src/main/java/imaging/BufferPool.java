@@ -0,0 +1,184 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Container-scoped pool of images and byte buffers, so warm invocations reuse the memory of earlier ones
+ *  instead of allocating and zeroing it again.
+ *
+ *  Requests repeat the same sizes, so a buffer released by one invocation usually fits the next. Images are
+ *  matched by type, width and height, byte buffers by length. Borrowed buffers hold whatever was written to
+ *  them last, callers overwrite every pixel or byte they use. The pool is bounded by the total size of the
+ *  buffers it holds and drops the least recently released buffers first.
+ */
+public class BufferPool {
+
+    /**
+     * Environment variable holding the capacity of the pool in MB, 0 disables pooling.
+     */
+    public static final String CAPACITY_MB_ENV = "BUFFER_POOL_MB";
+
+    /**
+     * The capacity if none is configured, in bytes.
+     */
+    private static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    /**
+     * The capacity of the pool, in bytes.
+     */
+    private static final long CAPACITY = getCapacity();
+
+    /**
+     * The free buffers, images and byte arrays, the least recently released first.
+     */
+    private static final ArrayDeque<Object> FREE = new ArrayDeque<>();
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static long size;
+
+
+    /**
+     * Borrows an image. Its pixels are undefined.
+     *
+     * @param width  The width of the image.
+     * @param height The height of the image.
+     * @param type   The type of the image, one of the canonical types, see CanonicalLayout.
+     * @return A pooled image, or a new one if none fits.
+     */
+    public static BufferedImage borrowImage(final int width, final int height, final int type) {
+        synchronized (FREE) {
+            final Iterator<Object> iterator = FREE.descendingIterator();
+            while (iterator.hasNext()) {
+                final Object buffer = iterator.next();
+                if (buffer instanceof BufferedImage) {
+                    final BufferedImage image = (BufferedImage) buffer;
+                    if (image.getType() == type && image.getWidth() == width && image.getHeight() == height) {
+                        iterator.remove();
+                        size -= getBytes(image);
+                        HITS.incrementAndGet();
+                        return image;
+                    }
+                }
+            }
+        }
+        MISSES.incrementAndGet();
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Borrows a byte buffer. Its contents are undefined.
+     *
+     * @param length The length of the buffer.
+     * @return A pooled buffer, or a new one if none fits.
+     */
+    public static byte[] borrowBytes(final int length) {
+        synchronized (FREE) {
+            final Iterator<Object> iterator = FREE.descendingIterator();
+            while (iterator.hasNext()) {
+                final Object buffer = iterator.next();
+                if (buffer instanceof byte[] && ((byte[]) buffer).length == length) {
+                    iterator.remove();
+                    size -= length;
+                    HITS.incrementAndGet();
+                    return (byte[]) buffer;
+                }
+            }
+        }
+        MISSES.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Returns an image to the pool. The caller must not use the image afterwards, and nothing else may hold it,
+     * e.g. the decoded image cache. Images without a canonical layout are left to the collector, as are images
+     * with properties, which only describe the pixels they were created with.
+     *
+     * @param image The image.
+     */
+    public static void release(final BufferedImage image) {
+        if (CanonicalLayout.isCanonical(image) && image.getPropertyNames() == null) {
+            add(image, getBytes(image));
+        }
+    }
+
+    /**
+     * Returns a byte buffer to the pool. The caller must not use the buffer afterwards.
+     *
+     * @param buffer The buffer.
+     */
+    public static void releaseBytes(final byte[] buffer) {
+        add(buffer, buffer.length);
+    }
+
+    public static long getHitCount() {
+        return HITS.get();
+    }
+
+    public static long getMissCount() {
+        return MISSES.get();
+    }
+
+    /**
+     * Returns the total size of the free buffers held by the pool.
+     *
+     * @return The size in bytes.
+     */
+    public static long getSize() {
+        synchronized (FREE) {
+            return size;
+        }
+    }
+
+    /**
+     * Adds a free buffer, dropping the least recently released buffers until it fits.
+     */
+    private static void add(final Object buffer, final long bytes) {
+        if (bytes > CAPACITY) {
+            return;
+        }
+        synchronized (FREE) {
+            for (final Object free : FREE) {
+                if (free == buffer) {
+                    return;
+                }
+            }
+            while (size + bytes > CAPACITY) {
+                final Object evicted = FREE.removeFirst();
+                size -= evicted instanceof byte[] ? ((byte[]) evicted).length : getBytes((BufferedImage) evicted);
+            }
+            FREE.addLast(buffer);
+            size += bytes;
+        }
+    }
+
+    /**
+     * Returns the size of the raster data of an image.
+     */
+    private static long getBytes(final BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    /**
+     * Reads the capacity from the environment.
+     *
+     * @return The capacity in bytes.
+     */
+    private static long getCapacity() {
+        try {
+            return Math.max(0, Long.parseLong(System.getenv(CAPACITY_MB_ENV))) * 1024 * 1024;
+        } catch (final Exception ignored) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+}
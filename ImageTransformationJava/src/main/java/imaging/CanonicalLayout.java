@@ -0,0 +1,211 @@
+package imaging;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.util.Hashtable;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  The pixel layouts every kernel in this package works on directly.
+ *
+ *  A canonical image keeps its pixels in a single array starting at the first element, with 8-bit samples that
+ *  are not premultiplied: packed into ints (TYPE_INT_RGB, TYPE_INT_ARGB) or interleaved bytes (TYPE_3BYTE_BGR,
+ *  TYPE_4BYTE_ABGR, TYPE_BYTE_GRAY). The decoders produce these layouts for most JPEG and PNG files. Anything else,
+ *  e.g. indexed, 16-bit or gray and alpha PNGs, is converted once right after decoding, and the kernels keep the
+ *  layout of their input, so no operation converts on its own. Before encoding, images are only converted when
+ *  the format cannot hold them, e.g. translucent images saved as JPEG.
+ */
+public final class CanonicalLayout {
+
+    /**
+     * Property of a converted image holding the color model it was decoded with, set when converting changed
+     * the color space, i.e. for gray and alpha images.
+     */
+    private static final String DECODED_COLOR_MODEL_PROPERTY = "decoded_color_model";
+
+    private CanonicalLayout() {
+    }
+
+    /**
+     * Returns the color model an image was decoded with, which is what image details report. Only differs from
+     * the color model of the image for gray and alpha images, which are kept as TYPE_4BYTE_ABGR.
+     *
+     * @param image The image.
+     * @return The color model before the image was converted to a canonical layout.
+     */
+    public static ColorModel getDecodedColorModel(final BufferedImage image) {
+        final Object colorModel = image.getProperty(DECODED_COLOR_MODEL_PROPERTY);
+        return colorModel instanceof ColorModel ? (ColorModel) colorModel : image.getColorModel();
+    }
+
+    /**
+     * Checks whether an image has a canonical layout.
+     *
+     * @param image The image.
+     * @return Whether the kernels can work on the image directly.
+     */
+    public static boolean isCanonical(final BufferedImage image) {
+        final int type = image.getType();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB
+                || type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR
+                || type == BufferedImage.TYPE_BYTE_GRAY)
+                && Rasters.getElementsPerPixel(image.getRaster()) > 0;
+    }
+
+    /**
+     * Converts an image to a canonical layout: TYPE_BYTE_GRAY for opaque gray images, TYPE_4BYTE_ABGR for
+     * translucent images and TYPE_3BYTE_BGR for any other image. Gray samples of any depth are scaled to 8 bits
+     * without a color space conversion, other images are drawn with Java2D.
+     *
+     * @param image The image, e.g. as decoded.
+     * @return The image itself if it already has a canonical layout, a converted copy otherwise.
+     */
+    public static BufferedImage toCanonical(final BufferedImage image) {
+        if (isCanonical(image)) {
+            return image;
+        }
+        final ColorModel colorModel = image.getColorModel();
+        final boolean hasAlpha = colorModel.hasAlpha();
+        if (colorModel instanceof ComponentColorModel && colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY) {
+            final BufferedImage target = toCanonicalGray(image, hasAlpha);
+            if (!hasAlpha) {
+                return target;
+            }
+
+            // Gray and alpha becomes RGB, the image remembers it was gray
+            final Hashtable<String, Object> properties = new Hashtable<>();
+            properties.put(DECODED_COLOR_MODEL_PROPERTY, colorModel);
+            return new BufferedImage(target.getColorModel(), target.getRaster(), false, properties);
+        }
+
+        final BufferedImage target = BufferPool.borrowImage(image.getWidth(), image.getHeight(),
+                hasAlpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D graphics = target.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return target;
+    }
+
+    /**
+     * Prepares an image for encoding. JPEG cannot store alpha, so translucent images are blended over white,
+     * with the same rounding as drawing them onto a white image with Java2D.
+     *
+     * @param image  The image.
+     * @param format The format the image will be encoded in, e.g. "jpeg".
+     * @return The image itself if the format can hold it, an opaque TYPE_INT_RGB copy otherwise.
+     */
+    public static BufferedImage toEncodable(final BufferedImage image, final String format) {
+        final boolean jpeg = format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg");
+        if (!jpeg || !image.getColorModel().hasAlpha()) {
+            return image;
+        }
+        if (!isCanonical(image)) {
+            return toEncodable(toCanonical(image), format);
+        }
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final BufferedImage target = BufferPool.borrowImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final int[] rgb = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+        final WritableRaster source = image.getRaster();
+        final int sourceStride = Rasters.getScanlineStride(source);
+        if (source.getDataBuffer() instanceof DataBufferInt) {
+            final int[] argb = ((DataBufferInt) source.getDataBuffer()).getData();
+            Parallel.forEachBand(height, width, (startRow, endRow) -> {
+                for (int y = startRow; y < endRow; y++) {
+                    final int start = Simd.isEnabled() ? VectorKernels.flattenIntArgb(argb, y * sourceStride, rgb, y * width, width) : 0;
+                    for (int x = start, i = y * sourceStride + start; x < width; x++, i++) {
+                        final int pixel = argb[i];
+                        rgb[y * width + x] = overWhite(pixel >>> 24, (pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF);
+                    }
+                }
+            });
+        } else {
+            final byte[] abgr = ((DataBufferByte) source.getDataBuffer()).getData();
+            Parallel.forEachBand(height, width, (startRow, endRow) -> {
+                for (int y = startRow; y < endRow; y++) {
+                    final int start = Simd.isEnabled() ? VectorKernels.flattenByteAbgr(abgr, y * sourceStride, rgb, y * width, width) : 0;
+                    for (int x = start, i = y * sourceStride + start * 4; x < width; x++, i += 4) {
+                        rgb[y * width + x] = overWhite(abgr[i] & 0xFF, abgr[i + 3] & 0xFF, abgr[i + 2] & 0xFF, abgr[i + 1] & 0xFF);
+                    }
+                }
+            });
+        }
+        return target;
+    }
+
+    /**
+     * Prepares an image produced in strips for encoding, one strip at a time, see toEncodable.
+     *
+     * @param source The strips.
+     * @param format The format the image will be encoded in, e.g. "jpeg".
+     * @return The strips the format can hold.
+     */
+    public static StripSource toEncodable(final StripSource source, final String format) {
+        return Strips.map(source, strip -> toEncodable(strip, format));
+    }
+
+    /**
+     * Blends a pixel over white, like Java2D: the color weighted by alpha, plus white weighted by 255 - alpha.
+     *
+     * @return The opaque pixel, 0xRRGGBB.
+     */
+    private static int overWhite(final int alpha, final int red, final int green, final int blue) {
+        final int background = 0xFF - alpha;
+        return (GrayscaleConverter.overBlack(alpha, red) + background) << 16
+                | (GrayscaleConverter.overBlack(alpha, green) + background) << 8
+                | (GrayscaleConverter.overBlack(alpha, blue) + background);
+    }
+
+    /**
+     * Copies a gray image, with or without alpha, into TYPE_BYTE_GRAY or TYPE_4BYTE_ABGR.
+     */
+    private static BufferedImage toCanonicalGray(final BufferedImage image, final boolean hasAlpha) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final BufferedImage target = BufferPool.borrowImage(width, height, hasAlpha ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_BYTE_GRAY);
+        final byte[] data = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+
+        final WritableRaster source = image.getRaster();
+        final int grayMax = (1 << source.getSampleModel().getSampleSize(0)) - 1;
+        final int alphaMax = hasAlpha ? (1 << source.getSampleModel().getSampleSize(1)) - 1 : 0;
+        final int[] gray = new int[width];
+        final int[] alpha = new int[width];
+        for (int y = 0; y < height; y++) {
+            source.getSamples(0, y, width, 1, 0, gray);
+            if (!hasAlpha) {
+                for (int x = 0, i = y * width; x < width; x++, i++) {
+                    data[i] = (byte) scale(gray[x], grayMax);
+                }
+                continue;
+            }
+            source.getSamples(0, y, width, 1, 1, alpha);
+            for (int x = 0, i = y * width * 4; x < width; x++, i += 4) {
+                final byte value = (byte) scale(gray[x], grayMax);
+                data[i] = (byte) scale(alpha[x], alphaMax);
+                data[i + 1] = value;
+                data[i + 2] = value;
+                data[i + 3] = value;
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Scales a sample to 8 bits, rounding to the nearest value.
+     */
+    private static int scale(final int sample, final int max) {
+        return max == 0xFF ? sample : (sample * 0xFF + max / 2) / max;
+    }
+
+}
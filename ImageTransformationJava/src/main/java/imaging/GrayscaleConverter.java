@@ -0,0 +1,245 @@
+package imaging;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Converts images to 8-bit grayscale in a single pass over the pixels.
+ *
+ *  Images in a canonical layout are read straight from their data arrays and converted with fixed-point luma
+ *  weights, in row bands that run in parallel on large images. With BT.601 weights the output is identical to
+ *  drawing the image into a TYPE_BYTE_GRAY image with Java2D: translucent pixels are blended over black with the
+ *  same rounding, so the two can be compared on the same requests.
+ */
+public class GrayscaleConverter {
+
+    /**
+     * Luma weights, in 1/256.
+     */
+    public enum Luma {
+        BT601(77, 150, 29),
+        BT709(54, 183, 19);
+
+        private final int red;
+        private final int green;
+        private final int blue;
+
+        Luma(final int red, final int green, final int blue) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        /**
+         * Returns the luma weights with a name.
+         *
+         * @param name The name, e.g. "bt709", in any case.
+         * @return The luma weights, or null if there are none with that name.
+         */
+        public static Luma forName(final String name) {
+            for (final Luma luma : values()) {
+                if (luma.name().equalsIgnoreCase(name)) {
+                    return luma;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Computes the luma of a color.
+         */
+        int luma(final int r, final int g, final int b) {
+            return (red * r + green * g + blue * b + 128) >> 8;
+        }
+    }
+
+
+    /**
+     * The ways to convert an image.
+     */
+    public enum Engine {
+        /**
+         * The kernel if it can run on more than one thread or on SIMD lanes, or the weights are not BT.601,
+         * Java2D otherwise. On a single core without vector kernels the native Java2D loop is faster.
+         */
+        AUTO,
+        /**
+         * The kernel in this class.
+         */
+        KERNEL,
+        /**
+         * Drawing the image into a TYPE_BYTE_GRAY image, BT.601 weights only.
+         */
+        JAVA2D;
+
+        /**
+         * Returns the engine with a name.
+         *
+         * @param name The name, e.g. "kernel", in any case.
+         * @return The engine, or null if there is none with that name.
+         */
+        public static Engine forName(final String name) {
+            for (final Engine engine : values()) {
+                if (engine.name().equalsIgnoreCase(name)) {
+                    return engine;
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Converts an image to grayscale. The source image is not modified.
+     *
+     * @param image  The image to convert.
+     * @param luma   The luma weights.
+     * @param engine The way to convert the image. JAVA2D requires BT.601 weights.
+     * @return A TYPE_BYTE_GRAY image, borrowed from the buffer pool.
+     */
+    public static BufferedImage toGrayscale(final BufferedImage image, final Luma luma, final Engine engine) {
+        if (engine == Engine.JAVA2D && luma != Luma.BT601) {
+            throw new IllegalArgumentException("Java2D only converts with BT.601 weights.");
+        }
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final boolean useKernel = engine == Engine.KERNEL
+                || (engine == Engine.AUTO && (luma != Luma.BT601 || Parallel.getThreads() > 1 || Simd.isEnabled()));
+
+        if (!CanonicalLayout.isCanonical(image)) {
+            return toGrayscale(CanonicalLayout.toCanonical(image), luma, engine);
+        }
+        final BufferedImage grayscaleImage = BufferPool.borrowImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        if (!useKernel) {
+            return draw(image, grayscaleImage);
+        }
+
+        final int type = image.getType();
+
+        final WritableRaster source = image.getRaster();
+        final int sourceStride = Rasters.getScanlineStride(source);
+        final WritableRaster target = grayscaleImage.getRaster();
+        final int targetStride = Rasters.getScanlineStride(target);
+        final byte[] gray = ((DataBufferByte) target.getDataBuffer()).getData();
+
+        final int[] ints = source.getDataBuffer() instanceof DataBufferInt ? ((DataBufferInt) source.getDataBuffer()).getData() : null;
+        final byte[] bytes = ints == null ? ((DataBufferByte) source.getDataBuffer()).getData() : null;
+
+        Parallel.forEachBand(height, width, (startRow, endRow) -> {
+            for (int y = startRow; y < endRow; y++) {
+                switch (type) {
+                    case BufferedImage.TYPE_INT_RGB:
+                        convertIntRgbRow(ints, y * sourceStride, gray, y * targetStride, width, luma, false);
+                        break;
+                    case BufferedImage.TYPE_INT_ARGB:
+                        convertIntRgbRow(ints, y * sourceStride, gray, y * targetStride, width, luma, true);
+                        break;
+                    case BufferedImage.TYPE_3BYTE_BGR:
+                        convertByteBgrRow(bytes, y * sourceStride, gray, y * targetStride, width, luma);
+                        break;
+                    case BufferedImage.TYPE_BYTE_GRAY:
+                        System.arraycopy(bytes, y * sourceStride, gray, y * targetStride, width);
+                        break;
+                    default:
+                        convertByteAbgrRow(bytes, y * sourceStride, gray, y * targetStride, width, luma);
+                        break;
+                }
+            }
+        });
+        return grayscaleImage;
+    }
+
+    /**
+     * Converts a row of a TYPE_INT_RGB or TYPE_INT_ARGB image.
+     */
+    private static void convertIntRgbRow(final int[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                                         final int width, final Luma luma, final boolean hasAlpha) {
+        final int red = luma.red;
+        final int green = luma.green;
+        final int blue = luma.blue;
+        final int start = Simd.isEnabled() ? VectorKernels.grayIntRgb(source, sourceOffset, target, targetOffset, width, red, green, blue, hasAlpha) : 0;
+        final int targetEnd = targetOffset + width;
+        for (int t = targetOffset + start, i = sourceOffset + start; t < targetEnd; t++, i++) {
+            final int pixel = source[i];
+            final int value = (red * ((pixel >> 16) & 0xFF) + green * ((pixel >> 8) & 0xFF) + blue * (pixel & 0xFF) + 128) >> 8;
+            target[t] = (byte) (hasAlpha ? overBlack(pixel >>> 24, value) : value);
+        }
+    }
+
+    /**
+     * Converts a row of a TYPE_3BYTE_BGR image.
+     */
+    private static void convertByteBgrRow(final byte[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                                          final int width, final Luma luma) {
+        final int red = luma.red;
+        final int green = luma.green;
+        final int blue = luma.blue;
+        final int start = Simd.isEnabled() ? VectorKernels.grayByteBgr(source, sourceOffset, target, targetOffset, width, red, green, blue) : 0;
+        // Samples are read in ascending order, which lets the JIT combine the array bounds checks
+        final int targetEnd = targetOffset + width;
+        for (int t = targetOffset + start, i = sourceOffset + start * 3; t < targetEnd; t++, i += 3) {
+            final int b = source[i] & 0xFF;
+            final int g = source[i + 1] & 0xFF;
+            final int r = source[i + 2] & 0xFF;
+            target[t] = (byte) ((red * r + green * g + blue * b + 128) >> 8);
+        }
+    }
+
+    /**
+     * Converts a row of a TYPE_4BYTE_ABGR image.
+     */
+    private static void convertByteAbgrRow(final byte[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                                           final int width, final Luma luma) {
+        final int red = luma.red;
+        final int green = luma.green;
+        final int blue = luma.blue;
+        final int start = Simd.isEnabled() ? VectorKernels.grayByteAbgr(source, sourceOffset, target, targetOffset, width, red, green, blue) : 0;
+        final int targetEnd = targetOffset + width;
+        for (int t = targetOffset + start, i = sourceOffset + start * 4; t < targetEnd; t++, i += 4) {
+            final int a = source[i] & 0xFF;
+            final int b = source[i + 1] & 0xFF;
+            final int g = source[i + 2] & 0xFF;
+            final int r = source[i + 3] & 0xFF;
+            target[t] = (byte) overBlack(a, (red * r + green * g + blue * b + 128) >> 8);
+        }
+    }
+
+    /**
+     * Blends a gray value over black, rounding like the Java2D alpha tables.
+     *
+     * @param alpha The alpha of the gray value.
+     * @param gray  The gray value.
+     * @return The blended gray value.
+     */
+    static int overBlack(final int alpha, final int gray) {
+        if (alpha == 0xFF) {
+            return gray;
+        }
+        // Unsigned 32-bit arithmetic, alpha * 0x10101 * gray + 0x800000 fits
+        return (alpha * 0x10101 * gray + (1 << 23)) >>> 24;
+    }
+
+    /**
+     * Draws an image into another image of the same size, over black.
+     *
+     * @param image  The image to draw.
+     * @param target The image to draw into, its pixels are overwritten.
+     * @return The target image.
+     */
+    private static BufferedImage draw(final BufferedImage image, final BufferedImage target) {
+        final Graphics2D graphics = target.createGraphics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(0, 0, target.getWidth(), target.getHeight());
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return target;
+    }
+
+}
@@ -0,0 +1,153 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Rotates images by multiples of 90 degrees by moving pixels, with no interpolation or color conversion.
+ *
+ *  The rotated image has the same type and raster layout as the source, which is converted to a canonical layout
+ *  first if needed, see CanonicalLayout. Pixels are moved directly on the data arrays. Rotations by 90 and 270 degrees transpose the image,
+ *  which reads rows but writes columns, so they work in square tiles small enough for both the source rows and
+ *  the destination columns of a tile to stay in the CPU cache. Bands of tiles run in parallel on large images.
+ */
+public class ImageRotator {
+
+    /**
+     * Width and height of a tile, in pixels.
+     */
+    private static final int TILE_SIZE = 32;
+
+
+    /**
+     * Rotates an image clockwise. The source image is not modified.
+     *
+     * @param image         The image to rotate.
+     * @param rotationAngle The rotation angle, 90, 180 or 270 degrees.
+     * @return The rotated image, of the same type as the source if it has a canonical layout.
+     */
+    public static BufferedImage rotate(final BufferedImage image, final int rotationAngle) {
+        if (rotationAngle != 90 && rotationAngle != 180 && rotationAngle != 270) {
+            throw new IllegalArgumentException("Unsupported rotation angle: " + rotationAngle);
+        }
+
+        if (!CanonicalLayout.isCanonical(image)) {
+            return rotate(CanonicalLayout.toCanonical(image), rotationAngle);
+        }
+
+        final WritableRaster source = image.getRaster();
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final boolean transposed = rotationAngle != 180;
+
+        // The source layout, so the rotated image keeps the source type
+        final BufferedImage rotatedImage = Rasters.createCompatibleImage(image, transposed ? height : width, transposed ? width : height);
+        final WritableRaster target = rotatedImage.getRaster();
+
+        final DataBuffer sourceBuffer = source.getDataBuffer();
+        final DataBuffer targetBuffer = target.getDataBuffer();
+        final int elementsPerPixel = Rasters.getElementsPerPixel(source);
+        final int sourceStride = Rasters.getScanlineStride(source);
+        final int targetStride = Rasters.getScanlineStride(target);
+        if (sourceBuffer instanceof DataBufferInt) {
+            final int[] sourceData = ((DataBufferInt) sourceBuffer).getData();
+            final int[] targetData = ((DataBufferInt) targetBuffer).getData();
+            Parallel.forEachBand((height + TILE_SIZE - 1) / TILE_SIZE, width * TILE_SIZE, (startTile, endTile) ->
+                    rotateInts(sourceData, sourceStride, targetData, targetStride, width, height, rotationAngle,
+                            startTile * TILE_SIZE, Math.min(height, endTile * TILE_SIZE)));
+        } else {
+            final byte[] sourceData = ((DataBufferByte) sourceBuffer).getData();
+            final byte[] targetData = ((DataBufferByte) targetBuffer).getData();
+            Parallel.forEachBand((height + TILE_SIZE - 1) / TILE_SIZE, width * TILE_SIZE, (startTile, endTile) ->
+                    rotateBytes(sourceData, sourceStride, targetData, targetStride, elementsPerPixel, width, height, rotationAngle,
+                            startTile * TILE_SIZE, Math.min(height, endTile * TILE_SIZE)));
+        }
+        return rotatedImage;
+    }
+
+    /**
+     * Rotates the source rows [startRow, endRow) of a packed int raster.
+     */
+    private static void rotateInts(final int[] source, final int sourceStride,
+                                   final int[] target, final int targetStride,
+                                   final int width, final int height, final int rotationAngle,
+                                   final int startRow, final int endRow) {
+        if (rotationAngle == 180) {
+            for (int y = startRow; y < endRow; y++) {
+                final int sourceRow = y * sourceStride;
+                final int targetRow = (height - 1 - y) * targetStride + width - 1;
+                for (int x = 0; x < width; x++) {
+                    target[targetRow - x] = source[sourceRow + x];
+                }
+            }
+            return;
+        }
+
+        for (int tileY = startRow; tileY < endRow; tileY += TILE_SIZE) {
+            final int tileEndY = Math.min(endRow, tileY + TILE_SIZE);
+            for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+                final int tileEndX = Math.min(width, tileX + TILE_SIZE);
+                for (int y = tileY; y < tileEndY; y++) {
+                    final int sourceRow = y * sourceStride;
+                    if (rotationAngle == 90) {
+                        // Source row y becomes target column height - 1 - y, top to bottom
+                        final int targetColumn = height - 1 - y;
+                        for (int x = tileX; x < tileEndX; x++) {
+                            target[x * targetStride + targetColumn] = source[sourceRow + x];
+                        }
+                    } else {
+                        // Source row y becomes target column y, bottom to top
+                        for (int x = tileX; x < tileEndX; x++) {
+                            target[(width - 1 - x) * targetStride + y] = source[sourceRow + x];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Rotates the source rows [startRow, endRow) of an interleaved byte raster.
+     */
+    private static void rotateBytes(final byte[] source, final int sourceStride,
+                                    final byte[] target, final int targetStride, final int pixelStride,
+                                    final int width, final int height, final int rotationAngle,
+                                    final int startRow, final int endRow) {
+        if (rotationAngle == 180) {
+            for (int y = startRow; y < endRow; y++) {
+                final int sourceRow = y * sourceStride;
+                final int targetRow = (height - 1 - y) * targetStride + (width - 1) * pixelStride;
+                for (int x = 0; x < width; x++) {
+                    System.arraycopy(source, sourceRow + x * pixelStride, target, targetRow - x * pixelStride, pixelStride);
+                }
+            }
+            return;
+        }
+
+        for (int tileY = startRow; tileY < endRow; tileY += TILE_SIZE) {
+            final int tileEndY = Math.min(endRow, tileY + TILE_SIZE);
+            for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+                final int tileEndX = Math.min(width, tileX + TILE_SIZE);
+                for (int y = tileY; y < tileEndY; y++) {
+                    final int sourceRow = y * sourceStride;
+                    for (int x = tileX; x < tileEndX; x++) {
+                        final int targetIndex = rotationAngle == 90
+                                ? x * targetStride + (height - 1 - y) * pixelStride
+                                : (width - 1 - x) * targetStride + y * pixelStride;
+                        final int sourceIndex = sourceRow + x * pixelStride;
+                        for (int i = 0; i < pixelStride; i++) {
+                            target[targetIndex + i] = source[sourceIndex + i];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+}
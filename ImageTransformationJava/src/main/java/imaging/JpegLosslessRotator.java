@@ -0,0 +1,1179 @@
+package imaging;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Rotates JPEG images by 90, 180 or 270 degrees without decoding them, like jpegtran does.
+ *
+ *  The entropy coded data is decoded into quantized DCT coefficients only, from every scan of the image,
+ *  including the refinement scans of progressive images and scans with restart intervals. Each 8x8 block is
+ *  rotated in the frequency domain (a transposition plus sign flips of the odd frequencies) and moved to its
+ *  rotated position, then the coefficients are entropy coded again as a single sequential scan with optimized
+ *  Huffman tables. No IDCT, color conversion or requantization takes place, so the rotation loses nothing and
+ *  the image quality is unchanged.
+ *
+ *  Only images that can be rotated exactly are handled: sequential or progressive Huffman frames with 8-bit
+ *  samples and any sampling factors, and the edge that moves to the top or left of the rotated image must end
+ *  on a whole MCU. Anything else makes rotate return null, and the caller should rotate the pixels instead.
+ */
+public class JpegLosslessRotator {
+
+    /**
+     * Natural (row-major) index of each coefficient in zigzag order.
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // Markers
+    private static final int SOF0 = 0xC0;
+    private static final int SOF1 = 0xC1;
+    private static final int SOF2 = 0xC2;
+    private static final int DHT = 0xC4;
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DRI = 0xDD;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP15 = 0xEF;
+    private static final int COM = 0xFE;
+
+    private final byte[] data;
+
+    /**
+     * APPn and COM segments to copy into the rotated image, including their markers.
+     */
+    private final List<byte[]> preservedSegments = new ArrayList<>();
+
+    private final int[][] quantTables = new int[4][];
+    private final int[] quantPrecisions = new int[4];
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+
+    private int frameMarker;
+    private int width;
+    private int height;
+    private Component[] components;
+    private int maxH;
+    private int maxV;
+    private int restartInterval;
+    private boolean scanDecoded;
+
+
+    private JpegLosslessRotator(final byte[] data) {
+        this.data = data;
+    }
+
+    /**
+     * Rotates a JPEG image clockwise without decoding it.
+     *
+     * @param jpeg          The JPEG file.
+     * @param rotationAngle The rotation angle, 90, 180 or 270 degrees.
+     * @return The rotated JPEG file, or null if the image cannot be rotated losslessly.
+     */
+    public static byte[] rotate(final byte[] jpeg, final int rotationAngle) {
+        if (rotationAngle != 90 && rotationAngle != 180 && rotationAngle != 270) {
+            return null;
+        }
+        try {
+            final JpegLosslessRotator rotator = new JpegLosslessRotator(jpeg);
+            return rotator.parse() && rotator.isExact(rotationAngle) ? rotator.write(rotationAngle) : null;
+        } catch (final RuntimeException e) {
+            // Truncated or corrupt data, leave the error reporting to the regular decoder
+            return null;
+        }
+    }
+
+    /**
+     * Reads the headers and decodes the coefficients of the image.
+     *
+     * @return True if the image is supported.
+     */
+    private boolean parse() {
+        if (readUnsignedShort(0) != (0xFF00 | SOI)) {
+            return false;
+        }
+
+        int position = 2;
+        while (true) {
+            // Markers may be preceded by any number of fill bytes
+            if ((data[position] & 0xFF) != 0xFF) {
+                return false;
+            }
+            while ((data[position] & 0xFF) == 0xFF) {
+                position++;
+            }
+            final int marker = data[position++] & 0xFF;
+            if (marker == EOI) {
+                return scanDecoded;
+            }
+
+            final int length = readUnsignedShort(position);
+            final int segmentEnd = position + length;
+            switch (marker) {
+                case SOF0:
+                case SOF1:
+                case SOF2:
+                    if (components != null || !readFrame(position + 2)) {
+                        return false;
+                    }
+                    break;
+                case DHT:
+                    readHuffmanTables(position + 2, segmentEnd);
+                    break;
+                case DQT:
+                    if (!readQuantTables(position + 2, segmentEnd)) {
+                        return false;
+                    }
+                    break;
+                case DRI:
+                    restartInterval = readUnsignedShort(position + 2);
+                    break;
+                case SOS:
+                    final Scan scan = components != null ? readScanHeader(position + 2) : null;
+                    if (scan == null) {
+                        return false;
+                    }
+                    position = decodeScan(scan, segmentEnd);
+                    scanDecoded = true;
+                    continue;
+                default:
+                    if (marker >= 0xC0 && marker <= 0xCF) {
+                        // Lossless, hierarchical and arithmetic coded frames
+                        return false;
+                    }
+                    if ((marker >= APP0 && marker <= APP15 && marker != APP1) || marker == COM) {
+                        // EXIF (APP1) is dropped, its orientation and thumbnail would no longer match the image
+                        final byte[] segment = new byte[length + 2];
+                        System.arraycopy(data, position - 2, segment, 0, segment.length);
+                        segment[0] = (byte) 0xFF;
+                        segment[1] = (byte) marker;
+                        preservedSegments.add(segment);
+                    }
+                    break;
+            }
+            position = segmentEnd;
+        }
+    }
+
+    /**
+     * Reads the frame header.
+     *
+     * @param position The start of the segment content.
+     * @return True if the frame is supported.
+     */
+    private boolean readFrame(final int position) {
+        frameMarker = data[position - 3] & 0xFF;
+        final int precision = data[position] & 0xFF;
+        height = readUnsignedShort(position + 1);
+        width = readUnsignedShort(position + 3);
+        final int componentCount = data[position + 5] & 0xFF;
+        if (precision != 8 || height == 0 || width == 0 || componentCount < 1 || componentCount > 4) {
+            return false;
+        }
+
+        components = new Component[componentCount];
+        for (int i = 0; i < componentCount; i++) {
+            final int offset = position + 6 + i * 3;
+            final Component component = new Component();
+            component.id = data[offset] & 0xFF;
+            component.h = (data[offset + 1] & 0xFF) >> 4;
+            component.v = data[offset + 1] & 0x0F;
+            component.quantTable = data[offset + 2] & 0xFF;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4 || component.quantTable > 3) {
+                return false;
+            }
+            // The rotated image codes luma with Huffman tables 0 and everything else with tables 1
+            component.table = i == 0 ? 0 : 1;
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[i] = component;
+        }
+
+        // A single component is coded block by block, the sampling factors do not matter
+        if (componentCount == 1) {
+            components[0].h = components[0].v = maxH = maxV = 1;
+        }
+
+        for (final Component component : components) {
+            if (componentCount == 1) {
+                component.blocksWide = (width + 7) / 8;
+                component.blocksHigh = (height + 7) / 8;
+            } else {
+                component.blocksWide = getMcusWide() * component.h;
+                component.blocksHigh = getMcusHigh() * component.v;
+            }
+            component.coefficients = new short[component.blocksWide * component.blocksHigh * 64];
+        }
+        return true;
+    }
+
+    /**
+     * Reads every Huffman table in a DHT segment.
+     *
+     * @param position   The start of the segment content.
+     * @param segmentEnd The end of the segment.
+     */
+    private void readHuffmanTables(int position, final int segmentEnd) {
+        while (position < segmentEnd) {
+            final int tableClass = (data[position] & 0xFF) >> 4;
+            final int tableId = data[position] & 0x0F;
+            final int[] bits = new int[17];
+            int valueCount = 0;
+            for (int i = 1; i <= 16; i++) {
+                bits[i] = data[position + i] & 0xFF;
+                valueCount += bits[i];
+            }
+            final int[] values = new int[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                values[i] = data[position + 17 + i] & 0xFF;
+            }
+            (tableClass == 0 ? dcTables : acTables)[tableId & 3] = new HuffmanTable(bits, values);
+            position += 17 + valueCount;
+        }
+    }
+
+    /**
+     * Reads every quantization table in a DQT segment.
+     *
+     * @param position   The start of the segment content.
+     * @param segmentEnd The end of the segment.
+     * @return True if the tables are valid.
+     */
+    private boolean readQuantTables(int position, final int segmentEnd) {
+        while (position < segmentEnd) {
+            final int precision = (data[position] & 0xFF) >> 4;
+            final int tableId = data[position] & 0x0F;
+            if (tableId > 3) {
+                return false;
+            }
+            position++;
+
+            final int[] table = new int[64];
+            for (int k = 0; k < 64; k++) {
+                table[ZIGZAG[k]] = precision == 0 ? data[position + k] & 0xFF : readUnsignedShort(position + k * 2);
+            }
+            quantTables[tableId] = table;
+            quantPrecisions[tableId] = precision;
+            position += precision == 0 ? 64 : 128;
+        }
+        return true;
+    }
+
+    /**
+     * Reads a scan header.
+     *
+     * @param position The start of the segment content.
+     * @return The scan, or null if it is not supported.
+     */
+    private Scan readScanHeader(final int position) {
+        final int componentCount = data[position] & 0xFF;
+        final Scan scan = new Scan(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            final int id = data[position + 1 + i * 2] & 0xFF;
+            final int tables = data[position + 2 + i * 2] & 0xFF;
+            for (final Component component : components) {
+                if (component.id == id) {
+                    scan.components[i] = component;
+                }
+            }
+            if (scan.components[i] == null) {
+                return null;
+            }
+            scan.dcTables[i] = dcTables[(tables >> 4) & 3];
+            scan.acTables[i] = acTables[tables & 3];
+        }
+
+        final int offset = position + 1 + componentCount * 2;
+        scan.spectralStart = data[offset] & 0xFF;
+        scan.spectralEnd = data[offset + 1] & 0xFF;
+        scan.successiveHigh = (data[offset + 2] & 0xFF) >> 4;
+        scan.successiveLow = data[offset + 2] & 0x0F;
+
+        final boolean progressive = frameMarker == SOF2;
+        if (!progressive && (scan.spectralStart != 0 || scan.spectralEnd != 63 || scan.successiveHigh != 0 || scan.successiveLow != 0)) {
+            return null;
+        }
+        if (scan.spectralEnd > 63 || scan.spectralStart > scan.spectralEnd || (scan.spectralStart > 0 && componentCount != 1)) {
+            return null;
+        }
+
+        // Every table the scan decodes with must be defined
+        for (int i = 0; i < componentCount; i++) {
+            if ((scan.spectralStart == 0 && scan.successiveHigh == 0 && scan.dcTables[i] == null)
+                    || (scan.spectralEnd > 0 && scan.acTables[i] == null)) {
+                return null;
+            }
+        }
+        return scan;
+    }
+
+    /**
+     * Decodes the entropy coded data of a scan into the coefficient arrays.
+     *
+     * @param scan     The scan.
+     * @param position The start of the entropy coded data.
+     * @return The position of the marker following the scan.
+     */
+    private int decodeScan(final Scan scan, final int position) {
+        final BitReader reader = new BitReader(data, position);
+        final int[] predictions = new int[scan.components.length];
+        final int[] endOfBandRun = new int[1];
+
+        // A scan of one component codes its blocks one by one, only the blocks inside the image
+        final boolean interleaved = scan.components.length > 1;
+        final int mcusWide;
+        final int mcuCount;
+        if (interleaved) {
+            mcusWide = getMcusWide();
+            mcuCount = mcusWide * getMcusHigh();
+        } else {
+            final Component component = scan.components[0];
+            mcusWide = (((width * component.h + maxH - 1) / maxH) + 7) / 8;
+            mcuCount = mcusWide * ((((height * component.v + maxV - 1) / maxV) + 7) / 8);
+        }
+
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                reader.restart();
+                Arrays.fill(predictions, 0);
+                endOfBandRun[0] = 0;
+            }
+            final int mcuX = mcu % mcusWide;
+            final int mcuY = mcu / mcusWide;
+            for (int c = 0; c < scan.components.length; c++) {
+                final Component component = scan.components[c];
+                final int h = interleaved ? component.h : 1;
+                final int v = interleaved ? component.v : 1;
+                for (int y = 0; y < v; y++) {
+                    for (int x = 0; x < h; x++) {
+                        final int offset = ((mcuY * v + y) * component.blocksWide + mcuX * h + x) * 64;
+                        predictions[c] = decodeBlock(reader, scan, c, offset, predictions[c], endOfBandRun);
+                    }
+                }
+            }
+        }
+        return reader.getMarkerPosition();
+    }
+
+    /**
+     * Decodes the part of a block a scan codes.
+     *
+     * @param reader       The reader over the entropy coded data.
+     * @param scan         The scan.
+     * @param index        The index of the component in the scan.
+     * @param offset       The offset of the block in the coefficient array.
+     * @param prediction   The DC value of the previous block of the component.
+     * @param endOfBandRun The number of following blocks without coefficients in this band, updated in place.
+     * @return The DC value of this block.
+     */
+    private int decodeBlock(final BitReader reader,
+                            final Scan scan,
+                            final int index,
+                            final int offset,
+                            final int prediction,
+                            final int[] endOfBandRun) {
+        final short[] coefficients = scan.components[index].coefficients;
+        final int low = scan.successiveLow;
+
+        // DC coefficient
+        int dc = prediction;
+        if (scan.spectralStart == 0) {
+            if (scan.successiveHigh == 0) {
+                final int dcSize = scan.dcTables[index].decode(reader);
+                dc = prediction + extend(reader.receive(dcSize), dcSize);
+                coefficients[offset] = (short) (dc << low);
+            } else if (reader.receive(1) != 0) {
+                coefficients[offset] |= (short) (1 << low);
+            }
+        }
+        if (scan.spectralEnd == 0) {
+            return dc;
+        }
+
+        // AC coefficients
+        final HuffmanTable acTable = scan.acTables[index];
+        final int start = Math.max(1, scan.spectralStart);
+        if (scan.successiveHigh == 0) {
+            if (endOfBandRun[0] > 0) {
+                endOfBandRun[0]--;
+                return dc;
+            }
+            for (int k = start; k <= scan.spectralEnd; k++) {
+                final int symbol = acTable.decode(reader);
+                final int run = symbol >> 4;
+                final int size = symbol & 0x0F;
+                if (size == 0) {
+                    if (run != 15) {
+                        // End of block, or of this band in a run of blocks
+                        endOfBandRun[0] = (1 << run) - 1 + reader.receive(run);
+                        break;
+                    }
+                    k += 15;
+                    continue;
+                }
+                k += run;
+                coefficients[offset + ZIGZAG[k & 63]] = (short) (extend(reader.receive(size), size) << low);
+            }
+            return dc;
+        }
+
+        // Refinement: one more bit for coefficients that are already nonzero, and newly nonzero ones of magnitude 1
+        final int positive = 1 << low;
+        final int negative = -1 << low;
+        int k = start;
+        if (endOfBandRun[0] == 0) {
+            for (; k <= scan.spectralEnd; k++) {
+                final int symbol = acTable.decode(reader);
+                int run = symbol >> 4;
+                int value = 0;
+                if ((symbol & 0x0F) != 0) {
+                    value = reader.receive(1) != 0 ? positive : negative;
+                } else if (run != 15) {
+                    endOfBandRun[0] = (1 << run) + reader.receive(run);
+                    break;
+                }
+
+                // Skip run zero coefficients, refining the nonzero ones on the way
+                for (; k <= scan.spectralEnd; k++) {
+                    final int position = offset + ZIGZAG[k];
+                    if (coefficients[position] != 0) {
+                        refine(reader, coefficients, position, positive, negative);
+                    } else if (--run < 0) {
+                        break;
+                    }
+                }
+                if (value != 0 && k <= scan.spectralEnd) {
+                    coefficients[offset + ZIGZAG[k]] = (short) value;
+                }
+            }
+        }
+        if (endOfBandRun[0] > 0) {
+            for (; k <= scan.spectralEnd; k++) {
+                final int position = offset + ZIGZAG[k];
+                if (coefficients[position] != 0) {
+                    refine(reader, coefficients, position, positive, negative);
+                }
+            }
+            endOfBandRun[0]--;
+        }
+        return dc;
+    }
+
+    /**
+     * Reads the correction bit of a nonzero coefficient in a refinement scan.
+     */
+    private static void refine(final BitReader reader, final short[] coefficients, final int position, final int positive, final int negative) {
+        if (reader.receive(1) != 0 && (coefficients[position] & positive) == 0) {
+            coefficients[position] += (short) (coefficients[position] >= 0 ? positive : negative);
+        }
+    }
+
+    /**
+     * Checks that no partial MCU ends up on the top or left edge of the rotated image,
+     * where it would shift the whole image.
+     *
+     * @param rotationAngle The rotation angle.
+     * @return True if the rotation is exact.
+     */
+    private boolean isExact(final int rotationAngle) {
+        final boolean widthAligned = width % (8 * maxH) == 0;
+        final boolean heightAligned = height % (8 * maxV) == 0;
+        switch (rotationAngle) {
+            case 90:
+                return heightAligned;
+            case 270:
+                return widthAligned;
+            default:
+                return widthAligned && heightAligned;
+        }
+    }
+
+    /**
+     * Writes the rotated image.
+     *
+     * @param rotationAngle The rotation angle.
+     * @return The rotated JPEG file.
+     */
+    private byte[] write(final int rotationAngle) {
+        final boolean transposed = rotationAngle != 180;
+        final BlockTransform transform = new BlockTransform(rotationAngle);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        writeMarker(out, SOI);
+        for (final byte[] segment : preservedSegments) {
+            out.write(segment, 0, segment.length);
+        }
+
+        // Quantization tables follow the coefficients through the transposition
+        for (int id = 0; id < 4; id++) {
+            if (quantTables[id] == null) {
+                continue;
+            }
+            final int precision = quantPrecisions[id];
+            writeMarker(out, DQT);
+            writeShort(out, 2 + 1 + (precision == 0 ? 64 : 128));
+            out.write((precision << 4) | id);
+            for (int k = 0; k < 64; k++) {
+                final int value = quantTables[id][transform.source[ZIGZAG[k]]];
+                if (precision != 0) {
+                    out.write(value >> 8);
+                }
+                out.write(value & 0xFF);
+            }
+        }
+
+        // Frame header with swapped dimensions and sampling factors. The rotated image is always a single
+        // sequential scan, baseline unless a quantization table needs 16-bit precision.
+        boolean extended = false;
+        for (final Component component : components) {
+            extended |= quantPrecisions[component.quantTable] != 0;
+        }
+        writeMarker(out, extended ? SOF1 : SOF0);
+        writeShort(out, 8 + components.length * 3);
+        out.write(8);
+        writeShort(out, transposed ? width : height);
+        writeShort(out, transposed ? height : width);
+        out.write(components.length);
+        for (final Component component : components) {
+            out.write(component.id);
+            out.write(transposed ? (component.v << 4) | component.h : (component.h << 4) | component.v);
+            out.write(component.quantTable);
+        }
+
+        // Two passes over the rotated blocks: one to build optimal Huffman tables, one to write the scan
+        final ScanEncoder counter = new ScanEncoder(null, null, null);
+        encodeScan(counter, transform);
+        final HuffmanTable[] outputDcTables = new HuffmanTable[4];
+        final HuffmanTable[] outputAcTables = new HuffmanTable[4];
+        writeMarker(out, DHT);
+        final ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        for (int id = 0; id < 4; id++) {
+            if (counter.dcFrequencies[id] != null) {
+                outputDcTables[id] = HuffmanTable.optimal(counter.dcFrequencies[id]);
+                outputDcTables[id].writeTo(tables, id);
+            }
+        }
+        for (int id = 0; id < 4; id++) {
+            if (counter.acFrequencies[id] != null) {
+                outputAcTables[id] = HuffmanTable.optimal(counter.acFrequencies[id]);
+                outputAcTables[id].writeTo(tables, 0x10 | id);
+            }
+        }
+        writeShort(out, tables.size() + 2);
+        out.write(tables.toByteArray(), 0, tables.size());
+
+        writeMarker(out, SOS);
+        writeShort(out, 6 + components.length * 2);
+        out.write(components.length);
+        for (final Component component : components) {
+            out.write(component.id);
+            out.write((component.table << 4) | component.table);
+        }
+        out.write(0);
+        out.write(63);
+        out.write(0);
+
+        final BitWriter writer = new BitWriter(out);
+        encodeScan(new ScanEncoder(writer, outputDcTables, outputAcTables), transform);
+        writer.flush();
+
+        writeMarker(out, EOI);
+        return out.toByteArray();
+    }
+
+    /**
+     * Encodes every block of the rotated image in scan order.
+     *
+     * @param encoder   The encoder to pass the blocks to.
+     * @param transform The rotation applied to every block.
+     */
+    private void encodeScan(final ScanEncoder encoder, final BlockTransform transform) {
+        final boolean transposed = transform.rotationAngle != 180;
+        final int[] predictions = new int[components.length];
+        final short[] block = new short[64];
+
+        final int mcusWide;
+        final int mcusHigh;
+        if (components.length == 1) {
+            mcusWide = transposed ? components[0].blocksHigh : components[0].blocksWide;
+            mcusHigh = transposed ? components[0].blocksWide : components[0].blocksHigh;
+        } else {
+            mcusWide = transposed ? getMcusHigh() : getMcusWide();
+            mcusHigh = transposed ? getMcusWide() : getMcusHigh();
+        }
+
+        for (int mcuY = 0; mcuY < mcusHigh; mcuY++) {
+            for (int mcuX = 0; mcuX < mcusWide; mcuX++) {
+                for (int c = 0; c < components.length; c++) {
+                    final Component component = components[c];
+                    final int h = transposed ? component.v : component.h;
+                    final int v = transposed ? component.h : component.v;
+                    for (int y = 0; y < v; y++) {
+                        for (int x = 0; x < h; x++) {
+                            final int offset = transform.getSourceBlock(component, mcuX * h + x, mcuY * v + y) * 64;
+                            for (int i = 0; i < 64; i++) {
+                                block[i] = (short) (component.coefficients[offset + transform.source[i]] * transform.sign[i]);
+                            }
+                            predictions[c] = encoder.encodeBlock(block, component, predictions[c]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private int getMcusWide() {
+        return (width + 8 * maxH - 1) / (8 * maxH);
+    }
+
+    private int getMcusHigh() {
+        return (height + 8 * maxV - 1) / (8 * maxV);
+    }
+
+    private int readUnsignedShort(final int position) {
+        return ((data[position] & 0xFF) << 8) | (data[position + 1] & 0xFF);
+    }
+
+    private static void writeMarker(final ByteArrayOutputStream out, final int marker) {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value >> 8);
+        out.write(value & 0xFF);
+    }
+
+    /**
+     * Converts the raw bits of a coefficient to its signed value.
+     *
+     * @param bits The bits read for the coefficient.
+     * @param size The number of bits.
+     * @return The coefficient.
+     */
+    private static int extend(final int bits, final int size) {
+        return size == 0 || bits >= 1 << (size - 1) ? bits : bits - (1 << size) + 1;
+    }
+
+    /**
+     * Returns the number of bits needed to code a coefficient, its magnitude category.
+     *
+     * @param value The coefficient.
+     * @return The category.
+     */
+    private static int getSize(final int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+
+    /**
+     * A color component of the frame and its coefficients.
+     */
+    private static class Component {
+        private int id;
+        private int h;
+        private int v;
+        private int quantTable;
+        private int table;
+        private int blocksWide;
+        private int blocksHigh;
+        private short[] coefficients;
+    }
+
+    /**
+     * A scan: the components it covers, the tables it decodes with and the coefficient bits it holds.
+     */
+    private static class Scan {
+        private final Component[] components;
+        private final HuffmanTable[] dcTables;
+        private final HuffmanTable[] acTables;
+        private int spectralStart;
+        private int spectralEnd;
+        private int successiveHigh;
+        private int successiveLow;
+
+        Scan(final int componentCount) {
+            components = new Component[componentCount];
+            dcTables = new HuffmanTable[componentCount];
+            acTables = new HuffmanTable[componentCount];
+        }
+    }
+
+    /**
+     * Where each block and each coefficient of the rotated image comes from.
+     *
+     * Rotating a block by 90 degrees clockwise is a transposition followed by a horizontal flip, 270 degrees
+     * is a transposition followed by a vertical flip and 180 degrees flips both ways. In the DCT domain a
+     * flip negates the odd frequencies along the flipped axis.
+     */
+    private static class BlockTransform {
+        private final int rotationAngle;
+
+        /**
+         * For each coefficient of a rotated block, the index of the coefficient it is copied from.
+         */
+        private final int[] source = new int[64];
+
+        /**
+         * For each coefficient of a rotated block, 1 or -1.
+         */
+        private final int[] sign = new int[64];
+
+        BlockTransform(final int rotationAngle) {
+            this.rotationAngle = rotationAngle;
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    final int i = v * 8 + u;
+                    switch (rotationAngle) {
+                        case 90:
+                            source[i] = u * 8 + v;
+                            sign[i] = (u & 1) == 0 ? 1 : -1;
+                            break;
+                        case 270:
+                            source[i] = u * 8 + v;
+                            sign[i] = (v & 1) == 0 ? 1 : -1;
+                            break;
+                        default:
+                            source[i] = i;
+                            sign[i] = ((u + v) & 1) == 0 ? 1 : -1;
+                            break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the block of the source image that ends up at a position of the rotated image.
+         *
+         * @param component The component.
+         * @param x         The column of the block in the rotated image.
+         * @param y         The row of the block in the rotated image.
+         * @return The index of the source block.
+         */
+        int getSourceBlock(final Component component, final int x, final int y) {
+            switch (rotationAngle) {
+                case 90:
+                    return (component.blocksHigh - 1 - x) * component.blocksWide + y;
+                case 270:
+                    return x * component.blocksWide + (component.blocksWide - 1 - y);
+                default:
+                    return (component.blocksHigh - 1 - y) * component.blocksWide + (component.blocksWide - 1 - x);
+            }
+        }
+    }
+
+    /**
+     * Huffman codes a scan, or only counts the symbols it would code to build optimal tables.
+     */
+    private static class ScanEncoder {
+        private final BitWriter writer;
+        private final HuffmanTable[] dcTables;
+        private final HuffmanTable[] acTables;
+        private final int[][] dcFrequencies = new int[4][];
+        private final int[][] acFrequencies = new int[4][];
+
+        /**
+         * @param writer   The writer to code the scan to, or null to count symbols.
+         * @param dcTables The DC tables to code with.
+         * @param acTables The AC tables to code with.
+         */
+        ScanEncoder(final BitWriter writer, final HuffmanTable[] dcTables, final HuffmanTable[] acTables) {
+            this.writer = writer;
+            this.dcTables = dcTables;
+            this.acTables = acTables;
+        }
+
+        /**
+         * Codes one block.
+         *
+         * @param block      The coefficients in natural order.
+         * @param component  The component the block belongs to.
+         * @param prediction The DC value of the previous block of the component.
+         * @return The DC value of this block.
+         */
+        int encodeBlock(final short[] block, final Component component, final int prediction) {
+            final int difference = block[0] - prediction;
+            final int dcSize = getSize(difference);
+            emit(dcTables, dcFrequencies, component.table, dcSize);
+            emitBits(difference, dcSize);
+
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                final int value = block[ZIGZAG[k]];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    emit(acTables, acFrequencies, component.table, 0xF0);
+                    run -= 16;
+                }
+                final int size = getSize(value);
+                emit(acTables, acFrequencies, component.table, (run << 4) | size);
+                emitBits(value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                emit(acTables, acFrequencies, component.table, 0x00);
+            }
+            return block[0];
+        }
+
+        private void emit(final HuffmanTable[] tables, final int[][] frequencies, final int table, final int symbol) {
+            if (writer == null) {
+                if (frequencies[table] == null) {
+                    frequencies[table] = new int[257];
+                }
+                frequencies[table][symbol]++;
+            } else {
+                writer.write(tables[table].codes[symbol], tables[table].codeLengths[symbol]);
+            }
+        }
+
+        private void emitBits(final int value, final int size) {
+            if (writer != null && size > 0) {
+                // Negative values are coded as value - 1 in ones' complement
+                writer.write((value < 0 ? value - 1 : value) & ((1 << size) - 1), size);
+            }
+        }
+    }
+
+    /**
+     * A Huffman table, usable for decoding and encoding.
+     */
+    private static class HuffmanTable {
+
+        /**
+         * Number of bits looked up at once while decoding.
+         */
+        private static final int LOOKUP_BITS = 9;
+
+        private final int[] bits;
+        private final int[] values;
+
+        // Decoding
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[18];
+        private final int[] minCode = new int[17];
+        private final int[] valuePointer = new int[17];
+
+        // Encoding, indexed by symbol
+        private final int[] codes = new int[256];
+        private final int[] codeLengths = new int[256];
+
+        HuffmanTable(final int[] bits, final int[] values) {
+            this.bits = bits;
+            this.values = values;
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                minCode[length] = code;
+                valuePointer[length] = k;
+                for (int i = 0; i < bits[length]; i++) {
+                    final int symbol = values[k++];
+                    codes[symbol] = code;
+                    codeLengths[symbol] = length;
+                    if (length <= LOOKUP_BITS) {
+                        final int start = code << (LOOKUP_BITS - length);
+                        final int count = 1 << (LOOKUP_BITS - length);
+                        for (int j = 0; j < count; j++) {
+                            lookup[start + j] = (length << 8) | symbol;
+                        }
+                    }
+                    code++;
+                }
+                maxCode[length] = bits[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        /**
+         * Decodes one symbol.
+         *
+         * @param reader The reader over the entropy coded data.
+         * @return The symbol.
+         */
+        int decode(final BitReader reader) {
+            final int entry = lookup[reader.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                final int code = reader.peek(length);
+                if (code <= maxCode[length]) {
+                    reader.skip(length);
+                    return values[valuePointer[length] + code - minCode[length]];
+                }
+            }
+            throw new IllegalStateException("Invalid Huffman code");
+        }
+
+        /**
+         * Writes the table as part of a DHT segment.
+         *
+         * @param out         The stream to write to.
+         * @param classAndId  The table class in the high nibble and the table id in the low nibble.
+         */
+        void writeTo(final ByteArrayOutputStream out, final int classAndId) {
+            out.write(classAndId);
+            for (int length = 1; length <= 16; length++) {
+                out.write(bits[length]);
+            }
+            for (final int value : values) {
+                out.write(value);
+            }
+        }
+
+        /**
+         * Builds the optimal table for the given symbol frequencies, limited to 16-bit codes as described in
+         * section K.2 of the JPEG specification.
+         *
+         * @param symbolFrequencies The number of times each symbol is used, with one extra slot at the end.
+         * @return The table.
+         */
+        static HuffmanTable optimal(final int[] symbolFrequencies) {
+            final long[] frequencies = new long[257];
+            for (int i = 0; i < 256; i++) {
+                frequencies[i] = symbolFrequencies[i];
+            }
+            // Reserve one code point, so no code consists of only 1 bits
+            frequencies[256] = 1;
+
+            final int[] codeSize = new int[257];
+            final int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                // Find the two least frequent symbols, preferring the higher symbol on ties
+                int c1 = -1;
+                long least = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] != 0 && frequencies[i] <= least) {
+                        least = frequencies[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                least = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequencies[i] != 0 && frequencies[i] <= least && i != c1) {
+                        least = frequencies[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+
+                frequencies[c1] += frequencies[c2];
+                frequencies[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            final int[] lengthCounts = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    lengthCounts[codeSize[i]]++;
+                }
+            }
+
+            // Shorten codes longer than 16 bits
+            for (int i = 32; i > 16; i--) {
+                while (lengthCounts[i] > 0) {
+                    int j = i - 2;
+                    while (lengthCounts[j] == 0) {
+                        j--;
+                    }
+                    lengthCounts[i] -= 2;
+                    lengthCounts[i - 1]++;
+                    lengthCounts[j + 1] += 2;
+                    lengthCounts[j]--;
+                }
+            }
+
+            // Drop the reserved code point, which has the longest code
+            int longest = 16;
+            while (lengthCounts[longest] == 0) {
+                longest--;
+            }
+            lengthCounts[longest]--;
+
+            final int[] bits = new int[17];
+            System.arraycopy(lengthCounts, 0, bits, 0, 17);
+            int valueCount = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueCount += bits[length];
+            }
+
+            // Symbols sorted by code length, the order does not matter within a length
+            final int[] values = new int[valueCount];
+            int k = 0;
+            for (int length = 1; length <= 32 && k < valueCount; length++) {
+                for (int symbol = 0; symbol < 256 && k < valueCount; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        values[k++] = symbol;
+                    }
+                }
+            }
+            return new HuffmanTable(bits, values);
+        }
+    }
+
+    /**
+     * Reads bits from entropy coded data, removing stuffed zero bytes and stopping at markers.
+     */
+    private static class BitReader {
+        private final byte[] data;
+        private int position;
+        private long buffer;
+        private int bitCount;
+
+        BitReader(final byte[] data, final int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        int peek(final int count) {
+            if (bitCount < count) {
+                fill();
+            }
+            return (int) (buffer >>> (bitCount - count)) & ((1 << count) - 1);
+        }
+
+        void skip(final int count) {
+            bitCount -= count;
+        }
+
+        int receive(final int count) {
+            if (count == 0) {
+                return 0;
+            }
+            final int value = peek(count);
+            skip(count);
+            return value;
+        }
+
+        /**
+         * Skips to the next restart marker and past it.
+         */
+        void restart() {
+            buffer = 0;
+            bitCount = 0;
+            while (position + 1 < data.length) {
+                if ((data[position] & 0xFF) == 0xFF) {
+                    final int marker = data[position + 1] & 0xFF;
+                    if (marker >= 0xD0 && marker <= 0xD7) {
+                        position += 2;
+                        return;
+                    }
+                    if (marker != 0x00 && marker != 0xFF) {
+                        return;
+                    }
+                }
+                position++;
+            }
+        }
+
+        /**
+         * Returns the position of the marker after the data that was read.
+         *
+         * @return The position of the marker.
+         */
+        int getMarkerPosition() {
+            int markerPosition = position;
+            while (markerPosition + 1 < data.length) {
+                if ((data[markerPosition] & 0xFF) == 0xFF) {
+                    final int marker = data[markerPosition + 1] & 0xFF;
+                    if (marker != 0x00 && !(marker >= 0xD0 && marker <= 0xD7)) {
+                        return markerPosition;
+                    }
+                }
+                markerPosition++;
+            }
+            return data.length - 2;
+        }
+
+        private void fill() {
+            while (bitCount <= 56) {
+                int b = 0;
+                if (position < data.length) {
+                    b = data[position] & 0xFF;
+                    if (b == 0xFF) {
+                        final int next = position + 1 < data.length ? data[position + 1] & 0xFF : 0;
+                        if (next == 0x00) {
+                            position += 2;
+                        } else {
+                            // A marker ends the data, pad with zero bits without consuming it
+                            b = 0;
+                        }
+                    } else {
+                        position++;
+                    }
+                }
+                buffer = (buffer << 8) | b;
+                bitCount += 8;
+            }
+        }
+    }
+
+    /**
+     * Writes bits to entropy coded data, stuffing a zero byte after every 0xFF.
+     */
+    private static class BitWriter {
+        private final ByteArrayOutputStream out;
+        private long buffer;
+        private int bitCount;
+
+        BitWriter(final ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        void write(final int bits, final int count) {
+            buffer = (buffer << count) | bits;
+            bitCount += count;
+            while (bitCount >= 8) {
+                final int b = (int) (buffer >>> (bitCount - 8)) & 0xFF;
+                out.write(b);
+                if (b == 0xFF) {
+                    out.write(0);
+                }
+                bitCount -= 8;
+            }
+        }
+
+        /**
+         * Pads the last byte with 1 bits.
+         */
+        void flush() {
+            if (bitCount > 0) {
+                write((1 << (8 - bitCount)) - 1, 8 - bitCount);
+            }
+        }
+    }
+
+}
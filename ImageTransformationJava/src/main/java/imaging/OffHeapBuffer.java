@@ -0,0 +1,201 @@
+package imaging;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Scratch floats for kernels, stored outside the Java heap.
+ *
+ *  Large intermediate buffers, e.g. the horizontal pass of a resize, would otherwise be allocated straight
+ *  into the old generation of a small heap and only be reclaimed by a full collection. Direct memory is freed
+ *  as soon as a buffer is closed instead of when the collector finds it. Small buffers stay on the heap behind
+ *  the same interface. Kernels close their buffers when they are done, and Main releases any buffer still open
+ *  at the end of every invocation whose kernel can no longer run. A buffer must not be used once it is closed.
+ */
+public final class OffHeapBuffer implements AutoCloseable {
+
+    /**
+     * The smallest buffer kept off the heap, in bytes. Smaller buffers are cheaper to allocate on the heap,
+     * where the collector reclaims them with the young generation.
+     */
+    private static final int MIN_OFF_HEAP_BYTES = 1024 * 1024;
+
+    /**
+     * Frees the memory of a direct buffer, sun.misc.Unsafe.invokeCleaner, or null if it is not available and
+     * the memory is left to the collector.
+     */
+    private static final Cleaner CLEANER = findCleaner();
+
+    /**
+     * The buffers that are not closed yet.
+     */
+    private static final Map<OffHeapBuffer, Boolean> OPEN = new IdentityHashMap<>();
+
+    private static long openBytes;
+    private static long peakBytes;
+
+    /**
+     * The direct memory of the buffer, or null if it is on the heap.
+     */
+    private final ByteBuffer memory;
+    private final FloatBuffer floats;
+
+    /**
+     * The thread of the kernel that allocated the buffer. Bands on other threads end before the kernel does.
+     */
+    private final Thread owner;
+    private boolean closed;
+
+
+    private OffHeapBuffer(final ByteBuffer memory, final FloatBuffer floats) {
+        this.memory = memory;
+        this.floats = floats;
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * Allocates zeroed floats, off the heap if there are enough of them.
+     *
+     * @param count The number of floats.
+     * @return The buffer, to close when done.
+     */
+    public static OffHeapBuffer allocateFloats(final int count) {
+        if (count > Integer.MAX_VALUE / Float.BYTES) {
+            throw new IllegalArgumentException("Too many floats for one buffer: " + count);
+        }
+        if (count * Float.BYTES < MIN_OFF_HEAP_BYTES) {
+            return new OffHeapBuffer(null, FloatBuffer.wrap(new float[count]));
+        }
+        final ByteBuffer memory = ByteBuffer.allocateDirect(count * Float.BYTES).order(ByteOrder.nativeOrder());
+        final OffHeapBuffer buffer = new OffHeapBuffer(memory, memory.asFloatBuffer());
+        synchronized (OPEN) {
+            OPEN.put(buffer, Boolean.TRUE);
+            openBytes += buffer.memory.capacity();
+            peakBytes = Math.max(peakBytes, openBytes);
+        }
+        return buffer;
+    }
+
+    /**
+     * Copies floats out of the buffer. Kernels work on the copy, loops over arrays are vectorized by the JIT,
+     * loops over buffers are not.
+     *
+     * @param index       The index of the first float to copy.
+     * @param destination The array to copy to.
+     * @param offset      The index in the array of the first float.
+     * @param length      The number of floats.
+     */
+    public void getFloats(final int index, final float[] destination, final int offset, final int length) {
+        floats.get(index, destination, offset, length);
+    }
+
+    /**
+     * Copies floats into the buffer.
+     *
+     * @param index  The index in the buffer of the first float.
+     * @param source The array to copy from.
+     * @param offset The index of the first float to copy.
+     * @param length The number of floats.
+     */
+    public void putFloats(final int index, final float[] source, final int offset, final int length) {
+        floats.put(index, source, offset, length);
+    }
+
+    /**
+     * Frees the memory of the buffer. Does nothing if it is already closed.
+     */
+    @Override
+    public void close() {
+        if (memory == null) {
+            return;
+        }
+        synchronized (OPEN) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            OPEN.remove(this);
+            openBytes -= memory.capacity();
+        }
+        if (CLEANER != null) {
+            try {
+                CLEANER.clean(memory);
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes every open buffer no kernel can still use. Called once the invocation that allocated them has
+     * finished. A buffer allocated by the calling thread or by a thread that has ended is freed. A buffer
+     * allocated by another thread that is still running, e.g. a stage thread the invocation stopped waiting for,
+     * may still be in use by its kernel, which frees it when it is done.
+     *
+     * @return The number of bytes freed.
+     */
+    public static long releaseAll() {
+        final List<OffHeapBuffer> buffers;
+        synchronized (OPEN) {
+            buffers = new ArrayList<>(OPEN.keySet());
+        }
+        long released = 0;
+        for (final OffHeapBuffer buffer : buffers) {
+            if (buffer.owner == Thread.currentThread() || !buffer.owner.isAlive()) {
+                released += buffer.memory.capacity();
+                buffer.close();
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Returns the largest number of bytes open at once since the last call, and starts measuring again.
+     *
+     * @return The peak, in bytes.
+     */
+    public static long resetPeakBytes() {
+        synchronized (OPEN) {
+            final long peak = peakBytes;
+            peakBytes = openBytes;
+            return peak;
+        }
+    }
+
+    /**
+     * Frees the memory of a direct buffer.
+     */
+    @FunctionalInterface
+    private interface Cleaner {
+        void clean(final ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Looks up sun.misc.Unsafe.invokeCleaner, the only way to free a direct buffer before it is collected.
+     *
+     * @return The cleaner, or null if the JVM does not expose it.
+     */
+    private static Cleaner findCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package imaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Splits image kernels into bands of rows and runs them on a container-scoped pool.
+ *
+ *  Small images run on the calling thread, where handing work to other threads would cost more than it saves.
+ *  The number of threads defaults to the number of available processors and can be set with IMAGE_THREADS,
+ *  1 disables parallelism.
+ */
+public class Parallel {
+
+    /**
+     * Environment variable holding the number of threads used by image kernels.
+     */
+    public static final String THREADS_ENV = "IMAGE_THREADS";
+
+    /**
+     * The smallest amount of pixels worth handing to another thread.
+     */
+    private static final long MIN_PIXELS_PER_BAND = 64 * 1024;
+
+    /**
+     * Bands per thread, so threads that finish early can take over work.
+     */
+    private static final int BANDS_PER_THREAD = 4;
+
+    private static final int THREADS = getThreadCount();
+
+    /**
+     * The pool running the bands, or null if parallelism is disabled.
+     */
+    private static final ForkJoinPool POOL = THREADS > 1 ? new ForkJoinPool(THREADS) : null;
+
+
+    /**
+     * Work on a band of rows.
+     */
+    @FunctionalInterface
+    public interface BandTask {
+        /**
+         * @param startRow The first row of the band.
+         * @param endRow   The row after the last row of the band.
+         */
+        void run(final int startRow, final int endRow);
+    }
+
+    /**
+     * Runs a task over every row, split into bands that run in parallel if the image is large enough.
+     * Returns once every band has finished, also if a band fails, so no band outlives the buffers of the caller.
+     *
+     * @param rows         The number of rows.
+     * @param pixelsPerRow The number of pixels processed per row, to size the bands.
+     * @param task         The work on a band of rows.
+     */
+    public static void forEachBand(final int rows, final int pixelsPerRow, final BandTask task) {
+        final long pixels = (long) rows * pixelsPerRow;
+        final int bands = (int) Math.min(Math.min(rows, (long) THREADS * BANDS_PER_THREAD), pixels / MIN_PIXELS_PER_BAND);
+        if (POOL == null || bands <= 1) {
+            task.run(0, rows);
+            return;
+        }
+
+        final int rowsPerBand = (rows + bands - 1) / bands;
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int startRow = rowsPerBand; startRow < rows; startRow += rowsPerBand) {
+            final int start = startRow;
+            tasks.add(POOL.submit(() -> task.run(start, Math.min(rows, start + rowsPerBand))));
+        }
+
+        // The calling thread takes the first band instead of waiting idle
+        Throwable failure = null;
+        try {
+            task.run(0, Math.min(rows, rowsPerBand));
+        } catch (final RuntimeException | Error e) {
+            failure = e;
+        }
+        for (final ForkJoinTask<?> band : tasks) {
+            try {
+                band.join();
+            } catch (final RuntimeException | Error e) {
+                failure = failure != null ? failure : e;
+            }
+        }
+
+        // Only the first failure is rethrown, the others usually have the same cause
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw (Error) failure;
+        }
+    }
+
+    /**
+     * Returns the number of threads image kernels run on.
+     *
+     * @return The thread count.
+     */
+    public static int getThreads() {
+        return THREADS;
+    }
+
+    /**
+     * Reads the thread count from the environment.
+     *
+     * @return The number of threads.
+     */
+    private static int getThreadCount() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getenv(THREADS_ENV)));
+        } catch (final Exception ignored) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+}
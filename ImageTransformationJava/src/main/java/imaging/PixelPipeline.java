@@ -0,0 +1,368 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.List;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Runs a chain of grayscale, brightness and rotation stages as a single pass over the image.
+ *
+ *  The stages are compiled before any pixel is touched: rotations add up to one rotation, brightness lookup
+ *  tables applied before and after the grayscale conversion are composed into one table each, and a repeated
+ *  grayscale conversion does nothing. Every source pixel is then read once, run through the compiled color
+ *  program and written to its rotated position in the only image allocated. The output is identical to running
+ *  the stages one by one with ImageRotator, GrayscaleConverter and BrightnessAdjuster.
+ */
+public class PixelPipeline {
+
+    /**
+     * Width and height of a tile, in pixels.
+     */
+    private static final int TILE_SIZE = 32;
+
+
+    /**
+     * A step of the pipeline.
+     */
+    public static final class Stage {
+        private final GrayscaleConverter.Luma luma;
+        private final float brightnessFactor;
+        private final int rotationAngle;
+
+        private Stage(final GrayscaleConverter.Luma luma, final float brightnessFactor, final int rotationAngle) {
+            this.luma = luma;
+            this.brightnessFactor = brightnessFactor;
+            this.rotationAngle = rotationAngle;
+        }
+
+        /**
+         * Returns the luma weights of a grayscale stage.
+         *
+         * @return The luma weights, or null if this is not a grayscale stage.
+         */
+        public GrayscaleConverter.Luma getLuma() {
+            return luma;
+        }
+
+        /**
+         * Returns the brightness factor of a brightness stage.
+         *
+         * @return The brightness factor, 1 if this is not a brightness stage.
+         */
+        public float getBrightnessFactor() {
+            return brightnessFactor;
+        }
+
+        /**
+         * Returns the angle of a rotation stage.
+         *
+         * @return The clockwise rotation angle, 0 if this is not a rotation stage.
+         */
+        public int getRotationAngle() {
+            return rotationAngle;
+        }
+    }
+
+    /**
+     * Creates a grayscale conversion stage.
+     *
+     * @param luma The luma weights.
+     * @return The stage.
+     */
+    public static Stage grayscale(final GrayscaleConverter.Luma luma) {
+        return new Stage(luma, 1, 0);
+    }
+
+    /**
+     * Creates a brightness stage.
+     *
+     * @param factor The brightness factor, see BrightnessAdjuster.
+     * @return The stage.
+     */
+    public static Stage brightness(final float factor) {
+        return new Stage(null, factor, 0);
+    }
+
+    /**
+     * Creates a clockwise rotation stage.
+     *
+     * @param angle The rotation angle, 90, 180 or 270 degrees.
+     * @return The stage.
+     */
+    public static Stage rotation(final int angle) {
+        return new Stage(null, 1, angle);
+    }
+
+    /**
+     * Runs stages over an image produced in strips, one strip at a time. A 180 degree rotation rotates every
+     * strip and reverses their order, other rotations would need the whole image and are not supported.
+     *
+     * @param source The strips.
+     * @param stages The stages, in order, rotating by 0 or 180 degrees in total.
+     * @return The output strips, see run.
+     * @throws IOException If the image has to be spooled to reverse its strips and that fails.
+     */
+    public static StripSource run(final StripSource source, final List<Stage> stages) throws IOException {
+        int angle = 0;
+        for (final Stage stage : stages) {
+            angle = (angle + stage.rotationAngle) % 360;
+        }
+        if (angle != 0 && angle != 180) {
+            throw new IllegalArgumentException("Strips can only be rotated by 180 degrees, not " + angle);
+        }
+        final StripSource strips = Strips.map(source, strip -> run(strip, stages));
+        return angle == 180 ? Strips.reverse(strips) : strips;
+    }
+
+    /**
+     * Runs stages over an image. The source image is not modified.
+     *
+     * @param image  The image, converted to a canonical layout first if needed, see CanonicalLayout.
+     * @param stages The stages, in order.
+     * @return The output of the last stage. A TYPE_BYTE_GRAY image if there is a grayscale stage, an image of the
+     *         source type otherwise.
+     */
+    public static BufferedImage run(final BufferedImage image, final List<Stage> stages) {
+        if (!CanonicalLayout.isCanonical(image)) {
+            return run(CanonicalLayout.toCanonical(image), stages);
+        }
+
+        // Compile the stages
+        int angle = 0;
+        GrayscaleConverter.Luma luma = null;
+        byte[] beforeGrayscale = BrightnessAdjuster.createLookupTable(1);
+        byte[] afterGrayscale = BrightnessAdjuster.createLookupTable(1);
+        for (final Stage stage : stages) {
+            angle = (angle + stage.rotationAngle) % 360;
+            if (stage.luma != null && luma == null) {
+                luma = stage.luma;
+            } else if (stage.brightnessFactor != 1) {
+                final byte[] lookupTable = BrightnessAdjuster.createLookupTable(stage.brightnessFactor);
+                if (luma == null) {
+                    beforeGrayscale = compose(beforeGrayscale, lookupTable);
+                } else {
+                    afterGrayscale = compose(afterGrayscale, lookupTable);
+                }
+            }
+        }
+
+        final int sourceType = image.getType();
+        final boolean grayOutput = luma != null || sourceType == BufferedImage.TYPE_BYTE_GRAY;
+        final boolean hasAlpha = image.getColorModel().hasAlpha();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final boolean transposed = angle == 90 || angle == 270;
+        final int targetWidth = transposed ? height : width;
+        final int targetHeight = transposed ? width : height;
+        final BufferedImage target = grayOutput
+                ? BufferPool.borrowImage(targetWidth, targetHeight, BufferedImage.TYPE_BYTE_GRAY)
+                : Rasters.createCompatibleImage(image, targetWidth, targetHeight);
+
+        final WritableRaster sourceRaster = image.getRaster();
+        final WritableRaster targetRaster = target.getRaster();
+        final int sourceStride = Rasters.getScanlineStride(sourceRaster);
+        final int sourcePixelStride = Rasters.getElementsPerPixel(sourceRaster);
+        final int targetStride = Rasters.getScanlineStride(targetRaster);
+        final int targetPixelStride = Rasters.getElementsPerPixel(targetRaster);
+        final int[] sourceInts = sourceRaster.getDataBuffer() instanceof DataBufferInt ? ((DataBufferInt) sourceRaster.getDataBuffer()).getData() : null;
+        final byte[] sourceBytes = sourceInts == null ? ((DataBufferByte) sourceRaster.getDataBuffer()).getData() : null;
+        final int[] targetInts = targetRaster.getDataBuffer() instanceof DataBufferInt ? ((DataBufferInt) targetRaster.getDataBuffer()).getData() : null;
+        final byte[] targetBytes = targetInts == null ? ((DataBufferByte) targetRaster.getDataBuffer()).getData() : null;
+        final int targetType = target.getType();
+
+        // Where the first pixel of a source row goes, and how far apart the target elements of a row are
+        final int rotation = angle;
+        final int step;
+        switch (rotation) {
+            case 90:
+                step = targetStride;
+                break;
+            case 180:
+                step = -targetPixelStride;
+                break;
+            case 270:
+                step = -targetStride;
+                break;
+            default:
+                step = targetPixelStride;
+                break;
+        }
+
+        final GrayscaleConverter.Luma weights = luma;
+        final byte[] before = beforeGrayscale;
+        final byte[] after = afterGrayscale;
+        final int segmentWidth = transposed ? TILE_SIZE : width;
+
+        Parallel.forEachBand((height + TILE_SIZE - 1) / TILE_SIZE, width * TILE_SIZE, (startTile, endTile) -> {
+            final int[] pixels = new int[segmentWidth];
+            for (int tileY = startTile * TILE_SIZE; tileY < Math.min(height, endTile * TILE_SIZE); tileY += TILE_SIZE) {
+                final int tileEndY = Math.min(height, tileY + TILE_SIZE);
+                for (int tileX = 0; tileX < width; tileX += segmentWidth) {
+                    final int count = Math.min(width - tileX, segmentWidth);
+                    for (int y = tileY; y < tileEndY; y++) {
+                        readPixels(sourceType, sourceInts, sourceBytes, y * sourceStride + tileX * sourcePixelStride, pixels, count);
+                        if (weights != null) {
+                            toGray(pixels, count, before, weights, after, hasAlpha);
+                        } else {
+                            applyLookupTable(pixels, count, before, grayOutput);
+                        }
+
+                        final int rowStart;
+                        switch (rotation) {
+                            case 90:
+                                rowStart = (height - 1 - y) * targetPixelStride;
+                                break;
+                            case 180:
+                                rowStart = (height - 1 - y) * targetStride + (width - 1) * targetPixelStride;
+                                break;
+                            case 270:
+                                rowStart = (width - 1) * targetStride + y * targetPixelStride;
+                                break;
+                            default:
+                                rowStart = y * targetStride;
+                                break;
+                        }
+                        writePixels(targetType, targetInts, targetBytes, rowStart + tileX * step, step, pixels, count);
+                    }
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * Reads consecutive source pixels as ARGB values.
+     */
+    private static void readPixels(final int type, final int[] ints, final byte[] bytes, final int offset, final int[] pixels, final int count) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+                for (int x = 0; x < count; x++) {
+                    pixels[x] = 0xFF000000 | ints[offset + x];
+                }
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                System.arraycopy(ints, offset, pixels, 0, count);
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                for (int x = 0, i = offset; x < count; x++, i += 3) {
+                    final int b = bytes[i] & 0xFF;
+                    final int g = bytes[i + 1] & 0xFF;
+                    final int r = bytes[i + 2] & 0xFF;
+                    pixels[x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                for (int x = 0, i = offset; x < count; x++, i += 4) {
+                    final int a = bytes[i] & 0xFF;
+                    final int b = bytes[i + 1] & 0xFF;
+                    final int g = bytes[i + 2] & 0xFF;
+                    final int r = bytes[i + 3] & 0xFF;
+                    pixels[x] = (a << 24) | (r << 16) | (g << 8) | b;
+                }
+                break;
+            default:
+                for (int x = 0; x < count; x++) {
+                    pixels[x] = 0xFF000000 | (bytes[offset + x] & 0xFF) * 0x010101;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Applies a lookup table to the color samples of ARGB values.
+     */
+    private static void applyLookupTable(final int[] pixels, final int count, final byte[] lookupTable, final boolean gray) {
+        for (int x = 0; x < count; x++) {
+            final int pixel = pixels[x];
+            if (gray) {
+                pixels[x] = lookupTable[pixel & 0xFF] & 0xFF;
+            } else {
+                pixels[x] = (pixel & 0xFF000000)
+                        | (lookupTable[(pixel >> 16) & 0xFF] & 0xFF) << 16
+                        | (lookupTable[(pixel >> 8) & 0xFF] & 0xFF) << 8
+                        | (lookupTable[pixel & 0xFF] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Converts ARGB values to gray values, with a lookup table applied before and after the conversion.
+     */
+    private static void toGray(final int[] pixels, final int count, final byte[] before, final GrayscaleConverter.Luma luma,
+                               final byte[] after, final boolean hasAlpha) {
+        for (int x = 0; x < count; x++) {
+            final int pixel = pixels[x];
+            final int r = before[(pixel >> 16) & 0xFF] & 0xFF;
+            final int g = before[(pixel >> 8) & 0xFF] & 0xFF;
+            final int b = before[pixel & 0xFF] & 0xFF;
+            int gray = luma.luma(r, g, b);
+            if (hasAlpha) {
+                gray = GrayscaleConverter.overBlack(pixel >>> 24, gray);
+            }
+            pixels[x] = after[gray] & 0xFF;
+        }
+    }
+
+    /**
+     * Writes ARGB values, or gray values for a gray target, to target elements step apart.
+     */
+    private static void writePixels(final int type, final int[] ints, final byte[] bytes, final int offset, final int step,
+                                    final int[] pixels, final int count) {
+        switch (type) {
+            case BufferedImage.TYPE_INT_RGB:
+                for (int x = 0, i = offset; x < count; x++, i += step) {
+                    ints[i] = pixels[x] & 0xFFFFFF;
+                }
+                break;
+            case BufferedImage.TYPE_INT_ARGB:
+                for (int x = 0, i = offset; x < count; x++, i += step) {
+                    ints[i] = pixels[x];
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                for (int x = 0, i = offset; x < count; x++, i += step) {
+                    final int pixel = pixels[x];
+                    bytes[i] = (byte) pixel;
+                    bytes[i + 1] = (byte) (pixel >> 8);
+                    bytes[i + 2] = (byte) (pixel >> 16);
+                }
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                for (int x = 0, i = offset; x < count; x++, i += step) {
+                    final int pixel = pixels[x];
+                    bytes[i] = (byte) (pixel >>> 24);
+                    bytes[i + 1] = (byte) pixel;
+                    bytes[i + 2] = (byte) (pixel >> 8);
+                    bytes[i + 3] = (byte) (pixel >> 16);
+                }
+                break;
+            default:
+                for (int x = 0, i = offset; x < count; x++, i += step) {
+                    bytes[i] = (byte) pixels[x];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Composes two lookup tables.
+     *
+     * @param first  The table applied first.
+     * @param second The table applied second.
+     * @return A table applying both.
+     */
+    private static byte[] compose(final byte[] first, final byte[] second) {
+        final byte[] composed = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            composed[i] = second[first[i] & 0xFF];
+        }
+        return composed;
+    }
+
+}
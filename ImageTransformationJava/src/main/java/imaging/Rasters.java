@@ -0,0 +1,85 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Helpers for kernels that work directly on the data arrays of rasters.
+ */
+final class Rasters {
+
+    private Rasters() {
+    }
+
+    /**
+     * Checks whether a raster stores each pixel as consecutive elements of a single int or byte array,
+     * starting at the first element.
+     *
+     * @param raster The raster.
+     * @return The number of array elements per pixel, or 0 if the raster has another layout.
+     */
+    static int getElementsPerPixel(final WritableRaster raster) {
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        if (raster.getParent() != null || dataBuffer.getNumBanks() != 1 || dataBuffer.getOffset() != 0
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return 0;
+        }
+        if (dataBuffer instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            return 1;
+        }
+        if (dataBuffer instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel) {
+            final ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            final int pixelStride = sampleModel.getPixelStride();
+            for (final int bandOffset : sampleModel.getBandOffsets()) {
+                if (bandOffset >= pixelStride) {
+                    return 0;
+                }
+            }
+            for (final int bankIndex : sampleModel.getBankIndices()) {
+                if (bankIndex != 0) {
+                    return 0;
+                }
+            }
+            return pixelStride;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of array elements between the starts of two rows.
+     *
+     * @param raster A raster with a layout accepted by getElementsPerPixel.
+     * @return The scanline stride.
+     */
+    static int getScanlineStride(final WritableRaster raster) {
+        return raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                ? ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride()
+                : ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * Creates an image with the type, color model and raster layout of another image. Images with a canonical
+     * layout are borrowed from the buffer pool, so their pixels are undefined.
+     *
+     * @param image  The image to copy the layout from.
+     * @param width  The width of the new image.
+     * @param height The height of the new image.
+     * @return The new image.
+     */
+    static BufferedImage createCompatibleImage(final BufferedImage image, final int width, final int height) {
+        if (CanonicalLayout.isCanonical(image)) {
+            return BufferPool.borrowImage(width, height, image.getType());
+        }
+        final WritableRaster raster = image.getRaster().createCompatibleWritableRaster(width, height);
+        return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
+    }
+
+}
@@ -0,0 +1,482 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Resizes images with a separable convolution filter, the same way Pillow does.
+ *
+ *  The image is filtered horizontally into an intermediate buffer, then vertically into the output. The weights
+ *  of every output column and row are computed once per axis. When downscaling, the filter is stretched by the
+ *  scale factor so every source pixel contributes to the output, like an area average. Colors are weighted by
+ *  their alpha so transparent pixels do not bleed into their neighbours. Both passes are split into row bands
+ *  that run in parallel on large images.
+ */
+public class Resampler {
+
+    /**
+     * The interpolation filters.
+     */
+    public enum Filter {
+        BILINEAR(1) {
+            @Override
+            double weight(final double x) {
+                final double ax = Math.abs(x);
+                return ax < 1 ? 1 - ax : 0;
+            }
+        },
+        BICUBIC(2) {
+            @Override
+            double weight(final double x) {
+                // Keys cubic convolution with a = -0.5
+                final double a = -0.5;
+                final double ax = Math.abs(x);
+                if (ax < 1) {
+                    return ((a + 2) * ax - (a + 3)) * ax * ax + 1;
+                }
+                if (ax < 2) {
+                    return (((ax - 5) * ax + 8) * ax - 4) * a;
+                }
+                return 0;
+            }
+        },
+        LANCZOS(3) {
+            @Override
+            double weight(final double x) {
+                return Math.abs(x) < 3 ? sinc(x) * sinc(x / 3) : 0;
+            }
+        };
+
+        private final double support;
+
+        Filter(final double support) {
+            this.support = support;
+        }
+
+        /**
+         * Returns the radius of the filter.
+         *
+         * @return The distance beyond which samples have no weight, in source pixels at scale 1.
+         */
+        public double getSupport() {
+            return support;
+        }
+
+        /**
+         * Returns the weight of a sample at a distance from the sampled position.
+         *
+         * @param x The distance, in source pixels at scale 1.
+         * @return The weight.
+         */
+        abstract double weight(final double x);
+
+        /**
+         * Returns the filter with a name.
+         *
+         * @param name The name of the filter, e.g. "bicubic", in any case.
+         * @return The filter, or null if there is no filter with that name.
+         */
+        public static Filter forName(final String name) {
+            for (final Filter filter : values()) {
+                if (filter.name().equalsIgnoreCase(name)) {
+                    return filter;
+                }
+            }
+            return null;
+        }
+
+        private static double sinc(final double x) {
+            if (x == 0) {
+                return 1;
+            }
+            final double px = Math.PI * x;
+            return Math.sin(px) / px;
+        }
+    }
+
+
+    /**
+     * Resizes an image. The source image is not modified.
+     *
+     * @param image  The image to resize.
+     * @param width  The width of the resized image.
+     * @param height The height of the resized image.
+     * @param filter The interpolation filter.
+     * @return The resized image, of the same type as the source if it has a canonical layout, see CanonicalLayout.
+     */
+    public static BufferedImage resize(final BufferedImage image, final int width, final int height, final Filter filter) {
+        if (!CanonicalLayout.isCanonical(image)) {
+            return resize(CanonicalLayout.toCanonical(image), width, height, filter);
+        }
+
+        final int sourceWidth = image.getWidth();
+        final int sourceHeight = image.getHeight();
+        final BufferedImage resizedImage = Rasters.createCompatibleImage(image, width, height);
+        final Layout source = new Layout(image);
+        final Layout target = new Layout(resizedImage);
+        final int bands = source.bands;
+
+        final Weights columns = new Weights(sourceWidth, width, filter);
+        final Weights rows = new Weights(sourceHeight, height, filter);
+
+        // Horizontal pass, every source row into a row of the intermediate image. The intermediate image is
+        // the largest buffer of a resize and only lives for its duration, so it is kept off the heap.
+        final int intermediateStride = width * bands;
+        try (OffHeapBuffer intermediate = OffHeapBuffer.allocateFloats(intermediateStride * sourceHeight)) {
+            Parallel.forEachBand(sourceHeight, sourceWidth + width * columns.taps, (startRow, endRow) -> {
+                final float[] sourceRow = new float[sourceWidth * bands];
+                final float[] intermediateRow = new float[intermediateStride];
+                for (int y = startRow; y < endRow; y++) {
+                    source.readRow(y, sourceRow);
+                    filterRow(columns, bands, sourceRow, intermediateRow);
+                    intermediate.putFloats(y * intermediateStride, intermediateRow, 0, intermediateStride);
+                }
+            });
+
+            // Vertical pass, accumulating whole intermediate rows so the buffer is read sequentially
+            Parallel.forEachBand(height, width * rows.taps, (startRow, endRow) -> {
+                final float[] targetRow = new float[intermediateStride];
+                final float[] intermediateRow = new float[intermediateStride];
+                for (int y = startRow; y < endRow; y++) {
+                    Arrays.fill(targetRow, 0);
+                    final int weightIndex = y * rows.taps;
+                    for (int k = 0; k < rows.count[y]; k++) {
+                        intermediate.getFloats((rows.start[y] + k) * intermediateStride, intermediateRow, 0, intermediateStride);
+                        accumulateRow(rows.weights[weightIndex + k], intermediateRow, targetRow);
+                    }
+                    target.writeRow(y, targetRow);
+                }
+            });
+        }
+
+        return resizedImage;
+    }
+
+    /**
+     * Resizes an image produced in strips, one output strip at a time. The output is identical to resizing the
+     * whole image. Each output row only depends on the source rows within the support of the filter, so only
+     * the horizontally filtered source rows still needed by the next output strip are kept.
+     *
+     * @param source The strips.
+     * @param width  The width of the resized image.
+     * @param height The height of the resized image.
+     * @param filter The interpolation filter.
+     * @return The resized strips.
+     */
+    public static StripSource resize(final StripSource source, final int width, final int height, final Filter filter) {
+        return new StripResizer(source, width, height, filter);
+    }
+
+    /**
+     * Filters a source row horizontally into a row of the intermediate image.
+     *
+     * @param columns         The weights of the output columns.
+     * @param bands           The number of bands per pixel.
+     * @param sourceRow       The source row, see Layout.readRow.
+     * @param intermediateRow The filtered row.
+     */
+    private static void filterRow(final Weights columns, final int bands, final float[] sourceRow, final float[] intermediateRow) {
+        final int width = intermediateRow.length / bands;
+        int index = 0;
+        for (int x = 0; x < width; x++) {
+            final int start = columns.start[x] * bands;
+            final int end = start + columns.count[x] * bands;
+            final int weightIndex = x * columns.taps;
+            if (bands >= 3) {
+                // Color images, every band accumulated in the same pass over the source pixels
+                float sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+                for (int i = start, k = weightIndex; i < end; i += bands, k++) {
+                    final float weight = columns.weights[k];
+                    sum0 += weight * sourceRow[i];
+                    sum1 += weight * sourceRow[i + 1];
+                    sum2 += weight * sourceRow[i + 2];
+                    if (bands == 4) {
+                        sum3 += weight * sourceRow[i + 3];
+                    }
+                }
+                intermediateRow[index++] = sum0;
+                intermediateRow[index++] = sum1;
+                intermediateRow[index++] = sum2;
+                if (bands == 4) {
+                    intermediateRow[index++] = sum3;
+                }
+            } else {
+                for (int band = 0; band < bands; band++) {
+                    float sum = 0;
+                    for (int i = start + band, k = weightIndex; i < end; i += bands, k++) {
+                        sum += columns.weights[k] * sourceRow[i];
+                    }
+                    intermediateRow[index++] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a weighted intermediate row to an output row.
+     */
+    private static void accumulateRow(final float weight, final float[] intermediateRow, final float[] targetRow) {
+        for (int i = 0; i < targetRow.length; i++) {
+            targetRow[i] += weight * intermediateRow[i];
+        }
+    }
+
+    /**
+     * Resizes strips, holding the filtered source rows between the first row needed by the next output strip
+     * and the last row read so far.
+     */
+    private static final class StripResizer implements StripSource {
+        private final StripSource source;
+        private final int width;
+        private final int height;
+        private final Weights columns;
+        private final Weights rows;
+        private final int stripRows;
+
+        /**
+         * Horizontally filtered source rows, starting at source row firstRow.
+         */
+        private final List<float[]> filteredRows = new ArrayList<>();
+        private int firstRow;
+        private int type = BufferedImage.TYPE_CUSTOM;
+        private int bands;
+        private int nextRow;
+
+        StripResizer(final StripSource source, final int width, final int height, final Filter filter) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.columns = new Weights(source.getWidth(), width, filter);
+            this.rows = new Weights(source.getHeight(), height, filter);
+            // An output row keeps about scale source rows of floats alive, size the strips by that
+            final int sourceRowsPerRow = (int) Math.ceil((double) source.getHeight() / height);
+            this.stripRows = Strips.getStripRows(width, 4 * Float.BYTES * sourceRowsPerRow);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public BufferedImage nextStrip() throws IOException {
+            if (nextRow >= height) {
+                return null;
+            }
+            final int count = Math.min(stripRows, height - nextRow);
+            final int lastRow = nextRow + count - 1;
+            while (firstRow + filteredRows.size() < rows.start[lastRow] + rows.count[lastRow]) {
+                readStrip();
+            }
+
+            // Rows above the support of the first output row are not needed by this or any later strip
+            final int unused = Math.min(rows.start[nextRow] - firstRow, filteredRows.size());
+            filteredRows.subList(0, unused).clear();
+            firstRow += unused;
+
+            final BufferedImage strip = BufferPool.borrowImage(width, count, type);
+            final Layout target = new Layout(strip);
+            final int stripStart = nextRow;
+            Parallel.forEachBand(count, width * rows.taps, (startRow, endRow) -> {
+                final float[] targetRow = new float[width * bands];
+                for (int y = startRow; y < endRow; y++) {
+                    final int row = stripStart + y;
+                    final int weightIndex = row * rows.taps;
+                    for (int k = 0; k < rows.count[row]; k++) {
+                        accumulateRow(rows.weights[weightIndex + k], filteredRows.get(rows.start[row] + k - firstRow), targetRow);
+                    }
+                    target.writeRow(y, targetRow);
+                    Arrays.fill(targetRow, 0);
+                }
+            });
+            nextRow += count;
+            return strip;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+
+        /**
+         * Filters the next source strip horizontally.
+         *
+         * @throws IOException If the strip could not be read, or the source ended early.
+         */
+        private void readStrip() throws IOException {
+            final BufferedImage strip = source.nextStrip();
+            if (strip == null) {
+                throw new IOException("The image ended after " + (firstRow + filteredRows.size()) + " rows");
+            }
+            type = strip.getType();
+            final Layout layout = new Layout(strip);
+            bands = layout.bands;
+            final int sourceWidth = strip.getWidth();
+            final float[][] filtered = new float[strip.getHeight()][];
+            Parallel.forEachBand(filtered.length, sourceWidth + width * columns.taps, (startRow, endRow) -> {
+                final float[] sourceRow = new float[sourceWidth * bands];
+                for (int y = startRow; y < endRow; y++) {
+                    layout.readRow(y, sourceRow);
+                    filtered[y] = new float[width * bands];
+                    filterRow(columns, bands, sourceRow, filtered[y]);
+                }
+            });
+            filteredRows.addAll(Arrays.asList(filtered));
+            BufferPool.release(strip);
+        }
+    }
+
+    /**
+     * The source pixels contributing to every output pixel along one axis, and their weights.
+     */
+    private static final class Weights {
+        final int taps;
+        final int[] start;
+        final int[] count;
+        final float[] weights;
+
+        Weights(final int sourceSize, final int targetSize, final Filter filter) {
+            final double scale = (double) sourceSize / targetSize;
+            final double filterScale = Math.max(scale, 1);
+            final double support = filter.support * filterScale;
+
+            taps = (int) Math.ceil(support) * 2 + 1;
+            start = new int[targetSize];
+            count = new int[targetSize];
+            weights = new float[targetSize * taps];
+
+            final double[] values = new double[taps];
+            for (int i = 0; i < targetSize; i++) {
+                final double center = (i + 0.5) * scale;
+                final int first = Math.max(0, (int) (center - support + 0.5));
+                final int last = Math.min(sourceSize, (int) (center + support + 0.5));
+                final int n = Math.min(taps, last - first);
+
+                double total = 0;
+                for (int k = 0; k < n; k++) {
+                    values[k] = filter.weight((first + k - center + 0.5) / filterScale);
+                    total += values[k];
+                }
+                for (int k = 0; k < n; k++) {
+                    weights[i * taps + k] = (float) (total != 0 ? values[k] / total : values[k]);
+                }
+                start[i] = first;
+                count[i] = n;
+            }
+        }
+    }
+
+    /**
+     * Reads and writes rows of an image with 8-bit bands as floats, one value per band,
+     * with colors premultiplied by alpha.
+     */
+    private static final class Layout {
+        final int bands;
+        private final int alphaBand;
+        private final boolean premultiply;
+        private final int pixelStride;
+        private final int scanlineStride;
+        private final int[] offsets;
+        private final int[] masks;
+        private final int[] ints;
+        private final byte[] bytes;
+
+        Layout(final BufferedImage image) {
+            final WritableRaster raster = image.getRaster();
+            bands = raster.getNumBands();
+            alphaBand = image.getColorModel().hasAlpha() ? bands - 1 : -1;
+            premultiply = alphaBand >= 0 && !image.isAlphaPremultiplied();
+            pixelStride = Rasters.getElementsPerPixel(raster);
+            scanlineStride = Rasters.getScanlineStride(raster);
+
+            if (raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                final SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                offsets = sampleModel.getBitOffsets();
+                masks = sampleModel.getBitMasks();
+                ints = ((DataBufferInt) raster.getDataBuffer()).getData();
+                bytes = null;
+            } else {
+                offsets = ((ComponentSampleModel) raster.getSampleModel()).getBandOffsets();
+                masks = null;
+                ints = null;
+                bytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+            }
+        }
+
+        void readRow(final int y, final float[] row) {
+            final int width = row.length / bands;
+            int index = 0;
+            for (int x = 0; x < width; x++) {
+                final int pixel = y * scanlineStride + x * pixelStride;
+                if (ints != null) {
+                    final int value = ints[pixel];
+                    for (int band = 0; band < bands; band++) {
+                        row[index + band] = (value & masks[band]) >>> offsets[band];
+                    }
+                } else {
+                    for (int band = 0; band < bands; band++) {
+                        row[index + band] = bytes[pixel + offsets[band]] & 0xFF;
+                    }
+                }
+                if (premultiply) {
+                    final float alpha = row[index + alphaBand] / 255f;
+                    for (int band = 0; band < bands; band++) {
+                        if (band != alphaBand) {
+                            row[index + band] *= alpha;
+                        }
+                    }
+                }
+                index += bands;
+            }
+        }
+
+        void writeRow(final int y, final float[] row) {
+            final int width = row.length / bands;
+            int index = 0;
+            for (int x = 0; x < width; x++) {
+                final int pixel = y * scanlineStride + x * pixelStride;
+                final int alpha = premultiply ? clamp(row[index + alphaBand]) : 255;
+                int value = 0;
+                for (int band = 0; band < bands; band++) {
+                    int sample;
+                    if (band == alphaBand || !premultiply) {
+                        sample = clamp(row[index + band]);
+                    } else {
+                        sample = alpha == 0 ? 0 : clamp(row[index + band] * 255f / alpha);
+                    }
+                    if (ints != null) {
+                        value |= (sample << offsets[band]) & masks[band];
+                    } else {
+                        bytes[pixel + offsets[band]] = (byte) sample;
+                    }
+                }
+                if (ints != null) {
+                    ints[pixel] = value;
+                }
+                index += bands;
+            }
+        }
+
+        private static int clamp(final float value) {
+            final int rounded = (int) (value + 0.5f);
+            return rounded < 0 ? 0 : Math.min(rounded, 255);
+        }
+    }
+
+}
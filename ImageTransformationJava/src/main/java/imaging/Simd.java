@@ -0,0 +1,58 @@
+package imaging;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Decides whether point operations run on SIMD lanes, see VectorKernels.
+ *
+ *  The Vector API is an incubator module, so the JVM only loads it when started with
+ *  --add-modules jdk.incubator.vector, e.g. through JAVA_TOOL_OPTIONS on Lambda. Without it, or on hosts with
+ *  vectors narrower than 256 bits, every kernel runs its scalar loop. Setting IMAGE_SIMD to false disables the
+ *  vector kernels, to compare the two.
+ */
+public class Simd {
+
+    /**
+     * Environment variable that disables the vector kernels when set to false.
+     */
+    public static final String SIMD_ENV = "IMAGE_SIMD";
+
+    /**
+     * The name of the Vector API module.
+     */
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private static final boolean ENABLED = isSupported();
+
+
+    /**
+     * Returns whether kernels use VectorKernels.
+     *
+     * @return Whether the vector kernels are enabled.
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Checks whether the vector kernels can run and are not disabled. VectorKernels is only loaded once the
+     * module is known to be present, loading it without the module fails.
+     *
+     * @return Whether the vector kernels can be used.
+     */
+    private static boolean isSupported() {
+        if ("false".equalsIgnoreCase(System.getenv(SIMD_ENV))) {
+            return false;
+        }
+        if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+            return false;
+        }
+        try {
+            return VectorKernels.isSupported();
+        } catch (final LinkageError e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+package imaging;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Decodes an image into strips, keeping only a window of rows in memory.
+ *
+ *  Reading strips through ImageReadParam.setSourceRegion would restart the JPEG and PNG decoders at the top of
+ *  the file for every strip. Instead the image is decoded once, top to bottom, on a background thread, into a
+ *  destination whose pixels live in a ring of rows. The decoder waits whenever the ring is full until the
+ *  strips it holds have been taken, so memory stays proportional to the width of the image times the strip
+ *  height. Images the decoders write in several passes cannot be read this way: interlaced PNGs, and progressive
+ *  JPEGs, for which libjpeg holds the coefficients of the whole image anyway. Neither can images with samples
+ *  wider than a byte. Java2D limits the destination to 2^31 samples, e.g. 700 megapixels RGB.
+ */
+public final class StripReader implements StripSource {
+
+    /**
+     * The native metadata format of the PNG reader, which tells whether an image is interlaced.
+     */
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    /**
+     * Runs the decoders. Shared by every reader in the container.
+     */
+    private static final ExecutorService DECODE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "strip-decode");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The readers that are not closed yet.
+     */
+    private static final Map<StripReader, Boolean> OPEN = new IdentityHashMap<>();
+
+    private final ImageReader reader;
+    private final Closeable input;
+    private final ColorModel colorModel;
+    private final SampleModel sampleModel;
+    private final int width;
+    private final int height;
+    private final int stripRows;
+
+    /**
+     * The number of bytes of one row, and of the ring holding ringRows rows.
+     */
+    private final int rowLength;
+    private final int ringRows;
+    private final byte[] ring;
+
+    /**
+     * The type of the strips if they are decoded in a canonical layout, TYPE_CUSTOM otherwise.
+     */
+    private final int stripType;
+
+    private Future<?> decoding;
+
+    // Guarded by this. Rows below decodedRows are complete, rows below consumedRows have been taken.
+    private int decodedRows;
+    private int consumedRows;
+    private boolean finished;
+    private boolean closed;
+    private Throwable failure;
+
+    /**
+     * The first row of the next strip, only used by the thread taking the strips.
+     */
+    private int nextRow;
+
+
+    private StripReader(final ImageReader reader,
+                        final Closeable input,
+                        final ImageTypeSpecifier type,
+                        final int width,
+                        final int height) {
+        this.reader = reader;
+        this.input = input;
+        this.colorModel = type.getColorModel();
+        this.sampleModel = type.getSampleModel(width, height);
+        this.width = width;
+        this.height = height;
+        this.rowLength = ((ComponentSampleModel) sampleModel).getScanlineStride();
+        this.stripRows = Strips.getStripRows(width, sampleModel.getNumDataElements());
+        // Room for the strip being taken and the next one, so decoding continues while a strip is processed
+        this.ringRows = Math.min(height, 2 * stripRows) + 1;
+        this.ring = new byte[ringRows * rowLength];
+        final int bufferedImageType = type.getBufferedImageType();
+        this.stripType = bufferedImageType == BufferedImage.TYPE_3BYTE_BGR || bufferedImageType == BufferedImage.TYPE_4BYTE_ABGR
+                || bufferedImageType == BufferedImage.TYPE_BYTE_GRAY ? bufferedImageType : BufferedImage.TYPE_CUSTOM;
+    }
+
+    /**
+     * Starts decoding an image in strips.
+     *
+     * @param reader The reader, with its input set. It is disposed when the strips are closed.
+     * @param param  The read parameters, e.g. with source subsampling. Source regions are not supported.
+     * @param input  The stream the reader reads from, closed along with the strips.
+     * @return The strips, or null if the image cannot be decoded in strips. The reader and the input are left
+     *         open then, so the caller can still decode the image as a whole.
+     * @throws IOException If the header of the image could not be read.
+     */
+    public static StripReader open(final ImageReader reader, final ImageReadParam param, final Closeable input) throws IOException {
+        if (isMultiPass(reader)) {
+            return null;
+        }
+        final ImageTypeSpecifier type = reader.getImageTypes(0).next();
+        final int xStep = param.getSourceXSubsampling();
+        final int yStep = param.getSourceYSubsampling();
+        final int width = (reader.getWidth(0) - param.getSubsamplingXOffset() + xStep - 1) / xStep;
+        final int height = (reader.getHeight(0) - param.getSubsamplingYOffset() + yStep - 1) / yStep;
+        final SampleModel sampleModel = type.getSampleModel(1, 1);
+        if (!(sampleModel instanceof ComponentSampleModel) || sampleModel.getDataType() != DataBuffer.TYPE_BYTE) {
+            return null;
+        }
+        for (final int bankIndex : ((ComponentSampleModel) sampleModel).getBankIndices()) {
+            if (bankIndex != 0) {
+                return null;
+            }
+        }
+
+        final StripReader strips = new StripReader(reader, input, type, width, height);
+        final WritableRaster destination = Raster.createWritableRaster(strips.sampleModel, strips.new RowRing(), null);
+        param.setDestination(new BufferedImage(strips.colorModel, destination, strips.colorModel.isAlphaPremultiplied(), null));
+        synchronized (OPEN) {
+            OPEN.put(strips, Boolean.TRUE);
+        }
+        strips.decoding = DECODE_EXECUTOR.submit(() -> {
+            try {
+                reader.read(0, param);
+                strips.finish(null);
+            } catch (final Throwable t) {
+                strips.finish(t);
+            }
+        });
+        return strips;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public BufferedImage nextStrip() throws IOException {
+        if (nextRow >= height) {
+            return null;
+        }
+        final int rows = Math.min(stripRows, height - nextRow);
+        synchronized (this) {
+            while (decodedRows < nextRow + rows && failure == null && !finished && !closed) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the decoder");
+                }
+            }
+            if (closed) {
+                throw new IOException("Strips already closed");
+            }
+            if (failure != null) {
+                throw new IOException("Could not decode the image", failure);
+            }
+            if (decodedRows < nextRow + rows) {
+                throw new IOException("The decoder stopped after " + decodedRows + " of " + height + " rows");
+            }
+        }
+
+        // The decoder does not write these rows again until they are marked as taken
+        final BufferedImage strip;
+        if (stripType != BufferedImage.TYPE_CUSTOM) {
+            strip = BufferPool.borrowImage(width, rows, stripType);
+            copyRows(((DataBufferByte) strip.getRaster().getDataBuffer()).getData(), rows);
+        } else {
+            final WritableRaster raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, rows), null);
+            copyRows(((DataBufferByte) raster.getDataBuffer()).getData(), rows);
+            strip = CanonicalLayout.toCanonical(new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null));
+        }
+
+        nextRow += rows;
+        synchronized (this) {
+            consumedRows = nextRow;
+            notifyAll();
+        }
+        return strip;
+    }
+
+    /**
+     * Stops the decoder, waiting for it to let go of the reader, then disposes the reader and closes the input.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        synchronized (OPEN) {
+            OPEN.remove(this);
+        }
+        try {
+            decoding.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException ignored) {
+            // Decoding failures are recorded by the task itself
+        }
+        reader.dispose();
+        input.close();
+    }
+
+    /**
+     * Closes every open reader. Called once the invocation that opened them has finished, so a decoder left
+     * waiting for its strips to be taken, e.g. after an exception, does not hold on to its thread.
+     *
+     * @return The number of readers closed.
+     */
+    public static int closeAll() {
+        final List<StripReader> readers;
+        synchronized (OPEN) {
+            readers = new ArrayList<>(OPEN.keySet());
+        }
+        for (final StripReader reader : readers) {
+            try {
+                reader.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return readers.size();
+    }
+
+    /**
+     * Copies the rows of the next strip out of the ring.
+     */
+    private void copyRows(final byte[] strip, final int rows) {
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(ring, ((nextRow + row) % ringRows) * rowLength, strip, row * rowLength, rowLength);
+        }
+    }
+
+    /**
+     * Called by the decoder before it writes the first sample of a row. Every row above it is complete.
+     * Waits until the slot of the row in the ring has been taken.
+     *
+     * @param row The row.
+     */
+    private synchronized void enterRow(final int row) {
+        if (row < decodedRows) {
+            throw new IllegalStateException("The decoder went back from row " + decodedRows + " to row " + row);
+        }
+        decodedRows = row;
+        notifyAll();
+        while (row - consumedRows >= ringRows && !closed) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+        }
+        if (closed) {
+            // Unwinds the decoder, which is the only way to stop it from another thread
+            throw new CancellationException("Strips closed while decoding");
+        }
+    }
+
+    /**
+     * Called once the decoder has returned.
+     *
+     * @param failure Why decoding failed, or null if every row was decoded.
+     */
+    private synchronized void finish(final Throwable failure) {
+        finished = true;
+        if (failure == null) {
+            decodedRows = height;
+        } else if (!closed) {
+            this.failure = failure;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Checks whether the decoder writes the rows of an image in several passes.
+     *
+     * @param reader The reader, with its input set.
+     * @return Whether the image is an interlaced PNG or a progressive JPEG.
+     * @throws IOException If the header of the image could not be read.
+     */
+    private static boolean isMultiPass(final ImageReader reader) throws IOException {
+        final String format = reader.getFormatName().toLowerCase();
+        if (format.equals("png")) {
+            return isInterlaced(reader.getImageMetadata(0));
+        }
+        // The JPEG metadata is only available once the whole file has been parsed, read the frame header instead
+        return format.equals("jpeg") && reader.getInput() instanceof ImageInputStream
+                && isProgressive((ImageInputStream) reader.getInput());
+    }
+
+    /**
+     * Checks whether a PNG image is stored interlaced.
+     *
+     * @param metadata The metadata of the image.
+     * @return Whether the image is interlaced.
+     */
+    private static boolean isInterlaced(final IIOMetadata metadata) {
+        if (metadata == null || !PNG_METADATA_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+            return false;
+        }
+        for (Node node = metadata.getAsTree(PNG_METADATA_FORMAT).getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals("IHDR")) {
+                return !"none".equals(((Element) node).getAttribute("interlaceMethod"));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a JPEG image is progressive, reading its markers up to the start of frame. The reader keeps
+     * the stream from the start of the image on, and the stream is left where it was.
+     *
+     * @param stream The stream of the reader.
+     * @return Whether the frame is progressive.
+     * @throws IOException If the stream ends before the start of frame.
+     */
+    private static boolean isProgressive(final ImageInputStream stream) throws IOException {
+        stream.mark();
+        try {
+            stream.seek(stream.getFlushedPosition());
+            while (true) {
+                if (stream.readUnsignedByte() != 0xFF) {
+                    continue;
+                }
+                int marker = stream.readUnsignedByte();
+                while (marker == 0xFF) {
+                    marker = stream.readUnsignedByte();
+                }
+                // SOI, TEM and RST have no segment, DHT, JPG and DAC are not frames
+                if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x00) {
+                    continue;
+                }
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                    return (marker & 0x03) == 0x02;
+                }
+                stream.skipBytes(stream.readUnsignedShort() - 2);
+            }
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * The pixels of the decoder's destination, a window of rows of the image stored in the ring.
+     * Only the decoder thread uses it.
+     */
+    private final class RowRing extends DataBuffer {
+
+        /**
+         * The elements of the row being written, and where it starts in the ring.
+         */
+        private int rowStart;
+        private int rowEnd;
+        private int ringOffset;
+
+        RowRing() {
+            super(DataBuffer.TYPE_BYTE, rowLength * height);
+        }
+
+        @Override
+        public int getElem(final int bank, final int i) {
+            if (i < rowStart || i >= rowEnd) {
+                throw new IllegalStateException("Only the row being decoded can be read");
+            }
+            return ring[ringOffset + i - rowStart] & 0xFF;
+        }
+
+        @Override
+        public void setElem(final int bank, final int i, final int value) {
+            if (i < rowStart || i >= rowEnd) {
+                final int row = i / rowLength;
+                enterRow(row);
+                rowStart = row * rowLength;
+                rowEnd = rowStart + rowLength;
+                ringOffset = (row % ringRows) * rowLength;
+            }
+            ring[ringOffset + i - rowStart] = (byte) value;
+        }
+    }
+
+}
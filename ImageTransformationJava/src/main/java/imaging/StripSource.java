@@ -0,0 +1,41 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  An image produced as a sequence of horizontal strips, top to bottom, so it never has to be held as a whole.
+ *
+ *  Strips are full-width images with a canonical layout, see CanonicalLayout, borrowed from the buffer pool.
+ *  The caller of nextStrip owns the strip and returns it to the pool when done. Closing a source closes every
+ *  source it reads from.
+ */
+public interface StripSource extends Closeable {
+
+    /**
+     * Returns the width of the image, and of every strip.
+     *
+     * @return The width in pixels.
+     */
+    int getWidth();
+
+    /**
+     * Returns the height of the image, the sum of the heights of all strips.
+     *
+     * @return The height in pixels.
+     */
+    int getHeight();
+
+    /**
+     * Produces the next strip.
+     *
+     * @return The rows below the previous strip, or null once every row has been produced.
+     * @throws IOException If the rows could not be read.
+     */
+    BufferedImage nextStrip() throws IOException;
+
+}
@@ -0,0 +1,352 @@
+package imaging;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Building blocks for images processed in strips, see StripSource.
+ *
+ *  Operations that only look at the rows of a strip map every strip on its own. A 180 degree rotation needs the
+ *  strips bottom to top, the opposite of the order the decoders produce them in, so the image is spooled to
+ *  local temporary storage first. The encoders read the result through an image whose pixels are pulled strip
+ *  by strip as they encode the rows, so the output is never held as a whole either.
+ */
+public final class Strips {
+
+    /**
+     * Environment variable holding the size of a strip in MB.
+     */
+    public static final String STRIP_MB_ENV = "IMAGE_STRIP_MB";
+
+    /**
+     * The size of a strip if none is configured, in bytes.
+     */
+    private static final int DEFAULT_STRIP_BYTES = 4 * 1024 * 1024;
+
+    private static final int STRIP_BYTES = getStripBytes();
+
+    private Strips() {
+    }
+
+    /**
+     * Returns the height of the strips of an image, so each strip has about the configured size.
+     *
+     * @param width         The width of the image.
+     * @param bytesPerPixel The memory one pixel of a strip takes.
+     * @return The number of rows per strip, at least 1.
+     */
+    static int getStripRows(final int width, final int bytesPerPixel) {
+        return (int) Math.max(1, STRIP_BYTES / ((long) width * bytesPerPixel));
+    }
+
+    /**
+     * Produces an image that is already decoded as a single strip.
+     *
+     * @param image The image, which the strip source takes over.
+     * @return The strips.
+     */
+    public static StripSource of(final BufferedImage image) {
+        final BufferedImage canonicalImage = CanonicalLayout.toCanonical(image);
+        return new StripSource() {
+            private boolean taken;
+
+            @Override
+            public int getWidth() {
+                return canonicalImage.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return canonicalImage.getHeight();
+            }
+
+            @Override
+            public BufferedImage nextStrip() {
+                if (taken) {
+                    return null;
+                }
+                taken = true;
+                return canonicalImage;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Runs a kernel over every strip. Input strips are returned to the buffer pool once the kernel is done
+     * with them.
+     *
+     * @param source The strips.
+     * @param kernel The kernel, which must keep the width of the strips and return an image with a canonical
+     *               layout, e.g. a point operation.
+     * @return The output strips.
+     */
+    public static StripSource map(final StripSource source, final UnaryOperator<BufferedImage> kernel) {
+        return new StripSource() {
+            @Override
+            public int getWidth() {
+                return source.getWidth();
+            }
+
+            @Override
+            public int getHeight() {
+                return source.getHeight();
+            }
+
+            @Override
+            public BufferedImage nextStrip() throws IOException {
+                final BufferedImage strip = source.nextStrip();
+                if (strip == null) {
+                    return null;
+                }
+                final BufferedImage output = kernel.apply(strip);
+                if (output != strip) {
+                    BufferPool.release(strip);
+                }
+                return output;
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    /**
+     * Produces the strips of an image bottom to top. Every strip is read and spooled to a temporary file
+     * before this returns, the spooled strips are then read back one at a time. Each strip keeps its rows in
+     * their order, so strips rotated by 180 degrees on their own make up the rotated image.
+     *
+     * @param source The strips, which are closed once spooled.
+     * @return The same strips in reverse order.
+     * @throws IOException If the strips could not be read or spooled.
+     */
+    public static StripSource reverse(final StripSource source) throws IOException {
+        final Path file = Files.createTempFile("strips", ".raw");
+        final List<Long> offsets = new ArrayList<>();
+        final List<Integer> heights = new ArrayList<>();
+        int type = BufferedImage.TYPE_CUSTOM;
+        ByteBuffer buffer = null;
+        try (StripSource strips = source; FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            for (BufferedImage strip = strips.nextStrip(); strip != null; strip = strips.nextStrip()) {
+                type = strip.getType();
+                buffer = toBytes(strip, buffer);
+                offsets.add(channel.position());
+                heights.add(strip.getHeight());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                BufferPool.release(strip);
+            }
+        } catch (final IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        final int stripType = type;
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+        return new StripSource() {
+            private int next = offsets.size() - 1;
+            private ByteBuffer buffer;
+
+            @Override
+            public int getWidth() {
+                return width;
+            }
+
+            @Override
+            public int getHeight() {
+                return height;
+            }
+
+            @Override
+            public BufferedImage nextStrip() throws IOException {
+                if (next < 0) {
+                    return null;
+                }
+                final BufferedImage strip = BufferPool.borrowImage(width, heights.get(next), stripType);
+                buffer = allocate(strip, buffer);
+                long position = offsets.get(next--);
+                while (buffer.hasRemaining()) {
+                    final int read = channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Spooled strip ended early");
+                    }
+                    position += read;
+                }
+                buffer.flip();
+                fromBytes(buffer, strip);
+                return strip;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Wraps strips into an image for the encoders. Its pixels are read-only and must be read top to bottom,
+     * which the PNG and JPEG writers do, strips are pulled as the rows are read and returned to the buffer pool
+     * once passed. The strip source is not closed.
+     *
+     * @param source The strips.
+     * @return The image.
+     * @throws IOException If the first strip could not be read.
+     */
+    public static BufferedImage toImage(final StripSource source) throws IOException {
+        final BufferedImage first = source.nextStrip();
+        if (first == null) {
+            throw new IOException("The image has no rows");
+        }
+        final SampleModel sampleModel = first.getSampleModel().createCompatibleSampleModel(source.getWidth(), source.getHeight());
+        final int rowLength = Rasters.getScanlineStride(first.getRaster());
+        final StripBuffer buffer = new StripBuffer(source, first, rowLength, rowLength * source.getHeight());
+        return new BufferedImage(first.getColorModel(), Raster.createWritableRaster(sampleModel, buffer, null),
+                first.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Copies the data array of a strip into a buffer, reusing the buffer if it is large enough.
+     */
+    private static ByteBuffer toBytes(final BufferedImage strip, final ByteBuffer buffer) {
+        final ByteBuffer bytes = allocate(strip, buffer);
+        final DataBuffer dataBuffer = strip.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            bytes.asIntBuffer().put(((DataBufferInt) dataBuffer).getData());
+        } else {
+            bytes.put(((DataBufferByte) dataBuffer).getData());
+            bytes.flip();
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies bytes read from the spool into the data array of a strip.
+     */
+    private static void fromBytes(final ByteBuffer bytes, final BufferedImage strip) {
+        final DataBuffer dataBuffer = strip.getRaster().getDataBuffer();
+        if (dataBuffer instanceof DataBufferInt) {
+            bytes.asIntBuffer().get(((DataBufferInt) dataBuffer).getData());
+        } else {
+            bytes.get(((DataBufferByte) dataBuffer).getData());
+        }
+    }
+
+    /**
+     * Returns a buffer cleared to the size of the data array of a strip, reusing the given one if it is large enough.
+     */
+    private static ByteBuffer allocate(final BufferedImage strip, final ByteBuffer buffer) {
+        final DataBuffer dataBuffer = strip.getRaster().getDataBuffer();
+        final int length = dataBuffer.getSize() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+        final ByteBuffer bytes = buffer != null && buffer.capacity() >= length ? buffer : ByteBuffer.allocate(length);
+        bytes.clear().limit(length);
+        return bytes;
+    }
+
+    /**
+     * Reads the strip size from the environment.
+     *
+     * @return The strip size in bytes.
+     */
+    private static int getStripBytes() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getenv(STRIP_MB_ENV))) * 1024 * 1024;
+        } catch (final Exception ignored) {
+            return DEFAULT_STRIP_BYTES;
+        }
+    }
+
+    /**
+     * The pixels of an image produced in strips, holding one strip at a time.
+     */
+    private static final class StripBuffer extends DataBuffer {
+        private final StripSource source;
+        private final int rowLength;
+        private BufferedImage strip;
+        private byte[] bytes;
+        private int[] ints;
+
+        /**
+         * The elements of the image held by the current strip.
+         */
+        private int stripStart;
+        private int stripEnd;
+
+        StripBuffer(final StripSource source, final BufferedImage first, final int rowLength, final int size) {
+            super(first.getRaster().getDataBuffer().getDataType(), size);
+            this.source = source;
+            this.rowLength = rowLength;
+            hold(first);
+        }
+
+        @Override
+        public int getElem(final int bank, final int i) {
+            if (i < stripStart || i >= stripEnd) {
+                advance(i);
+            }
+            return bytes != null ? bytes[i - stripStart] & 0xFF : ints[i - stripStart];
+        }
+
+        @Override
+        public void setElem(final int bank, final int i, final int value) {
+            throw new UnsupportedOperationException("Images produced in strips are read-only");
+        }
+
+        /**
+         * Moves on to the strip holding an element.
+         */
+        private void advance(final int i) {
+            if (i < stripStart) {
+                throw new IllegalStateException("Images produced in strips must be read top to bottom");
+            }
+            while (i >= stripEnd) {
+                final BufferedImage next;
+                try {
+                    next = source.nextStrip();
+                } catch (final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (next == null) {
+                    throw new IllegalStateException("The strips ended before the image");
+                }
+                BufferPool.release(strip);
+                stripStart = stripEnd;
+                hold(next);
+            }
+        }
+
+        private void hold(final BufferedImage next) {
+            strip = next;
+            stripEnd = stripStart + next.getHeight() * rowLength;
+            final DataBuffer dataBuffer = next.getRaster().getDataBuffer();
+            bytes = dataBuffer instanceof DataBufferByte ? ((DataBufferByte) dataBuffer).getData() : null;
+            ints = dataBuffer instanceof DataBufferInt ? ((DataBufferInt) dataBuffer).getData() : null;
+        }
+    }
+
+}
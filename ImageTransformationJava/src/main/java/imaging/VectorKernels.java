@@ -0,0 +1,284 @@
+package imaging;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  SIMD versions of the point operations, built on the Vector API.
+ *
+ *  Every pixel is widened to an int lane, so one iteration processes as many pixels as the host vector holds
+ *  ints, e.g. 8 with AVX2. Interleaved byte pixels are loaded as whole vectors and reinterpreted as ints, three
+ *  byte pixels are first spread to four bytes with a shuffle. The arithmetic is the same as in the scalar loops,
+ *  so both produce identical pixels. Each kernel processes the longest prefix of a row that fills whole vectors
+ *  and returns how much it processed, the caller finishes the row with its scalar loop.
+ *
+ *  Only used when Simd.isEnabled(), loading this class without the jdk.incubator.vector module fails.
+ */
+final class VectorKernels {
+
+    /**
+     * One lane per pixel.
+     */
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * The bytes of as many pixels as INTS has lanes, when a pixel has four bytes.
+     */
+    private static final VectorSpecies<Byte> PIXEL_BYTES = VectorSpecies.of(byte.class, INTS.vectorShape());
+
+    /**
+     * One byte per int lane, for 8-bit samples.
+     */
+    private static final VectorSpecies<Byte> SAMPLE_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(INTS.vectorBitSize() / 4));
+
+    /**
+     * The fraction bits of the fixed-point brightness multiplier.
+     */
+    private static final int MULTIPLIER_SHIFT = 23;
+
+    /**
+     * Spreads BGR pixels to four bytes each, so they can be read as ints like TYPE_INT_RGB pixels.
+     */
+    private static final VectorShuffle<Byte> BGR_TO_INTS = VectorShuffle.fromOp(PIXEL_BYTES, i -> (i / 4) * 3 + (i % 4 == 3 ? 0 : i % 4));
+
+    private VectorKernels() {
+    }
+
+    /**
+     * Checks whether the host vectors are wide enough for these kernels to beat the scalar loops.
+     *
+     * @return Whether the kernels should be used.
+     */
+    static boolean isSupported() {
+        return INTS.vectorBitSize() >= 256;
+    }
+
+    /**
+     * Converts the start of a TYPE_INT_RGB or TYPE_INT_ARGB row to gray, see GrayscaleConverter.
+     *
+     * @return The number of pixels converted.
+     */
+    static int grayIntRgb(final int[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                          final int width, final int red, final int green, final int blue, final boolean hasAlpha) {
+        final int lanes = INTS.length();
+        int x = 0;
+        for (; x + lanes <= width; x += lanes) {
+            final IntVector pixels = IntVector.fromArray(INTS, source, sourceOffset + x);
+            gray(pixels, red, green, blue, hasAlpha ? pixels.lanewise(VectorOperators.LSHR, 24) : null)
+                    .convertShape(VectorOperators.I2B, SAMPLE_BYTES, 0)
+                    .reinterpretAsBytes()
+                    .intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Converts the start of a TYPE_3BYTE_BGR row to gray, see GrayscaleConverter.
+     *
+     * @return The number of pixels converted.
+     */
+    static int grayByteBgr(final byte[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                           final int width, final int red, final int green, final int blue) {
+        final int lanes = INTS.length();
+        int x = 0;
+        // A vector load reads a third more bytes than the pixels it converts
+        for (; x + lanes <= width && sourceOffset + x * 3 + PIXEL_BYTES.length() <= source.length; x += lanes) {
+            final IntVector pixels = ByteVector.fromArray(PIXEL_BYTES, source, sourceOffset + x * 3)
+                    .rearrange(BGR_TO_INTS)
+                    .reinterpretAsInts();
+            gray(pixels, red, green, blue, null)
+                    .convertShape(VectorOperators.I2B, SAMPLE_BYTES, 0)
+                    .reinterpretAsBytes()
+                    .intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Converts the start of a TYPE_4BYTE_ABGR row to gray, see GrayscaleConverter.
+     *
+     * @return The number of pixels converted.
+     */
+    static int grayByteAbgr(final byte[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                            final int width, final int red, final int green, final int blue) {
+        final int lanes = INTS.length();
+        int x = 0;
+        for (; x + lanes <= width; x += lanes) {
+            // A, B, G, R bytes read as a little-endian int, 0xRRGGBBAA
+            final IntVector pixels = ByteVector.fromArray(PIXEL_BYTES, source, sourceOffset + x * 4).reinterpretAsInts();
+            final IntVector rgb = pixels.lanewise(VectorOperators.LSHR, 8);
+            gray(rgb, red, green, blue, pixels.and(0xFF))
+                    .convertShape(VectorOperators.I2B, SAMPLE_BYTES, 0)
+                    .reinterpretAsBytes()
+                    .intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Finds a fixed-point multiplier that scales every 8-bit sample to the same value as a brightness lookup
+     * table. Converting floats back to ints is not vectorized on every JVM, multiplying ints is.
+     *
+     * @param lookupTable The scaled samples, see BrightnessAdjuster.createLookupTable.
+     * @return The multiplier, in 1 / 2^MULTIPLIER_SHIFT, or 0 if no multiplier reproduces the table.
+     */
+    static int getMultiplier(final byte[] lookupTable) {
+        // Every sample i needs value * 2^shift <= i * multiplier < (value + 1) * 2^shift, or only the lower
+        // bound where the table is clamped to 255
+        long min = 0;
+        long max = Long.MAX_VALUE;
+        for (int i = 1; i < 256; i++) {
+            final int value = lookupTable[i] & 0xFF;
+            min = Math.max(min, (((long) value << MULTIPLIER_SHIFT) + i - 1) / i);
+            if (value < 255) {
+                max = Math.min(max, ((((long) value + 1) << MULTIPLIER_SHIFT) - 1) / i);
+            }
+        }
+        return min <= max && min > 0 && min <= 2L << MULTIPLIER_SHIFT && lookupTable[0] == 0 ? (int) min : 0;
+    }
+
+    /**
+     * Scales the color samples at the start of a TYPE_INT_RGB or TYPE_INT_ARGB row, see BrightnessAdjuster.
+     *
+     * @param multiplier The multiplier reproducing the lookup table, see getMultiplier.
+     * @param alphaMask  The mask of the alpha bits, 0 if the image has no alpha.
+     * @return The number of pixels scaled.
+     */
+    static int scaleInts(final int[] source, final int sourceOffset, final int[] target, final int targetOffset,
+                         final int width, final int multiplier, final int alphaMask) {
+        final int lanes = INTS.length();
+        int x = 0;
+        for (; x + lanes <= width; x += lanes) {
+            final IntVector pixels = IntVector.fromArray(INTS, source, sourceOffset + x);
+            pixels.and(alphaMask)
+                    .or(scale(pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF), multiplier).lanewise(VectorOperators.LSHL, 16))
+                    .or(scale(pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF), multiplier).lanewise(VectorOperators.LSHL, 8))
+                    .or(scale(pixels.and(0xFF), multiplier))
+                    .intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Scales the start of a row of interleaved 8-bit samples, see BrightnessAdjuster.
+     *
+     * @param length      The number of samples in the row.
+     * @param multiplier  The multiplier reproducing the lookup table, see getMultiplier.
+     * @param pixelStride The number of samples per pixel.
+     * @param alphaOffset The offset of the alpha sample in a pixel, -1 if the image has no alpha.
+     * @return The number of samples processed.
+     */
+    static int scaleBytes(final byte[] source, final int sourceOffset, final byte[] target, final int targetOffset,
+                          final int length, final int multiplier, final int pixelStride, final int alphaOffset) {
+        final int lanes = INTS.length();
+        if (alphaOffset >= 0 && lanes % pixelStride != 0) {
+            return 0;
+        }
+        final boolean[] alphaLanes = new boolean[lanes];
+        for (int i = 0; i < lanes; i++) {
+            alphaLanes[i] = i % pixelStride == alphaOffset;
+        }
+        final VectorMask<Integer> alpha = VectorMask.fromArray(INTS, alphaLanes, 0);
+
+        int i = 0;
+        for (; i + lanes <= length; i += lanes) {
+            final IntVector samples = (IntVector) ByteVector.fromArray(SAMPLE_BYTES, source, sourceOffset + i)
+                    .convertShape(VectorOperators.B2I, INTS, 0);
+            final IntVector unsigned = samples.and(0xFF);
+            scale(unsigned, multiplier)
+                    .blend(unsigned, alpha)
+                    .convertShape(VectorOperators.I2B, SAMPLE_BYTES, 0)
+                    .reinterpretAsBytes()
+                    .intoArray(target, targetOffset + i);
+        }
+        return i;
+    }
+
+    /**
+     * Blends the start of a TYPE_INT_ARGB row over white into a TYPE_INT_RGB row, see CanonicalLayout.
+     *
+     * @return The number of pixels blended.
+     */
+    static int flattenIntArgb(final int[] source, final int sourceOffset, final int[] target, final int targetOffset, final int width) {
+        final int lanes = INTS.length();
+        int x = 0;
+        for (; x + lanes <= width; x += lanes) {
+            final IntVector pixels = IntVector.fromArray(INTS, source, sourceOffset + x);
+            overWhite(pixels, pixels.lanewise(VectorOperators.LSHR, 24)).intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Blends the start of a TYPE_4BYTE_ABGR row over white into a TYPE_INT_RGB row, see CanonicalLayout.
+     *
+     * @return The number of pixels blended.
+     */
+    static int flattenByteAbgr(final byte[] source, final int sourceOffset, final int[] target, final int targetOffset, final int width) {
+        final int lanes = INTS.length();
+        int x = 0;
+        for (; x + lanes <= width; x += lanes) {
+            // A, B, G, R bytes read as a little-endian int, 0xRRGGBBAA
+            final IntVector pixels = ByteVector.fromArray(PIXEL_BYTES, source, sourceOffset + x * 4).reinterpretAsInts();
+            overWhite(pixels.lanewise(VectorOperators.LSHR, 8), pixels.and(0xFF)).intoArray(target, targetOffset + x);
+        }
+        return x;
+    }
+
+    /**
+     * Computes the luma of 0xRRGGBB pixels, blended over black if they have an alpha.
+     *
+     * @param pixels The pixels, bits above the blue, green and red bytes are ignored.
+     * @param red    The red weight, in 1/256.
+     * @param green  The green weight, in 1/256.
+     * @param blue   The blue weight, in 1/256.
+     * @param alpha  The alpha of every pixel, or null if the pixels are opaque.
+     * @return The gray values.
+     */
+    private static IntVector gray(final IntVector pixels, final int red, final int green, final int blue, final IntVector alpha) {
+        final IntVector gray = pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF).mul(red)
+                .add(pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF).mul(green))
+                .add(pixels.and(0xFF).mul(blue))
+                .add(128)
+                .lanewise(VectorOperators.LSHR, 8);
+        return alpha == null ? gray : overBlack(alpha, gray);
+    }
+
+    /**
+     * Blends 0xRRGGBB pixels over white, the way Java2D draws them onto an opaque white image.
+     *
+     * @param pixels The pixels, bits above the blue, green and red bytes are ignored.
+     * @param alpha  The alpha of every pixel.
+     * @return The blended pixels.
+     */
+    private static IntVector overWhite(final IntVector pixels, final IntVector alpha) {
+        final IntVector background = alpha.neg().add(0xFF);
+        return overBlack(alpha, pixels.lanewise(VectorOperators.LSHR, 16).and(0xFF)).add(background).lanewise(VectorOperators.LSHL, 16)
+                .or(overBlack(alpha, pixels.lanewise(VectorOperators.LSHR, 8).and(0xFF)).add(background).lanewise(VectorOperators.LSHL, 8))
+                .or(overBlack(alpha, pixels.and(0xFF)).add(background));
+    }
+
+    /**
+     * Blends samples over black, see GrayscaleConverter.overBlack. Also exact for opaque samples.
+     */
+    private static IntVector overBlack(final IntVector alpha, final IntVector samples) {
+        // Unsigned 32-bit arithmetic, alpha * 0x10101 * sample + 0x800000 fits
+        return alpha.mul(0x10101).mul(samples).add(1 << 23).lanewise(VectorOperators.LSHR, 24);
+    }
+
+    /**
+     * Scales samples with a fixed-point multiplier, clamped to 255.
+     */
+    private static IntVector scale(final IntVector samples, final int multiplier) {
+        return samples.mul(multiplier).lanewise(VectorOperators.LSHR, MULTIPLIER_SHIFT).min(255);
+    }
+
+}
@@ -8,12 +8,17 @@ import functions.F4ImageGrayscale;
 import functions.F5ImageBrightness;
 import functions.F6ImageTransform;
 import functions.ImageBatchProcessing;
+import imaging.OffHeapBuffer;
+import imaging.StripReader;
 import saaf.Inspector;
+import storage.ImageStore;
 import utils.Constants;
 import utils.Constants.ImageProcessFunction;
 import utils.FileValidator;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 /***
  *  TCSS 462 Image Transformation
@@ -23,6 +28,32 @@ import java.util.HashMap;
  */
 public class Main {
 
+    /**
+     *  The image store selected by the environment. Created while the handler class loads, outside of any invocation.
+     */
+    private static final ImageStore DEFAULT_STORE = ImageStore.fromEnvironment();
+
+    /**
+     *  The image store the functions read from and write to.
+     */
+    private final ImageStore store;
+
+    /**
+     *  Creates the handler used by AWS Lambda.
+     */
+    public Main() {
+        this(DEFAULT_STORE);
+    }
+
+    /**
+     *  Creates a handler backed by a specific image store, e.g. to run the functions against local storage.
+     *
+     *  @param store    The image store to use.
+     */
+    public Main(final ImageStore store) {
+        this.store = store;
+    }
+
     /***
      *  Handles the request.
      *
@@ -36,10 +67,17 @@ public class Main {
                                                final ImageProcessFunction function) {
 
 
-        // Validate file type
-        final String fileName = (String) request.get(Constants.FILE_NAME_KEY);
-        if (!FileValidator.isValidFileType(fileName)) {
-            return Constants.getErrorObject("Unsupported file format. Only JPEG, JPG and PNG are allowed.");
+        // Validate file types, a batch over several images lists them under FILE_NAMES_KEY
+        final Object fileNames = request.containsKey(Constants.FILE_NAMES_KEY)
+                ? request.get(Constants.FILE_NAMES_KEY)
+                : Collections.singletonList(request.get(Constants.FILE_NAME_KEY));
+        if (!(fileNames instanceof List) || ((List<?>) fileNames).isEmpty()) {
+            return Constants.getErrorObject("Missing required parameter: " + Constants.FILE_NAMES_KEY);
+        }
+        for (final Object fileName : (List<?>) fileNames) {
+            if (!(fileName instanceof String) || !FileValidator.isValidFileType((String) fileName)) {
+                return Constants.getErrorObject("Unsupported file format. Only JPEG, JPG and PNG are allowed.");
+            }
         }
 
         // To return only metrics, add "return_only_metrics": true to request body
@@ -54,14 +92,29 @@ public class Main {
 
         // Use Inspector for metrics collection
         final Inspector inspector = new Inspector(returnOnlyMetrics);
-
-        // Execute function
-        final HashMap<String, Object> functionOutput = function.process(request, context);
+        inspector.inspectS3Client();
+        inspector.inspectImageCache();
+        inspector.inspectOffHeap();
+        inspector.inspectBufferPool();
+
+        // Execute function, then free any scratch memory it left open
+        final HashMap<String, Object> functionOutput;
+        try {
+            functionOutput = function.process(store, request, context);
+        } finally {
+            OffHeapBuffer.releaseAll();
+            StripReader.closeAll();
+        }
 
         // Move network latency to top-level inspector and remove from function output
         inspector.addAttribute(Constants.NETWORK_LATENCY_KEY, functionOutput.get(Constants.NETWORK_LATENCY_KEY));
         functionOutput.remove(Constants.NETWORK_LATENCY_KEY);
 
+        // Same for result cache hits, reported by the functions that write an output
+        if (functionOutput.containsKey(Constants.RESULT_CACHE_HIT_KEY)) {
+            inspector.addAttribute(Constants.RESULT_CACHE_HIT_KEY, functionOutput.remove(Constants.RESULT_CACHE_HIT_KEY));
+        }
+
         // Append function output to inspector
         inspector.addAttribute("function_output", functionOutput);
 
@@ -114,7 +167,7 @@ public class Main {
     }
 
     /**
-     * AWS Lambda entry point for the batch pipeline.
+     * AWS Lambda entry point for the batch pipeline, over one image or a list of images.
      */
     public HashMap<String, Object> imageBatch(final HashMap<String, Object> request, final Context context) {
         return handleCall(request, context, ImageBatchProcessing::handleRequest);
@@ -13,7 +13,12 @@ import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.UUID;
 
+import imaging.BufferPool;
+import imaging.OffHeapBuffer;
+import storage.HedgedRequests;
 import utils.Constants;
+import utils.DecodedImageCache;
+import utils.S3ClientManager;
 
 /**
  * SAAF
@@ -31,6 +36,20 @@ public class Inspector {
     private boolean inspectedContainer = false;
     private boolean inspectedPlatform = false;
     private boolean inspectedLinux = false;
+    private boolean inspectedS3Client = false;
+    private boolean inspectedImageCache = false;
+    private boolean inspectedOffHeap = false;
+    private boolean inspectedBufferPool = false;
+
+    private long s3RequestCount;
+    private long s3HandshakeCount;
+    private long s3HedgeCount;
+    private long s3HedgeWinCount;
+    private long imageCacheHitCount;
+    private long imageCacheMissCount;
+    private long imageCacheEvictionCount;
+    private long bufferPoolHitCount;
+    private long bufferPoolMissCount;
 
     private final boolean returnOnlyMetrics;
 
@@ -86,6 +105,18 @@ public class Inspector {
             this.addAttribute(Constants.NETWORK_LATENCY_KEY, networkLatency);
         }
 
+        // S3 connection reuse during this invocation
+        this.inspectS3ClientDelta();
+
+        // Decoded image cache use during this invocation
+        this.inspectImageCacheDelta();
+
+        // Scratch memory kept off the heap during this invocation
+        this.inspectOffHeapDelta();
+
+        // Buffers reused from earlier invocations
+        this.inspectBufferPoolDelta();
+
         // Calculate function runtime
         long functionRuntime = System.currentTimeMillis() - roundTripStart;
         this.addAttribute(Constants.FUNCTION_RUN_TIME_KEY, functionRuntime);
@@ -439,6 +470,118 @@ public class Inspector {
         attributes.put("linuxVersion", linuxVersion);
     }
 
+    /**
+     * Records the S3 client counters so connection reuse and hedging can be measured for this invocation.
+     */
+    public void inspectS3Client() {
+        inspectedS3Client = true;
+        s3RequestCount = S3ClientManager.getRequestCount();
+        s3HandshakeCount = S3ClientManager.getHandshakeCount();
+        s3HedgeCount = HedgedRequests.getHedgeCount();
+        s3HedgeWinCount = HedgedRequests.getHedgeWinCount();
+    }
+
+    /**
+     * Compare the S3 client counters to the values recorded by inspectS3Client.
+     * s3_requests:           HTTP attempts sent to S3.
+     * s3_tls_handshakes:     New connections opened, each with a TLS handshake.
+     * s3_connections_reused: HTTP attempts served by an already open pooled connection.
+     * s3_hedged_requests:    Duplicate GETs sent because the original was slow to answer.
+     * s3_hedge_wins:         Duplicate GETs that answered before the original.
+     * s3_hedge_threshold_ms: The time after which a GET is duplicated, -1 while hedging is off or still learning.
+     */
+    public void inspectS3ClientDelta() {
+        if (inspectedS3Client) {
+            final long requests = S3ClientManager.getRequestCount() - s3RequestCount;
+            final long handshakes = S3ClientManager.getHandshakeCount() - s3HandshakeCount;
+            attributes.put(Constants.S3_REQUESTS_KEY, requests);
+            attributes.put(Constants.S3_TLS_HANDSHAKES_KEY, handshakes);
+            attributes.put(Constants.S3_CONNECTIONS_REUSED_KEY, Math.max(0, requests - handshakes));
+            attributes.put(Constants.S3_HEDGED_REQUESTS_KEY, HedgedRequests.getHedgeCount() - s3HedgeCount);
+            attributes.put(Constants.S3_HEDGE_WINS_KEY, HedgedRequests.getHedgeWinCount() - s3HedgeWinCount);
+            attributes.put(Constants.S3_HEDGE_THRESHOLD_KEY, HedgedRequests.getThreshold());
+        } else {
+            attributes.put("SAAFS3ClientDeltaError", "S3 client not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Records the decoded image cache counters so cache use can be measured for this invocation.
+     */
+    public void inspectImageCache() {
+        inspectedImageCache = true;
+        imageCacheHitCount = DecodedImageCache.getHitCount();
+        imageCacheMissCount = DecodedImageCache.getMissCount();
+        imageCacheEvictionCount = DecodedImageCache.getEvictionCount();
+    }
+
+    /**
+     * Compare the decoded image cache counters to the values recorded by inspectImageCache.
+     * decoded_cache_hits:      Source images served from the cache after revalidation.
+     * decoded_cache_misses:    Source images downloaded and decoded.
+     * decoded_cache_evictions: Images evicted to make room.
+     * decoded_cache_bytes:     Raster bytes held by the cache after the invocation.
+     */
+    public void inspectImageCacheDelta() {
+        if (inspectedImageCache) {
+            attributes.put(Constants.DECODED_CACHE_HITS_KEY, DecodedImageCache.getHitCount() - imageCacheHitCount);
+            attributes.put(Constants.DECODED_CACHE_MISSES_KEY, DecodedImageCache.getMissCount() - imageCacheMissCount);
+            attributes.put(Constants.DECODED_CACHE_EVICTIONS_KEY, DecodedImageCache.getEvictionCount() - imageCacheEvictionCount);
+            attributes.put(Constants.DECODED_CACHE_BYTES_KEY, DecodedImageCache.getSize());
+        } else {
+            attributes.put("SAAFImageCacheDeltaError", "Image cache not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Starts measuring the scratch memory kernels keep off the heap, see OffHeapBuffer.
+     */
+    public void inspectOffHeap() {
+        inspectedOffHeap = true;
+        OffHeapBuffer.resetPeakBytes();
+    }
+
+    /**
+     * Records the off-heap scratch memory used since inspectOffHeap.
+     * off_heap_peak_bytes: The most bytes of off-heap scratch buffers open at once.
+     */
+    public void inspectOffHeapDelta() {
+        if (inspectedOffHeap) {
+            attributes.put(Constants.OFF_HEAP_PEAK_BYTES_KEY, OffHeapBuffer.resetPeakBytes());
+        } else {
+            attributes.put("SAAFOffHeapDeltaError", "Off-heap memory not inspected before collecting deltas!");
+        }
+    }
+
+    /**
+     * Records the buffer pool counters so buffer reuse can be measured for this invocation.
+     */
+    public void inspectBufferPool() {
+        inspectedBufferPool = true;
+        bufferPoolHitCount = BufferPool.getHitCount();
+        bufferPoolMissCount = BufferPool.getMissCount();
+    }
+
+    /**
+     * Compare the buffer pool counters to the values recorded by inspectBufferPool.
+     * buffer_pool_hits:     Images and part buffers reused from the pool.
+     * buffer_pool_misses:   Images and part buffers newly allocated.
+     * buffer_pool_hit_rate: The share of borrowed buffers that were reused.
+     * buffer_pool_bytes:    Bytes of free buffers held by the pool after the invocation.
+     */
+    public void inspectBufferPoolDelta() {
+        if (inspectedBufferPool) {
+            final long hits = BufferPool.getHitCount() - bufferPoolHitCount;
+            final long misses = BufferPool.getMissCount() - bufferPoolMissCount;
+            attributes.put(Constants.BUFFER_POOL_HITS_KEY, hits);
+            attributes.put(Constants.BUFFER_POOL_MISSES_KEY, misses);
+            attributes.put(Constants.BUFFER_POOL_HIT_RATE_KEY, hits + misses > 0 ? (double) hits / (hits + misses) : 0.0);
+            attributes.put(Constants.BUFFER_POOL_BYTES_KEY, BufferPool.getSize());
+        } else {
+            attributes.put("SAAFBufferPoolDeltaError", "Buffer pool not inspected before collecting deltas!");
+        }
+    }
+
     /**
      * Run all data collection methods and record framework runtime.
      */
@@ -535,7 +678,23 @@ public class Inspector {
                 Constants.PROCESSING_THROUGHPUT_KEY,
                 Constants.MEMORY_USED_MB_KEY,
                 Constants.ESTIMATED_COST_KEY,
-                Constants.LANGUAGE_KEY
+                Constants.LANGUAGE_KEY,
+                Constants.S3_REQUESTS_KEY,
+                Constants.S3_TLS_HANDSHAKES_KEY,
+                Constants.S3_CONNECTIONS_REUSED_KEY,
+                Constants.S3_HEDGED_REQUESTS_KEY,
+                Constants.S3_HEDGE_WINS_KEY,
+                Constants.S3_HEDGE_THRESHOLD_KEY,
+                Constants.DECODED_CACHE_HITS_KEY,
+                Constants.DECODED_CACHE_MISSES_KEY,
+                Constants.DECODED_CACHE_EVICTIONS_KEY,
+                Constants.DECODED_CACHE_BYTES_KEY,
+                Constants.OFF_HEAP_PEAK_BYTES_KEY,
+                Constants.BUFFER_POOL_HITS_KEY,
+                Constants.BUFFER_POOL_MISSES_KEY,
+                Constants.BUFFER_POOL_HIT_RATE_KEY,
+                Constants.BUFFER_POOL_BYTES_KEY,
+                Constants.RESULT_CACHE_HIT_KEY
         };
 
         for (final String key : desiredKeys) {
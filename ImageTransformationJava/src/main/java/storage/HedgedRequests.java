@@ -0,0 +1,293 @@
+package storage;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Sends a duplicate of a GET that is slow to answer and keeps whichever answer comes first.
+ *
+ *  A few S3 requests take much longer than the rest, and one slow GET dominates the latency of the whole
+ *  invocation. A request counts as answered once the store returns the object, i.e. once S3 sent the response
+ *  headers and the first bytes can be read. The container learns how long that takes from the recent requests.
+ *  A request still unanswered after the configured percentile of that time is sent again, and the answer that
+ *  arrives first is used while the other one is aborted when it arrives. Duplicates are limited to a share of
+ *  all requests, so a slow store is not flooded with twice the requests.
+ */
+public final class HedgedRequests {
+
+    /**
+     * Environment variable holding the percentile of recent latencies after which a request is duplicated.
+     */
+    public static final String PERCENTILE_ENV = "S3_HEDGE_PERCENTILE";
+
+    /**
+     * Environment variable holding the most duplicates as a percentage of all requests. 0 disables hedging.
+     */
+    public static final String MAX_PERCENT_ENV = "S3_HEDGE_MAX_PERCENT";
+
+    /**
+     * The percentile if none is configured.
+     */
+    private static final double DEFAULT_PERCENTILE = 95;
+
+    /**
+     * The share of duplicates if none is configured, in percent.
+     */
+    private static final double DEFAULT_MAX_PERCENT = 5;
+
+    /**
+     * The number of recent latencies the threshold is learned from.
+     */
+    private static final int SAMPLE_COUNT = 128;
+
+    /**
+     * The latencies needed before any request is duplicated.
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * The shortest threshold, so a store answering within microseconds is not duplicated on scheduling jitter.
+     */
+    private static final long MIN_THRESHOLD_MS = 5;
+
+    /**
+     * The most duplicates that can be saved up while requests are fast, so a burst of slow requests is covered.
+     */
+    private static final double MAX_BUDGET = 10;
+
+    private static final double PERCENTILE = getPercentile();
+    private static final double MAX_PERCENT = getMaxPercent();
+
+    /**
+     * Recent latencies in milliseconds, a ring buffer guarded by itself.
+     */
+    private static final long[] SAMPLES = new long[SAMPLE_COUNT];
+    private static int sampleCount;
+    private static int nextSample;
+
+    /**
+     * Duplicates that may still be sent, guarded by SAMPLES.
+     */
+    private static double budget;
+
+    private static final AtomicLong HEDGES = new AtomicLong();
+    private static final AtomicLong HEDGE_WINS = new AtomicLong();
+
+    private HedgedRequests() {
+    }
+
+    /**
+     * Sends a request, and a duplicate of it if the first one is slow to answer.
+     *
+     * @param request The request. It must be safe to send twice.
+     * @return The first response, or null if the request returned null.
+     * @throws IOException If the request failed, and the duplicate failed as well if one was sent.
+     */
+    public static StoredObject send(final Transfers.Request<StoredObject> request) throws IOException {
+        if (MAX_PERCENT <= 0) {
+            return request.send();
+        }
+        earnBudget();
+        final long threshold = getThreshold();
+
+        final CompletableFuture<StoredObject> primary = start(request);
+        if (threshold < 0 || isAnsweredWithin(primary, threshold) || !takeBudget()) {
+            return join(primary);
+        }
+
+        // Race the duplicate against the original, the slower answer is dropped once it arrives
+        HEDGES.incrementAndGet();
+        final CompletableFuture<StoredObject> hedge = start(request);
+        final CompletableFuture<StoredObject> first = new CompletableFuture<>();
+        final AtomicInteger failures = new AtomicInteger();
+        primary.whenComplete((response, error) -> complete(first, response, error, failures, primary, false));
+        hedge.whenComplete((response, error) -> complete(first, response, error, failures, primary, true));
+        return join(first);
+    }
+
+    /**
+     * Returns the number of duplicate requests sent.
+     *
+     * @return The number of duplicates since the container started.
+     */
+    public static long getHedgeCount() {
+        return HEDGES.get();
+    }
+
+    /**
+     * Returns the number of duplicates that answered before the original request.
+     *
+     * @return The number of won duplicates since the container started.
+     */
+    public static long getHedgeWinCount() {
+        return HEDGE_WINS.get();
+    }
+
+    /**
+     * Returns the time after which a request is currently duplicated.
+     *
+     * @return The threshold in milliseconds, or -1 while hedging is disabled or too few latencies are known.
+     */
+    public static long getThreshold() {
+        final long[] samples;
+        synchronized (SAMPLES) {
+            if (sampleCount < MIN_SAMPLES) {
+                return -1;
+            }
+            samples = Arrays.copyOf(SAMPLES, sampleCount);
+        }
+        Arrays.sort(samples);
+        final int index = (int) Math.ceil(PERCENTILE / 100 * samples.length) - 1;
+        return Math.max(MIN_THRESHOLD_MS, samples[Math.max(0, Math.min(samples.length - 1, index))]);
+    }
+
+    /**
+     * Starts a request in the background and records its latency once it is answered.
+     */
+    private static <T> CompletableFuture<T> start(final Transfers.Request<T> request) {
+        return Transfers.supplyAsync(() -> {
+            final long startTime = System.currentTimeMillis();
+            final T response = request.send();
+            record(System.currentTimeMillis() - startTime);
+            return response;
+        });
+    }
+
+    /**
+     * Hands the first successful response to the caller and aborts a later one, so its content is not
+     * downloaded only to be thrown away. The caller only sees a failure once both requests failed, and then the
+     * failure of the original.
+     */
+    private static void complete(final CompletableFuture<StoredObject> first,
+                                 final StoredObject response,
+                                 final Throwable error,
+                                 final AtomicInteger failures,
+                                 final CompletableFuture<StoredObject> primary,
+                                 final boolean isHedge) {
+        if (error != null) {
+            if (failures.incrementAndGet() == 2) {
+                primary.whenComplete((ignored, primaryError) -> first.completeExceptionally(primaryError));
+            }
+            return;
+        }
+        if (first.complete(response)) {
+            if (isHedge) {
+                HEDGE_WINS.incrementAndGet();
+            }
+        } else if (response != null) {
+            try {
+                response.abort();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits up to the threshold for a request to be answered.
+     *
+     * @return False if the request is still unanswered.
+     */
+    private static boolean isAnsweredWithin(final CompletableFuture<?> request, final long threshold) {
+        try {
+            request.get(threshold, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (final TimeoutException e) {
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (final ExecutionException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Waits for a response, rethrowing the failure of the request.
+     */
+    private static <T> T join(final CompletableFuture<T> request) throws IOException {
+        try {
+            return request.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Records the latency of an answered request and earns a share of a duplicate.
+     */
+    private static void record(final long latency) {
+        synchronized (SAMPLES) {
+            SAMPLES[nextSample] = latency;
+            nextSample = (nextSample + 1) % SAMPLE_COUNT;
+            sampleCount = Math.min(SAMPLE_COUNT, sampleCount + 1);
+        }
+    }
+
+    /**
+     * Earns the share of a duplicate every request is allowed.
+     */
+    private static void earnBudget() {
+        synchronized (SAMPLES) {
+            budget = Math.min(MAX_BUDGET, budget + MAX_PERCENT / 100);
+        }
+    }
+
+    /**
+     * Spends a duplicate if a whole one has been earned.
+     *
+     * @return True if a duplicate may be sent.
+     */
+    private static boolean takeBudget() {
+        synchronized (SAMPLES) {
+            if (budget < 1) {
+                return false;
+            }
+            budget--;
+            return true;
+        }
+    }
+
+    /**
+     * Reads the percentile from the environment.
+     *
+     * @return The percentile, between 1 and 100.
+     */
+    private static double getPercentile() {
+        try {
+            return Math.max(1, Math.min(100, Double.parseDouble(System.getenv(PERCENTILE_ENV))));
+        } catch (final Exception ignored) {
+            return DEFAULT_PERCENTILE;
+        }
+    }
+
+    /**
+     * Reads the share of duplicates from the environment.
+     *
+     * @return The most duplicates as a percentage of all requests.
+     */
+    private static double getMaxPercent() {
+        try {
+            return Math.max(0, Double.parseDouble(System.getenv(MAX_PERCENT_ENV)));
+        } catch (final Exception ignored) {
+            return DEFAULT_MAX_PERCENT;
+        }
+    }
+
+}
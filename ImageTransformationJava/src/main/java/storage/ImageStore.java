@@ -0,0 +1,208 @@
+package storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Storage backend used by the functions to read and write images.
+ */
+public interface ImageStore {
+
+    /**
+     * Environment variable selecting the backend: "s3" (default), "local" or "memory".
+     */
+    String STORE_TYPE_ENV = "IMAGE_STORE";
+
+    /**
+     * Environment variable holding the root directory of the local backend.
+     */
+    String STORE_ROOT_ENV = "IMAGE_STORE_ROOT";
+
+    /**
+     * The root directory of the local backend if none is configured.
+     */
+    String DEFAULT_STORE_ROOT = "/tmp/image-store";
+
+
+    /**
+     * Reads an entire object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return The contents of the object.
+     * @throws IOException If the object could not be read.
+     */
+    byte[] getBytes(final String bucketName, final String fileName) throws IOException;
+
+    /**
+     * Opens a stream over an object. The caller must close it.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return A stream over the contents of the object.
+     * @throws IOException If the object could not be opened.
+     */
+    InputStream getStream(final String bucketName, final String fileName) throws IOException;
+
+    /**
+     * Opens an object unless it still has the given entity tag (a conditional GET), so a cached copy can be
+     * revalidated and refreshed in a single request. The caller must close the returned object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param eTag       The entity tag of the cached copy, or null to always read the object.
+     * @return The object, or null if its entity tag still matches.
+     * @throws IOException If the object could not be opened.
+     */
+    StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag) throws IOException;
+
+    /**
+     * Opens a byte range of an object unless it still has the given entity tag, see getObjectIfChanged. The
+     * returned object reports the size of the whole object rather than of the range, so the rest of the object
+     * can be requested. The caller must close the returned object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param eTag       The entity tag of the cached copy, or null to always read the range.
+     * @param offset     The first byte to read.
+     * @param length     The maximum number of bytes to read. Fewer are returned if the object ends first.
+     * @return The range of the object, or null if its entity tag still matches.
+     * @throws IOException If the object could not be opened.
+     */
+    StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws IOException;
+
+    /**
+     * Opens a byte range of an object only if it still has the given entity tag (a GET with If-Match), so the
+     * parts of one object can be read separately without mixing versions. The returned object reports the size
+     * of the whole object. The caller must close the returned object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param eTag       The entity tag the object must have.
+     * @param offset     The first byte to read.
+     * @param length     The maximum number of bytes to read. Fewer are returned if the object ends first.
+     * @return The range of the object, or null if its entity tag changed.
+     * @throws IOException If the object could not be opened.
+     */
+    StoredObject getObjectIfUnchanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws IOException;
+
+    /**
+     * Opens a stream over a byte range of an object. The caller must close it.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param offset     The first byte to read.
+     * @param length     The maximum number of bytes to read. Fewer are returned if the object ends first.
+     * @return A stream over the requested range.
+     * @throws IOException If the object could not be opened.
+     */
+    InputStream getStream(final String bucketName, final String fileName, final long offset, final long length) throws IOException;
+
+    /**
+     * Looks up the version and metadata of an object without reading it (a HEAD request).
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return The object information, or null if there is no such object.
+     * @throws IOException If the object could not be looked up.
+     */
+    ObjectInfo head(final String bucketName, final String fileName) throws IOException;
+
+    /**
+     * Writes an object, replacing it if it already exists.
+     *
+     * @param bucketName  The name of the bucket.
+     * @param fileName    The name of the object.
+     * @param data        The contents of the object.
+     * @param contentType The MIME type of the object.
+     * @throws IOException If the object could not be written.
+     */
+    void put(final String bucketName, final String fileName, final byte[] data, final String contentType) throws IOException;
+
+    /**
+     * Opens a stream that writes an object, replacing it if it already exists. The object is stored when the
+     * stream is closed; call {@link UploadStream#abort()} instead if writing fails.
+     *
+     * @param bucketName  The name of the bucket.
+     * @param fileName    The name of the object.
+     * @param contentType The MIME type of the object.
+     * @return A stream to write the contents of the object to.
+     * @throws IOException If the object could not be created.
+     */
+    default UploadStream openUpload(final String bucketName, final String fileName, final String contentType) throws IOException {
+        return openUpload(bucketName, fileName, contentType, Collections.emptyMap());
+    }
+
+    /**
+     * Opens a stream that writes an object along with user metadata, replacing it if it already exists.
+     * The object is stored when the stream is closed; call {@link UploadStream#abort()} instead if writing fails.
+     *
+     * @param bucketName   The name of the bucket.
+     * @param fileName     The name of the object.
+     * @param contentType  The MIME type of the object.
+     * @param userMetadata Metadata stored with the object. Keys should be lower case.
+     * @return A stream to write the contents of the object to.
+     * @throws IOException If the object could not be created.
+     */
+    UploadStream openUpload(final String bucketName, final String fileName, final String contentType, final Map<String, String> userMetadata) throws IOException;
+
+    /**
+     * Creates a temporary URL to download an object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param expiration When the URL should stop working.
+     * @return The URL.
+     */
+    String presign(final String bucketName, final String fileName, final Date expiration);
+
+    /**
+     * Looks up the version and metadata of an object in the background, see head.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return The object information, or null if there is no such object.
+     */
+    default CompletableFuture<ObjectInfo> headAsync(final String bucketName, final String fileName) {
+        return Transfers.supplyAsync(() -> head(bucketName, fileName));
+    }
+
+    /**
+     * Creates a temporary URL to download an object in the background, see presign. The URL is signed locally,
+     * so it can be created while the object is still uploading.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param expiration When the URL should stop working.
+     * @return The URL.
+     */
+    default CompletableFuture<String> presignAsync(final String bucketName, final String fileName, final Date expiration) {
+        return Transfers.supplyAsync(() -> presign(bucketName, fileName, expiration));
+    }
+
+
+    /**
+     * Creates the backend selected by the IMAGE_STORE environment variable.
+     *
+     * @return The configured image store.
+     */
+    static ImageStore fromEnvironment() {
+        final String type = System.getenv(STORE_TYPE_ENV);
+        if ("local".equalsIgnoreCase(type)) {
+            final String root = System.getenv(STORE_ROOT_ENV);
+            return new LocalFileImageStore(root != null ? root : DEFAULT_STORE_ROOT);
+        }
+        if ("memory".equalsIgnoreCase(type)) {
+            return new MemoryImageStore();
+        }
+        return new S3ImageStore();
+    }
+
+}
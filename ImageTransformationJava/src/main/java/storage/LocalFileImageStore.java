@@ -0,0 +1,298 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Image store backed by a local directory. Buckets are subdirectories of the root.
+ *  Reads memory-map the file, so the decoder reads straight from the page cache without copying into the heap.
+ *  User metadata is kept in a hidden properties file next to the object.
+ */
+public class LocalFileImageStore implements ImageStore {
+
+    /**
+     * The directory holding the buckets.
+     */
+    private final Path root;
+
+    public LocalFileImageStore(final String root) {
+        this.root = Paths.get(root);
+    }
+
+    @Override
+    public byte[] getBytes(final String bucketName, final String fileName) throws IOException {
+        final MappedByteBuffer buffer = map(bucketName, fileName);
+        final byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName) throws IOException {
+        return new ByteBufferInputStream(map(bucketName, fileName));
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag) throws IOException {
+        final String currentETag = getETag(getPath(bucketName, fileName));
+        if (currentETag.equals(eTag)) {
+            return null;
+        }
+        final MappedByteBuffer buffer = map(bucketName, fileName);
+        return new StoredObject(new ByteBufferInputStream(buffer), currentETag, buffer.remaining());
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws IOException {
+        final Path path = getPath(bucketName, fileName);
+        final String currentETag = getETag(path);
+        if (currentETag.equals(eTag)) {
+            return null;
+        }
+        return new StoredObject(new ByteBufferInputStream(map(bucketName, fileName, offset, length)), currentETag, Files.size(path));
+    }
+
+    @Override
+    public StoredObject getObjectIfUnchanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws IOException {
+        final Path path = getPath(bucketName, fileName);
+        final String currentETag = getETag(path);
+        if (!currentETag.equals(eTag)) {
+            return null;
+        }
+        return new StoredObject(new ByteBufferInputStream(map(bucketName, fileName, offset, length)), currentETag, Files.size(path));
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName, final long offset, final long length) throws IOException {
+        return new ByteBufferInputStream(map(bucketName, fileName, offset, length));
+    }
+
+    @Override
+    public ObjectInfo head(final String bucketName, final String fileName) throws IOException {
+        final Path path = getPath(bucketName, fileName);
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        final Map<String, String> userMetadata = new HashMap<>();
+        final Path metadataPath = getMetadataPath(path);
+        if (Files.exists(metadataPath)) {
+            final Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(metadataPath, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            properties.stringPropertyNames().forEach(key -> userMetadata.put(key, properties.getProperty(key)));
+        }
+        return new ObjectInfo(getETag(path), Files.size(path), userMetadata);
+    }
+
+    @Override
+    public void put(final String bucketName, final String fileName, final byte[] data, final String contentType) throws IOException {
+        final Path path = getPath(bucketName, fileName);
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(getMetadataPath(path));
+        Files.write(path, data);
+    }
+
+    @Override
+    public UploadStream openUpload(final String bucketName, final String fileName, final String contentType, final Map<String, String> userMetadata) throws IOException {
+        final Path path = getPath(bucketName, fileName);
+        Files.createDirectories(path.getParent());
+
+        // Write next to the target and rename on close, so readers never see a partial file
+        final Path partPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".part");
+        final OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(partPath));
+        return new UploadStream() {
+            private boolean closed;
+
+            @Override
+            public void write(final int b) throws IOException {
+                outputStream.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                outputStream.write(b, off, len);
+            }
+
+            @Override
+            public void abort() {
+                if (!closed) {
+                    closed = true;
+                    try {
+                        outputStream.close();
+                        Files.deleteIfExists(partPath);
+                    } catch (final IOException ignored) {
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    outputStream.close();
+
+                    // Drop the old metadata first, so it is never paired with the new content
+                    Files.deleteIfExists(getMetadataPath(path));
+                    Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    writeMetadata(path, userMetadata);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String presign(final String bucketName, final String fileName, final Date expiration) {
+        return getPath(bucketName, fileName).toUri().toString();
+    }
+
+    /**
+     * Builds the entity tag of a file from its modification time and size.
+     *
+     * @param path The path of the file.
+     * @return The entity tag.
+     * @throws IOException If the file could not be read.
+     */
+    private static String getETag(final Path path) throws IOException {
+        return Long.toHexString(Files.getLastModifiedTime(path).toMillis()) + "-" + Long.toHexString(Files.size(path));
+    }
+
+    /**
+     * Resolves the file holding the user metadata of a file.
+     *
+     * @param path The path of the file.
+     * @return The path of the metadata file.
+     */
+    private static Path getMetadataPath(final Path path) {
+        return path.resolveSibling("." + path.getFileName() + ".metadata");
+    }
+
+    /**
+     * Stores the user metadata of a file, replacing the metadata file atomically.
+     *
+     * @param path         The path of the file.
+     * @param userMetadata The metadata to store.
+     * @throws IOException If the metadata could not be written.
+     */
+    private static void writeMetadata(final Path path, final Map<String, String> userMetadata) throws IOException {
+        if (userMetadata.isEmpty()) {
+            return;
+        }
+        final Properties properties = new Properties();
+        properties.putAll(userMetadata);
+
+        final Path metadataPath = getMetadataPath(path);
+        final Path partPath = Files.createTempFile(path.getParent(), metadataPath.getFileName().toString(), ".part");
+        try (Writer writer = Files.newBufferedWriter(partPath, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(partPath, metadataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a file into memory. The mapping stays valid after the channel is closed.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the file.
+     * @return The mapped file.
+     * @throws IOException If the file could not be mapped.
+     */
+    private MappedByteBuffer map(final String bucketName, final String fileName) throws IOException {
+        return map(bucketName, fileName, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Maps part of a file into memory. The mapping stays valid after the channel is closed.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the file.
+     * @param offset     The first byte to map.
+     * @param length     The maximum number of bytes to map.
+     * @return The mapped part of the file.
+     * @throws IOException If the file could not be mapped.
+     */
+    private MappedByteBuffer map(final String bucketName, final String fileName, final long offset, final long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(getPath(bucketName, fileName), StandardOpenOption.READ)) {
+            final long start = Math.min(offset, channel.size());
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, channel.size() - start));
+        }
+    }
+
+    /**
+     * Resolves the path of a file, refusing names that escape the root directory.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the file.
+     * @return The path of the file.
+     */
+    private Path getPath(final String bucketName, final String fileName) {
+        final Path path = root.resolve(bucketName).resolve(fileName).normalize();
+        if (!path.startsWith(root.normalize())) {
+            throw new IllegalArgumentException("Invalid object name: " + bucketName + "/" + fileName);
+        }
+        return path;
+    }
+
+    /**
+     * Reads a buffer as a stream.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Image store that keeps every object in memory. Used to benchmark the functions without any network or disk I/O.
+ */
+public class MemoryImageStore implements ImageStore {
+
+    /**
+     * The stored objects, keyed by "bucket/key".
+     */
+    private final Map<String, MemoryObject> objects = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented on every put to build entity tags.
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    @Override
+    public byte[] getBytes(final String bucketName, final String fileName) throws FileNotFoundException {
+        return getObject(bucketName, fileName).data;
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName) throws FileNotFoundException {
+        return new ByteArrayInputStream(getBytes(bucketName, fileName));
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag) throws FileNotFoundException {
+        final MemoryObject object = getObject(bucketName, fileName);
+        return object.eTag.equals(eTag) ? null : new StoredObject(new ByteArrayInputStream(object.data), object.eTag, object.data.length);
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws FileNotFoundException {
+        final MemoryObject object = getObject(bucketName, fileName);
+        if (object.eTag.equals(eTag)) {
+            return null;
+        }
+        final int start = (int) Math.min(offset, object.data.length);
+        final InputStream range = new ByteArrayInputStream(object.data, start, (int) Math.min(length, object.data.length - start));
+        return new StoredObject(range, object.eTag, object.data.length);
+    }
+
+    @Override
+    public StoredObject getObjectIfUnchanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) throws FileNotFoundException {
+        final MemoryObject object = getObject(bucketName, fileName);
+        if (!object.eTag.equals(eTag)) {
+            return null;
+        }
+        final int start = (int) Math.min(offset, object.data.length);
+        final InputStream range = new ByteArrayInputStream(object.data, start, (int) Math.min(length, object.data.length - start));
+        return new StoredObject(range, object.eTag, object.data.length);
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName, final long offset, final long length) throws FileNotFoundException {
+        final byte[] data = getBytes(bucketName, fileName);
+        final int start = (int) Math.min(offset, data.length);
+        return new ByteArrayInputStream(data, start, (int) Math.min(length, data.length - start));
+    }
+
+    @Override
+    public ObjectInfo head(final String bucketName, final String fileName) {
+        final MemoryObject object = objects.get(getPath(bucketName, fileName));
+        return object != null ? new ObjectInfo(object.eTag, object.data.length, object.userMetadata) : null;
+    }
+
+    @Override
+    public void put(final String bucketName, final String fileName, final byte[] data, final String contentType) {
+        put(bucketName, fileName, data, Collections.emptyMap());
+    }
+
+    @Override
+    public UploadStream openUpload(final String bucketName, final String fileName, final String contentType, final Map<String, String> userMetadata) {
+        return new UploadStream() {
+            private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private boolean closed;
+
+            @Override
+            public void write(final int b) {
+                buffer.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) {
+                buffer.write(b, off, len);
+            }
+
+            @Override
+            public void abort() {
+                closed = true;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    put(bucketName, fileName, buffer.toByteArray(), userMetadata);
+                }
+            }
+        };
+    }
+
+    @Override
+    public String presign(final String bucketName, final String fileName, final Date expiration) {
+        return "memory://" + getPath(bucketName, fileName);
+    }
+
+    /**
+     * Stores an object under a new version.
+     *
+     * @param bucketName   The name of the bucket.
+     * @param fileName     The name of the object.
+     * @param data         The contents of the object.
+     * @param userMetadata The metadata of the object.
+     */
+    private void put(final String bucketName, final String fileName, final byte[] data, final Map<String, String> userMetadata) {
+        final String eTag = Long.toHexString(version.incrementAndGet());
+        objects.put(getPath(bucketName, fileName), new MemoryObject(data, eTag, Collections.unmodifiableMap(new HashMap<>(userMetadata))));
+    }
+
+    /**
+     * Looks up an object.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return The object.
+     * @throws FileNotFoundException If there is no such object.
+     */
+    private MemoryObject getObject(final String bucketName, final String fileName) throws FileNotFoundException {
+        final MemoryObject object = objects.get(getPath(bucketName, fileName));
+        if (object == null) {
+            throw new FileNotFoundException("No such object: " + getPath(bucketName, fileName));
+        }
+        return object;
+    }
+
+    /**
+     * Builds the key of an object in the map.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @return The key.
+     */
+    private static String getPath(final String bucketName, final String fileName) {
+        return bucketName + "/" + fileName;
+    }
+
+    /**
+     * An object, the entity tag of its version and its metadata.
+     */
+    private static class MemoryObject {
+        private final byte[] data;
+        private final String eTag;
+        private final Map<String, String> userMetadata;
+
+        MemoryObject(final byte[] data, final String eTag, final Map<String, String> userMetadata) {
+            this.data = data;
+            this.eTag = eTag;
+            this.userMetadata = userMetadata;
+        }
+    }
+
+}
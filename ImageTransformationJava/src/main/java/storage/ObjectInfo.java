@@ -0,0 +1,51 @@
+package storage;
+
+import java.util.Collections;
+import java.util.Map;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  The version, size and user metadata of an object in an image store.
+ */
+public class ObjectInfo {
+
+    private final String eTag;
+    private final long contentLength;
+    private final Map<String, String> userMetadata;
+
+    public ObjectInfo(final String eTag, final long contentLength, final Map<String, String> userMetadata) {
+        this.eTag = eTag;
+        this.contentLength = contentLength;
+        this.userMetadata = userMetadata != null ? userMetadata : Collections.emptyMap();
+    }
+
+    /**
+     * Returns the entity tag of the object, which changes whenever its content does.
+     *
+     * @return The entity tag.
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Returns the size of the object in bytes.
+     *
+     * @return The content length.
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Returns the metadata the object was uploaded with. Keys are lower case.
+     *
+     * @return The user metadata, empty if there is none.
+     */
+    public Map<String, String> getUserMetadata() {
+        return userMetadata;
+    }
+
+}
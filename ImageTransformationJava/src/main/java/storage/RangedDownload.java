@@ -0,0 +1,336 @@
+package storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Downloads large objects as concurrent byte-range requests.
+ *
+ *  A single connection is limited by the throughput of one TCP stream. The first request asks for the first part
+ *  of the object and learns the size of the whole object from the response. Small objects are complete after that
+ *  request and are streamed to the caller as usual. For larger objects the rest is split into parts that are
+ *  requested at the same time into a buffer of the full size. The more data is left, the more parts are
+ *  requested, up to the configured parallelism. The caller reads the buffer in order while it fills, so decoding
+ *  still overlaps the download and only waits when it catches up with a part that is still arriving. The other
+ *  parts are requested with the entity tag of the first one as a precondition, so a changed object fails
+ *  without being downloaded. Closing the stream early drops the parts that are still arriving.
+ *  Slow requests are sent again, see HedgedRequests.
+ */
+public final class RangedDownload {
+
+    /**
+     * Environment variable holding the size of the first part in MB, the smallest part size.
+     */
+    public static final String PART_SIZE_MB_ENV = "S3_DOWNLOAD_PART_SIZE_MB";
+
+    /**
+     * Environment variable holding the most requests of one download in flight at once. 1 disables ranged downloads.
+     */
+    public static final String PARALLELISM_ENV = "S3_DOWNLOAD_PARALLELISM";
+
+    /**
+     * The part size if none is configured, in bytes.
+     */
+    private static final int DEFAULT_PART_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * The parallelism if none is configured, well below the connection limit of the S3 client.
+     */
+    private static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * The bytes a part is read in at most before the reader is told about them.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int PART_SIZE = getPartSize();
+    private static final int PARALLELISM = getParallelism();
+
+    private RangedDownload() {
+    }
+
+    /**
+     * Opens an object unless it still has the given entity tag, see ImageStore.getObjectIfChanged. Objects larger
+     * than one part are downloaded in parallel parts, their stream reads from memory as the parts arrive.
+     *
+     * @param store      The image store holding the object.
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the object.
+     * @param eTag       The entity tag of the cached copy, or null to always read the object.
+     * @return The object, or null if its entity tag still matches. Reading it fails if the object changed while
+     *         it was downloaded.
+     * @throws IOException If the object could not be opened.
+     */
+    public static StoredObject getObjectIfChanged(final ImageStore store,
+                                                  final String bucketName,
+                                                  final String fileName,
+                                                  final String eTag) throws IOException {
+        if (PARALLELISM < 2) {
+            return HedgedRequests.send(() -> store.getObjectIfChanged(bucketName, fileName, eTag));
+        }
+        final StoredObject first = HedgedRequests.send(() -> store.getObjectIfChanged(bucketName, fileName, eTag, 0, PART_SIZE));
+        if (first == null) {
+            return null;
+        }
+
+        // The first part holds the whole object
+        final long size = first.getContentLength();
+        if (size <= PART_SIZE) {
+            return first;
+        }
+
+        // Objects too large to buffer are streamed over one connection instead
+        if (size > getMaxBufferedSize()) {
+            first.close();
+            return HedgedRequests.send(() -> store.getObjectIfChanged(bucketName, fileName, null));
+        }
+
+        // The rest is split evenly, into as many parts as the parallelism allows while keeping them at least
+        // one part size large
+        final long remaining = size - PART_SIZE;
+        final int parts = (int) Math.min(PARALLELISM - 1, (remaining + PART_SIZE - 1) / PART_SIZE);
+        final long partSize = (remaining + parts - 1) / parts;
+        final int[] offsets = new int[parts + 2];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = (int) Math.min(size, PART_SIZE + (i - 1) * partSize);
+        }
+
+        // The other parts are only sent if the object still has the version of the first part
+        final String partETag = first.getETag();
+        final PartStream stream = new PartStream(new byte[(int) size], offsets);
+        stream.receive(0, () -> first);
+        for (int i = 1; i < offsets.length - 1; i++) {
+            final long offset = offsets[i];
+            final long length = offsets[i + 1] - offsets[i];
+            stream.receive(i, () -> HedgedRequests.send(() -> store.getObjectIfUnchanged(bucketName, fileName, partETag, offset, length)));
+        }
+        return new StoredObject(stream, first.getETag(), size);
+    }
+
+    /**
+     * Returns the largest object that is assembled in memory, a quarter of the heap.
+     *
+     * @return The size in bytes.
+     */
+    private static long getMaxBufferedSize() {
+        return Math.min(Integer.MAX_VALUE - 8, Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Reads the part size from the environment.
+     *
+     * @return The part size, in bytes.
+     */
+    private static int getPartSize() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getenv(PART_SIZE_MB_ENV))) * 1024 * 1024;
+        } catch (final Exception ignored) {
+            return DEFAULT_PART_SIZE;
+        }
+    }
+
+    /**
+     * Reads the parallelism from the environment.
+     *
+     * @return The most requests of one download in flight at once.
+     */
+    private static int getParallelism() {
+        try {
+            return Math.max(1, Integer.parseInt(System.getenv(PARALLELISM_ENV)));
+        } catch (final Exception ignored) {
+            return DEFAULT_PARALLELISM;
+        }
+    }
+
+    /**
+     * The buffer of an object downloaded in parts, read in order while the parts arrive. Each part is written
+     * by its own transfer thread.
+     */
+    private static final class PartStream extends InputStream {
+        private final byte[] data;
+
+        /**
+         * The first byte of every part, followed by the size of the object.
+         */
+        private final int[] offsets;
+
+        /**
+         * The bytes of every part written so far, guarded by this stream.
+         */
+        private final int[] received;
+
+        /**
+         * The parts still arriving, guarded by this stream.
+         */
+        private final List<StoredObject> openParts = new ArrayList<>();
+
+        /**
+         * The first part that failed, guarded by this stream.
+         */
+        private IOException failure;
+
+        private boolean closed;
+        private int position;
+
+        PartStream(final byte[] data, final int[] offsets) {
+            this.data = data;
+            this.offsets = offsets;
+            this.received = new int[offsets.length - 1];
+        }
+
+        /**
+         * Starts writing a part into the buffer in the background.
+         *
+         * @param part The index of the part.
+         * @param open Opens the part, returns null if the object changed.
+         */
+        void receive(final int part, final Transfers.Request<StoredObject> open) {
+            Transfers.supplyAsync(() -> {
+                try (StoredObject object = open.send()) {
+                    if (object == null) {
+                        throw new IOException("The object changed while it was downloaded");
+                    }
+                    if (!addOpenPart(object)) {
+                        return null;
+                    }
+                    final InputStream stream = object.getStream();
+                    for (int offset = offsets[part]; offset < offsets[part + 1]; ) {
+                        final int read = stream.read(data, offset, Math.min(CHUNK_SIZE, offsets[part + 1] - offset));
+                        if (read < 0) {
+                            throw new EOFException("The object ended before byte " + offsets[part + 1]);
+                        }
+                        offset += read;
+                        synchronized (this) {
+                            if (closed) {
+                                return null;
+                            }
+                            received[part] += read;
+                            notifyAll();
+                        }
+                    }
+                    synchronized (this) {
+                        openParts.remove(object);
+                    }
+                } catch (final IOException | RuntimeException e) {
+                    synchronized (this) {
+                        failure = failure != null ? failure : e instanceof IOException ? (IOException) e : new IOException(e);
+                        notifyAll();
+                    }
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (position >= data.length) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            final int count = Math.min(len, awaitReady());
+            System.arraycopy(data, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return position < data.length && !closed ? Math.max(0, getReady()) : 0;
+        }
+
+        /**
+         * Drops the parts still arriving, without downloading the rest of them.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (final StoredObject part : openParts) {
+                abort(part);
+            }
+            openParts.clear();
+            notifyAll();
+        }
+
+        /**
+         * Tracks a part that started arriving, so closing the stream can drop it.
+         *
+         * @return False if the stream is already closed, the part is dropped then.
+         */
+        private synchronized boolean addOpenPart(final StoredObject part) {
+            if (closed) {
+                abort(part);
+                return false;
+            }
+            openParts.add(part);
+            return true;
+        }
+
+        /**
+         * Waits until the byte at the position has arrived.
+         *
+         * @return The number of bytes from the position on that have arrived, at least 1.
+         * @throws IOException If the part holding the position failed or the stream was closed.
+         */
+        private synchronized int awaitReady() throws IOException {
+            while (true) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                final int ready = getReady();
+                if (ready > 0) {
+                    return ready;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a part");
+                }
+            }
+        }
+
+        /**
+         * Returns the number of bytes from the position on that have arrived in the part holding the position.
+         */
+        private int getReady() {
+            int part = 0;
+            while (offsets[part + 1] <= position) {
+                part++;
+            }
+            return offsets[part] + received[part] - position;
+        }
+
+        /**
+         * Drops a part, see StoredObject.abort.
+         */
+        private static void abort(final StoredObject part) {
+            try {
+                part.abort();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import utils.S3ClientManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Image store backed by Amazon S3.
+ */
+public class S3ImageStore implements ImageStore {
+
+    /**
+     * The container-scoped S3 client.
+     */
+    private final AmazonS3 client;
+
+    public S3ImageStore() {
+        this(S3ClientManager.getClient());
+    }
+
+    public S3ImageStore(final AmazonS3 client) {
+        this.client = client;
+    }
+
+    @Override
+    public byte[] getBytes(final String bucketName, final String fileName) throws IOException {
+        try (InputStream stream = getStream(bucketName, fileName)) {
+            return IOUtils.toByteArray(stream);
+        }
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName) {
+        return openContent(client.getObject(bucketName, fileName));
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag) {
+        final GetObjectRequest request = new GetObjectRequest(bucketName, fileName);
+        if (eTag != null) {
+            request.withNonmatchingETagConstraint(eTag);
+        }
+
+        // The client returns null when S3 answers 304 Not Modified
+        final S3Object s3Object = client.getObject(request);
+        if (s3Object == null) {
+            return null;
+        }
+        final ObjectMetadata metadata = s3Object.getObjectMetadata();
+        return new StoredObject(openContent(s3Object), metadata.getETag(), metadata.getContentLength(), s3Object.getObjectContent()::abort);
+    }
+
+    @Override
+    public StoredObject getObjectIfChanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) {
+        final GetObjectRequest request = new GetObjectRequest(bucketName, fileName).withRange(offset, offset + length - 1);
+        if (eTag != null) {
+            request.withNonmatchingETagConstraint(eTag);
+        }
+
+        final S3Object s3Object = client.getObject(request);
+        if (s3Object == null) {
+            return null;
+        }
+
+        // The size of the whole object is taken from the Content-Range header of the partial response
+        final ObjectMetadata metadata = s3Object.getObjectMetadata();
+        return new StoredObject(openContent(s3Object), metadata.getETag(), metadata.getInstanceLength(), s3Object.getObjectContent()::abort);
+    }
+
+    @Override
+    public StoredObject getObjectIfUnchanged(final String bucketName, final String fileName, final String eTag, final long offset, final long length) {
+        final GetObjectRequest request = new GetObjectRequest(bucketName, fileName)
+                .withRange(offset, offset + length - 1)
+                .withMatchingETagConstraint(eTag);
+
+        // The client returns null when S3 answers 412 Precondition Failed
+        final S3Object s3Object = client.getObject(request);
+        if (s3Object == null) {
+            return null;
+        }
+        final ObjectMetadata metadata = s3Object.getObjectMetadata();
+        return new StoredObject(openContent(s3Object), metadata.getETag(), metadata.getInstanceLength(), s3Object.getObjectContent()::abort);
+    }
+
+    @Override
+    public InputStream getStream(final String bucketName, final String fileName, final long offset, final long length) {
+        return openContent(client.getObject(new GetObjectRequest(bucketName, fileName).withRange(offset, offset + length - 1)));
+    }
+
+    @Override
+    public ObjectInfo head(final String bucketName, final String fileName) {
+        try {
+            final ObjectMetadata metadata = client.getObjectMetadata(bucketName, fileName);
+            return new ObjectInfo(metadata.getETag(), metadata.getContentLength(), metadata.getUserMetadata());
+        } catch (final AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps the content of an object in a stream that can be closed before it is fully read.
+     *
+     * @param s3Object The object.
+     * @return A stream over the content of the object.
+     */
+    private static InputStream openContent(final S3Object s3Object) {
+        // Decoders often stop before the end of the object, and closing a partially read stream drops the connection.
+        // StoredObject.abort drops it on purpose when the rest is not worth downloading.
+        return new FilterInputStream(s3Object.getObjectContent()) {
+            @Override
+            public void close() throws IOException {
+                IOUtils.drainInputStream(in);
+                super.close();
+            }
+        };
+    }
+
+    @Override
+    public void put(final String bucketName, final String fileName, final byte[] data, final String contentType) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(data.length);
+        metadata.setContentType(contentType);
+        client.putObject(bucketName, fileName, new ByteArrayInputStream(data), metadata);
+    }
+
+    @Override
+    public UploadStream openUpload(final String bucketName, final String fileName, final String contentType, final Map<String, String> userMetadata) {
+        return new S3MultipartUploadStream(client, bucketName, fileName, contentType, userMetadata);
+    }
+
+    @Override
+    public String presign(final String bucketName, final String fileName, final Date expiration) {
+        return client.generatePresignedUrl(bucketName, fileName, expiration).toString();
+    }
+
+}
@@ -0,0 +1,324 @@
+package storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import imaging.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Uploads an object to S3 while it is being written.
+ *
+ *  Bytes are collected into fixed-size parts. Every full part is sent as part of a multipart upload in the
+ *  background while the writer keeps producing the next one. At most PARTS_IN_FLIGHT parts are uploading at
+ *  once, so memory use is bounded by the part size rather than by the size of the object.
+ *  The first part is collected in a buffer that grows with the object, and objects smaller than one part are
+ *  sent with a single PUT, so a thumbnail only holds about as much memory as its own size.
+ */
+public class S3MultipartUploadStream extends UploadStream {
+
+    /**
+     * Environment variable holding the part size in MB.
+     */
+    public static final String PART_SIZE_MB_ENV = "S3_UPLOAD_PART_SIZE_MB";
+
+    /**
+     * The smallest part size S3 accepts, in bytes.
+     */
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    /**
+     * The part size if none is configured, in bytes.
+     */
+    private static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The maximum number of parts uploading while the next one is being filled.
+     */
+    private static final int PARTS_IN_FLIGHT = 2;
+
+    /**
+     * The size the first part buffer starts at before it grows, in bytes.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The part size, in bytes.
+     */
+    private static final int PART_SIZE = getPartSize();
+
+    /**
+     * Uploads parts in the background. Shared by every stream in the container.
+     */
+    private static final ExecutorService UPLOAD_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "s3-part-upload");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AmazonS3 client;
+    private final String bucketName;
+    private final String fileName;
+    private final String contentType;
+    private final Map<String, String> userMetadata;
+
+    /**
+     * Part buffers not currently in use. Taking from it blocks while every buffer is uploading.
+     */
+    private final BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<>(PARTS_IN_FLIGHT + 1);
+
+    /**
+     * The pending part uploads, in part order.
+     */
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private int buffersCreated;
+    private byte[] buffer;
+    private int count;
+    private String uploadId;
+    private boolean closed;
+
+
+    public S3MultipartUploadStream(final AmazonS3 client,
+                                   final String bucketName,
+                                   final String fileName,
+                                   final String contentType,
+                                   final Map<String, String> userMetadata) {
+        this.client = client;
+        this.bucketName = bucketName;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.userMetadata = userMetadata;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (buffer == null) {
+                buffer = parts.isEmpty() ? new byte[Math.min(PART_SIZE, INITIAL_BUFFER_SIZE)] : takeBuffer();
+            } else if (count == buffer.length) {
+                buffer = growBuffer();
+            }
+            final int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+
+            if (count == PART_SIZE) {
+                uploadPart();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean completed = false;
+        try {
+            if (uploadId == null) {
+                // Everything fit into one part, a plain PUT is cheaper
+                final ObjectMetadata metadata = createMetadata();
+                metadata.setContentLength(count);
+                client.putObject(bucketName, fileName, new ByteArrayInputStream(buffer != null ? buffer : new byte[0], 0, count), metadata);
+                completed = true;
+                return;
+            }
+
+            if (count > 0) {
+                uploadPart();
+            }
+            final List<PartETag> partETags = new ArrayList<>();
+            for (final Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, fileName, uploadId, partETags));
+            completed = true;
+
+        } catch (final Exception e) {
+            abortUpload();
+            throw e instanceof IOException ? (IOException) e : new IOException("Failed to upload " + bucketName + "/" + fileName, e);
+        } finally {
+            // Once every part is done no upload reads the buffers anymore, the next upload can reuse them
+            if (completed) {
+                if (buffer != null && buffer.length == PART_SIZE) {
+                    BufferPool.releaseBytes(buffer);
+                }
+                for (final byte[] freeBuffer : freeBuffers) {
+                    BufferPool.releaseBytes(freeBuffer);
+                }
+            }
+            buffer = null;
+            freeBuffers.clear();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (!closed) {
+            closed = true;
+            abortUpload();
+            buffer = null;
+            freeBuffers.clear();
+        }
+    }
+
+    /**
+     * Sends the current buffer as the next part, starting the multipart upload if needed.
+     *
+     * @throws IOException If an earlier part already failed.
+     */
+    private void uploadPart() throws IOException {
+        if (uploadId == null) {
+            uploadId = client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, fileName, createMetadata())).getUploadId();
+        }
+        checkFailedParts();
+
+        final byte[] partBuffer = buffer;
+        final int partLength = count;
+        final int partNumber = parts.size() + 1;
+        final UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucketName)
+                .withKey(fileName)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withPartSize(partLength)
+                .withInputStream(new ByteArrayInputStream(partBuffer, 0, partLength));
+
+        parts.add(UPLOAD_EXECUTOR.submit(() -> {
+            try {
+                return client.uploadPart(request).getPartETag();
+            } finally {
+                freeBuffers.offer(partBuffer);
+            }
+        }));
+        buffer = null;
+        count = 0;
+    }
+
+    /**
+     * Builds the metadata the object is created with.
+     *
+     * @return The content type and user metadata of the object.
+     */
+    private ObjectMetadata createMetadata() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(contentType);
+        metadata.setUserMetadata(userMetadata);
+        return metadata;
+    }
+
+    /**
+     * Doubles the first part buffer, up to a full part buffer once the object outgrows half a part.
+     *
+     * @return The larger buffer, holding the bytes written so far.
+     * @throws IOException If interrupted while waiting for a part buffer.
+     */
+    private byte[] growBuffer() throws IOException {
+        final int length = (int) Math.min(PART_SIZE, 2L * buffer.length);
+        final byte[] grown = length == PART_SIZE ? takeBuffer() : new byte[length];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        return grown;
+    }
+
+    /**
+     * Returns a free part buffer, waiting for an upload to finish if all of them are in use.
+     *
+     * @return A part buffer, its old contents are overwritten part by part.
+     * @throws IOException If interrupted while waiting.
+     */
+    private byte[] takeBuffer() throws IOException {
+        final byte[] free = freeBuffers.poll();
+        if (free != null) {
+            return free;
+        }
+        if (buffersCreated < PARTS_IN_FLIGHT + 1) {
+            buffersCreated++;
+            return BufferPool.borrowBytes(PART_SIZE);
+        }
+        try {
+            return freeBuffers.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part upload");
+        }
+    }
+
+    /**
+     * Fails fast if a part that already finished uploading has failed.
+     *
+     * @throws IOException If a part upload failed.
+     */
+    private void checkFailedParts() throws IOException {
+        for (final Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                try {
+                    part.get();
+                } catch (final ExecutionException | InterruptedException e) {
+                    throw new IOException("Failed to upload part of " + bucketName + "/" + fileName, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels pending parts and aborts the multipart upload so S3 discards the uploaded parts.
+     */
+    private void abortUpload() {
+        for (final Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        if (uploadId != null) {
+            try {
+                client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, fileName, uploadId));
+            } catch (final Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the part size from the environment.
+     *
+     * @return The part size, in bytes.
+     */
+    private static int getPartSize() {
+        try {
+            return Math.max(MIN_PART_SIZE, Integer.parseInt(System.getenv(PART_SIZE_MB_ENV)) * 1024 * 1024);
+        } catch (final Exception ignored) {
+            return DEFAULT_PART_SIZE;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  An object read from an image store, along with the version it was read at.
+ */
+public class StoredObject extends ObjectInfo implements Closeable {
+
+    private final InputStream stream;
+
+    /**
+     * Drops the connection the content comes over, or null if closing the stream is just as cheap.
+     */
+    private final Runnable discard;
+
+    private volatile boolean aborted;
+
+    public StoredObject(final InputStream stream, final String eTag, final long contentLength) {
+        this(stream, eTag, contentLength, null);
+    }
+
+    public StoredObject(final InputStream stream, final String eTag, final long contentLength, final Runnable discard) {
+        super(eTag, contentLength, null);
+        this.stream = stream;
+        this.discard = discard;
+    }
+
+    /**
+     * Returns the content of the object. Closing the object closes the stream.
+     *
+     * @return A stream over the content.
+     */
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Closes the object without reading the rest of the content, which close may do to keep the connection.
+     * Used for content that is no longer needed. Can be called while another thread reads the content, which
+     * then fails. Closing the object afterwards does nothing.
+     *
+     * @throws IOException If the stream could not be closed.
+     */
+    public void abort() throws IOException {
+        aborted = true;
+        if (discard != null) {
+            discard.run();
+        } else {
+            stream.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!aborted) {
+            stream.close();
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+package storage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Runs image store requests in the background, so a function can keep computing while it waits on the network.
+ *
+ *  The stores are blocking, so every request in flight holds a thread. The threads only wait on sockets, so they
+ *  do not compete with the image operations for the CPU. The number of requests in flight is bounded by the
+ *  connection pool of the store rather than by the number of threads.
+ */
+public final class Transfers {
+
+    /**
+     * Runs the requests. Shared by every store in the container.
+     */
+    private static final ExecutorService TRANSFER_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "s3-transfer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Transfers() {
+    }
+
+    /**
+     * Starts a request in the background.
+     *
+     * @param request The request.
+     * @param <T>     The type of the response.
+     * @return The response, completed exceptionally with a CompletionException if the request failed.
+     */
+    public static <T> CompletableFuture<T> supplyAsync(final Request<T> request) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return request.send();
+            } catch (final IOException e) {
+                throw new CompletionException(e);
+            }
+        }, TRANSFER_EXECUTOR);
+    }
+
+    /**
+     * A blocking request to an image store.
+     *
+     * @param <T> The type of the response.
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+        T send() throws IOException;
+    }
+
+}
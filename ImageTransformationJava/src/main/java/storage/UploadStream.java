@@ -0,0 +1,19 @@
+package storage;
+
+import java.io.OutputStream;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Stream writing a new object to an image store. The object is only stored when the stream is closed,
+ *  and is discarded if the stream is aborted instead.
+ */
+public abstract class UploadStream extends OutputStream {
+
+    /**
+     * Discards everything written so far. Closing the stream afterwards has no effect.
+     */
+    public abstract void abort();
+
+}
@@ -1,18 +1,32 @@
 package utils;
 
 import com.amazonaws.services.lambda.runtime.Context;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.S3Object;
+import imaging.BufferPool;
+import imaging.CanonicalLayout;
+import imaging.StripReader;
+import imaging.StripSource;
+import imaging.Strips;
+import storage.ImageStore;
+import storage.RangedDownload;
+import storage.StoredObject;
+import storage.UploadStream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /***
  *  TCSS 462 Image Transformation
@@ -32,29 +46,62 @@ public class Constants {
     public static final String END_TIME_KEY = "end_time";
     public static final String PROCESSING_THROUGHPUT_KEY = "processing_throughput";
     public static final String MEMORY_USED_MB_KEY = "memory_used_mb";
+    public static final String S3_REQUESTS_KEY = "s3_requests";
+    public static final String S3_TLS_HANDSHAKES_KEY = "s3_tls_handshakes";
+    public static final String S3_CONNECTIONS_REUSED_KEY = "s3_connections_reused";
+    public static final String S3_HEDGED_REQUESTS_KEY = "s3_hedged_requests";
+    public static final String S3_HEDGE_WINS_KEY = "s3_hedge_wins";
+    public static final String S3_HEDGE_THRESHOLD_KEY = "s3_hedge_threshold_ms";
+    public static final String DECODED_CACHE_HITS_KEY = "decoded_cache_hits";
+    public static final String DECODED_CACHE_MISSES_KEY = "decoded_cache_misses";
+    public static final String DECODED_CACHE_EVICTIONS_KEY = "decoded_cache_evictions";
+    public static final String DECODED_CACHE_BYTES_KEY = "decoded_cache_bytes";
+    public static final String OFF_HEAP_PEAK_BYTES_KEY = "off_heap_peak_bytes";
+    public static final String BUFFER_POOL_HITS_KEY = "buffer_pool_hits";
+    public static final String BUFFER_POOL_MISSES_KEY = "buffer_pool_misses";
+    public static final String BUFFER_POOL_HIT_RATE_KEY = "buffer_pool_hit_rate";
+    public static final String BUFFER_POOL_BYTES_KEY = "buffer_pool_bytes";
+    public static final String RESULT_CACHE_HIT_KEY = "result_cache_hit";
 
     // Request Body Keys
     public static final String BUCKET_KEY = "bucketname";
     public static final String FILE_NAME_KEY = "filename";
+    public static final String FILE_NAMES_KEY = "filenames";
     public static final String ONLY_METRICS_KEY = "return_only_metrics";
     public static final String GET_DOWNLOAD_KEY = "get_download";
+    public static final String STREAMING_KEY = "streaming";
 
     // Response Body Keys
     public static final String SUCCESS_KEY = "success";
     public static final String ERROR_KEY = "error";
     public static final String IMAGE_URL_KEY = "url";
     public static final String IMAGE_URL_EXPIRES_IN = "url_expires_in_seconds";
+    public static final String ORIGINAL_WIDTH_KEY = "original_width";
+    public static final String ORIGINAL_HEIGHT_KEY = "original_height";
 
 
     // Others
     public static final String IMAGE_FILE_KEY = "image_file";
+    public static final String ENCODED_IMAGE_KEY = "encoded_image";
+    public static final String PIPELINE_STAGE_KEY = "pipeline_stage";
 
     public static final int IMAGE_URL_EXPIRATION_SECONDS = 3600;
 
+    /**
+     *  The number of bytes fetched to read an image header. Enough for the JPEG SOF or PNG IHDR of almost every image.
+     */
+    public static final int IMAGE_HEADER_FETCH_BYTES = 64 * 1024;
+
+    /**
+     *  How much larger than the target a subsampled decode must stay, so the resize filter still has samples to average.
+     */
+    public static final int SUBSAMPLING_HEADROOM = 2;
+
 
     /**
      *  Saves an image to a specified S3 bucket.
      *
+     *  @param store            The image store to save to.
      *  @param bucketName       The name of the bucket.
      *  @param fileName         The name of the image.
      *  @param imageExtension   The file extension of the image.
@@ -62,28 +109,118 @@ public class Constants {
      *  @return True if the image was saved, false otherwise.
      */
     public static boolean saveImageToS3(
+            final ImageStore store,
             final String bucketName,
             final String fileName,
             final String imageExtension, // Maybe we can default this to PNG?
             final BufferedImage image) {
+        return saveImageToS3(store, bucketName, fileName, imageExtension, image, Collections.emptyMap());
+    }
+
+    /**
+     *  Saves an image to a specified S3 bucket along with user metadata.
+     *
+     *  @param store            The image store to save to.
+     *  @param bucketName       The name of the bucket.
+     *  @param fileName         The name of the image.
+     *  @param imageExtension   The file extension of the image.
+     *  @param image            The image to save.
+     *  @param metadata         The user metadata to store with the image.
+     *  @return True if the image was saved, false otherwise.
+     */
+    public static boolean saveImageToS3(
+            final ImageStore store,
+            final String bucketName,
+            final String fileName,
+            final String imageExtension,
+            final BufferedImage image,
+            final Map<String, String> metadata) {
 
         // Use FileValidator to validate the output file type
         if (!FileValidator.isValidOutputFile(fileName)) {
             return false; // Abort if the output file type is invalid
         }
 
+        final BufferedImage encodableImage = CanonicalLayout.toEncodable(image, imageExtension);
+        try {
+            final UploadStream uploadStream = store.openUpload(bucketName, fileName, "image/" + imageExtension, metadata);
+            try {
+                // Encode straight into the upload, the encoded image is never held in memory as a whole
+                try (ImageOutputStream imageStream = new StreamingImageOutputStream(uploadStream)) {
+                    if (!ImageIO.write(encodableImage, imageExtension, imageStream)) {
+                        throw new IOException("No " + imageExtension + " writer for image type " + image.getType());
+                    }
+                }
+                uploadStream.close();
+            } catch (final Exception e) {
+                uploadStream.abort();
+                throw e;
+            }
+
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (encodableImage != image) {
+                BufferPool.release(encodableImage);
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Returns images a function is done with to the buffer pool, so later invocations can reuse their memory.
+     *  Images held by the decoded image cache stay with the cache. Null entries and repeats are skipped, e.g.
+     *  when a kernel worked in place and returned its input.
+     *
+     *  @param images   The images, none of which may be used afterwards.
+     */
+    public static void releaseImages(final BufferedImage... images) {
+        for (int i = 0; i < images.length; i++) {
+            final BufferedImage image = images[i];
+            if (image == null || DecodedImageCache.contains(image)) {
+                continue;
+            }
+            boolean repeated = false;
+            for (int j = 0; j < i; j++) {
+                repeated |= images[j] == image;
+            }
+            if (!repeated) {
+                BufferPool.release(image);
+            }
+        }
+    }
+
+    /**
+     *  Saves an already encoded image to a specified S3 bucket, without going through the codec again.
+     *
+     *  @param store        The image store to save to.
+     *  @param bucketName   The name of the bucket.
+     *  @param fileName     The name of the image.
+     *  @param image        The encoded image to save.
+     *  @param metadata     The user metadata to store with the image.
+     *  @return True if the image was saved, false otherwise.
+     */
+    public static boolean saveEncodedImageToS3(
+            final ImageStore store,
+            final String bucketName,
+            final String fileName,
+            final EncodedImage image,
+            final Map<String, String> metadata) {
+
+        if (!FileValidator.isValidOutputFile(fileName)) {
+            return false;
+        }
+
         try {
-            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(image, imageExtension, outputStream);
-            final byte[] imageBytes = outputStream.toByteArray();
-
-            // Save the image back to S3
-            final ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentLength(imageBytes.length);
-            metadata.setContentType("image/" + imageExtension);
-            AmazonS3ClientBuilder
-                    .defaultClient()
-                    .putObject(bucketName, fileName, new ByteArrayInputStream(imageBytes), metadata);
+            final UploadStream uploadStream = store.openUpload(bucketName, fileName, "image/" + image.getFormat(), metadata);
+            try {
+                uploadStream.write(image.getData());
+                uploadStream.close();
+            } catch (final Exception e) {
+                uploadStream.abort();
+                throw e;
+            }
 
         } catch (final Exception e) {
             e.printStackTrace();
@@ -115,21 +252,34 @@ public class Constants {
     /**
      *  Retrieves an image from S3. Records the latency.
      *
+     *  @param store        The image store to read from.
      *  @param bucketName   The bucket to get an image from.
      *  @param fileName     The name of the image.
      *  @param inspector    A map to record the latency to.
      *  @return The image, or null if an error occurs.
      */
-    public static BufferedImage getImageFromS3AndRecordLatency(final String bucketName,
+    public static BufferedImage getImageFromS3AndRecordLatency(final ImageStore store,
+                                                               final String bucketName,
                                                                final String fileName,
                                                                final HashMap<String, Object> inspector) {
+        final long s3StartTime = System.currentTimeMillis();
         try {
-            // Fetch the image from S3
-            final long s3StartTime = System.currentTimeMillis();
-            final S3Object s3Object = AmazonS3ClientBuilder.defaultClient().getObject(bucketName, fileName);
-            final InputStream objectData = s3Object.getObjectContent();
+            // Revalidate the cached copy with a conditional GET, only downloading the image if it changed
+            final String cachedETag = DecodedImageCache.getETag(bucketName, fileName);
+            BufferedImage image = null;
+            try (StoredObject object = RangedDownload.getObjectIfChanged(store, bucketName, fileName, cachedETag)) {
+                image = object == null
+                        ? DecodedImageCache.get(bucketName, fileName, cachedETag)
+                        : decodeAndCache(bucketName, fileName, object);
+            }
+
+            // The cached copy was evicted after the request was made
+            if (image == null && cachedETag != null) {
+                try (StoredObject object = RangedDownload.getObjectIfChanged(store, bucketName, fileName, null)) {
+                    image = decodeAndCache(bucketName, fileName, object);
+                }
+            }
 
-            final BufferedImage image = ImageIO.read(objectData);
             inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
             return image;
 
@@ -139,19 +289,357 @@ public class Constants {
 
     }
 
+    /**
+     *  Retrieves an image file from S3 without decoding it. Records the latency.
+     *
+     *  @param store        The image store to read from.
+     *  @param bucketName   The bucket to get an image from.
+     *  @param fileName     The name of the image.
+     *  @param inspector    A map to record the latency to.
+     *  @return The encoded image, or null if an error occurs.
+     */
+    public static byte[] getBytesFromS3AndRecordLatency(final ImageStore store,
+                                                        final String bucketName,
+                                                        final String fileName,
+                                                        final HashMap<String, Object> inspector) {
+        final long s3StartTime = System.currentTimeMillis();
+        try {
+            final byte[] data;
+            try (StoredObject object = RangedDownload.getObjectIfChanged(store, bucketName, fileName, null)) {
+                data = object.getStream().readAllBytes();
+            }
+            inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
+            return data;
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Decodes an image read from the store and adds it to the decoded image cache. Used by functions that download
+     *  and decode an image in separate steps, e.g. the stages of a batch over several images.
+     *
+     *  @param bucketName   The bucket the image is from.
+     *  @param fileName     The name of the image.
+     *  @param object       The image file.
+     *  @return The image, or null if it could not be decoded.
+     *  @throws IOException If the image could not be read.
+     */
+    public static BufferedImage decodeAndCache(final String bucketName,
+                                               final String fileName,
+                                               final StoredObject object) throws IOException {
+        DecodedImageCache.recordMiss();
+        final BufferedImage decodedImage = ImageIO.read(object.getStream());
+        final BufferedImage image = decodedImage != null ? CanonicalLayout.toCanonical(decodedImage) : null;
+        if (image != null) {
+            DecodedImageCache.put(bucketName, fileName, object.getETag(), image);
+        }
+        return image;
+    }
+
+    /**
+     *  Retrieves an image from S3, letting the decoder skip pixels when the image is much larger than the size it
+     *  will be resized to. The decoded image stays at least SUBSAMPLING_HEADROOM times the target size.
+     *  Records the latency and the original dimensions of the image.
+     *
+     *  @param store        The image store to read from.
+     *  @param bucketName   The bucket to get an image from.
+     *  @param fileName     The name of the image.
+     *  @param targetWidth  The width the image will be resized to.
+     *  @param targetHeight The height the image will be resized to.
+     *  @param inspector    A map to record the latency and original dimensions to.
+     *  @return The image, or null if an error occurs.
+     */
+    public static BufferedImage getSubsampledImageAndRecordLatency(final ImageStore store,
+                                                                   final String bucketName,
+                                                                   final String fileName,
+                                                                   final int targetWidth,
+                                                                   final int targetHeight,
+                                                                   final HashMap<String, Object> inspector) {
+        final long s3StartTime = System.currentTimeMillis();
+        final String cachedETag = DecodedImageCache.getETag(bucketName, fileName);
+        try (StoredObject object = RangedDownload.getObjectIfChanged(store, bucketName, fileName, cachedETag)) {
+
+            // A cached full-size copy is still current, nothing to download or decode. It skips the same pixels
+            // the decoder would, so the output does not depend on whether the image was cached.
+            final BufferedImage cachedImage = object == null ? DecodedImageCache.get(bucketName, fileName, cachedETag) : null;
+            if (cachedImage != null) {
+                inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
+                inspector.put(ORIGINAL_WIDTH_KEY, cachedImage.getWidth());
+                inspector.put(ORIGINAL_HEIGHT_KEY, cachedImage.getHeight());
+                return subsample(cachedImage,
+                        getSubsamplingStep(cachedImage.getWidth(), targetWidth),
+                        getSubsamplingStep(cachedImage.getHeight(), targetHeight));
+            }
+
+            // Subsampled images are not cached, they would be useless to other functions
+            try (InputStream objectData = object != null ? object.getStream() : store.getStream(bucketName, fileName);
+                 ImageInputStream imageStream = ImageIO.createImageInputStream(objectData)) {
+                DecodedImageCache.recordMiss();
+
+                final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+                if (!readers.hasNext()) {
+                    return null;
+                }
+                final ImageReader reader = readers.next();
+                try {
+                    reader.setInput(imageStream, true, true);
+                    final int originalWidth = reader.getWidth(0);
+                    final int originalHeight = reader.getHeight(0);
+
+                    final ImageReadParam param = getSubsamplingParam(reader, targetWidth, targetHeight);
+                    final BufferedImage image = CanonicalLayout.toCanonical(reader.read(0, param));
+                    inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
+                    inspector.put(ORIGINAL_WIDTH_KEY, originalWidth);
+                    inspector.put(ORIGINAL_HEIGHT_KEY, originalHeight);
+                    return image;
+                } finally {
+                    reader.dispose();
+                }
+            }
+
+        } catch (final Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     *  Retrieves an image from S3 as strips, decoded while they are taken so the image is never held as a whole.
+     *  When a target size is given the decoder skips pixels like getSubsampledImageAndRecordLatency does, and the
+     *  original dimensions are recorded. Images that cannot be decoded in strips are decoded as a single strip.
+     *  The decoded image cache is bypassed, images streamed this way are too large to be worth caching.
+     *  Records the latency until the header has been read, the rest of the download overlaps the decoding.
+     *
+     *  @param store        The image store to read from.
+     *  @param bucketName   The bucket to get an image from.
+     *  @param fileName     The name of the image.
+     *  @param targetWidth  The width the image will be resized to, or 0 to decode every pixel.
+     *  @param targetHeight The height the image will be resized to, or 0 to decode every pixel.
+     *  @param inspector    A map to record the latency and original dimensions to.
+     *  @return The strips, which the caller closes, or null if an error occurs.
+     */
+    public static StripSource getImageStripsAndRecordLatency(final ImageStore store,
+                                                             final String bucketName,
+                                                             final String fileName,
+                                                             final int targetWidth,
+                                                             final int targetHeight,
+                                                             final HashMap<String, Object> inspector) {
+        final long s3StartTime = System.currentTimeMillis();
+        InputStream objectData = null;
+        ImageInputStream imageStream = null;
+        ImageReader reader = null;
+        try {
+            objectData = store.getStream(bucketName, fileName);
+            imageStream = ImageIO.createImageInputStream(objectData);
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + fileName);
+            }
+            reader = readers.next();
+            reader.setInput(imageStream, true, true);
+            final ImageReadParam param = targetWidth > 0 && targetHeight > 0
+                    ? getSubsamplingParam(reader, targetWidth, targetHeight)
+                    : reader.getDefaultReadParam();
+            if (targetWidth > 0 && targetHeight > 0) {
+                inspector.put(ORIGINAL_WIDTH_KEY, reader.getWidth(0));
+                inspector.put(ORIGINAL_HEIGHT_KEY, reader.getHeight(0));
+            }
+
+            final InputStream input = objectData;
+            final ImageInputStream inputImageStream = imageStream;
+            StripSource strips = StripReader.open(reader, param, () -> {
+                try {
+                    inputImageStream.close();
+                } finally {
+                    input.close();
+                }
+            });
+            if (strips == null) {
+                strips = Strips.of(reader.read(0, param));
+                reader.dispose();
+                imageStream.close();
+                objectData.close();
+            }
+            inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
+            return strips;
+
+        } catch (final Exception e) {
+            e.printStackTrace();
+            if (reader != null) {
+                reader.dispose();
+            }
+            try {
+                if (imageStream != null) {
+                    imageStream.close();
+                }
+                if (objectData != null) {
+                    objectData.close();
+                }
+            } catch (final IOException closeException) {
+                closeException.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    /**
+     *  Saves an image produced in strips to a specified S3 bucket along with user metadata. The strips are encoded
+     *  as they are produced, then closed.
+     *
+     *  @param store            The image store to save to.
+     *  @param bucketName       The name of the bucket.
+     *  @param fileName         The name of the image.
+     *  @param imageExtension   The file extension of the image.
+     *  @param strips           The strips of the image to save.
+     *  @param metadata         The user metadata to store with the image.
+     *  @return True if the image was saved, false otherwise.
+     */
+    public static boolean saveStripsToS3(
+            final ImageStore store,
+            final String bucketName,
+            final String fileName,
+            final String imageExtension,
+            final StripSource strips,
+            final Map<String, String> metadata) {
+        try (StripSource encodableStrips = CanonicalLayout.toEncodable(strips, imageExtension)) {
+            return saveImageToS3(store, bucketName, fileName, imageExtension, Strips.toImage(encodableStrips), metadata);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     *  Creates read parameters that only keep every n-th pixel of each axis while decoding, as long as the
+     *  decoded image stays at least SUBSAMPLING_HEADROOM times the target size.
+     *
+     *  @param reader       The reader, with its input set.
+     *  @param targetWidth  The width the image will be resized to.
+     *  @param targetHeight The height the image will be resized to.
+     *  @return The read parameters.
+     *  @throws IOException If the header of the image could not be read.
+     */
+    private static ImageReadParam getSubsamplingParam(final ImageReader reader,
+                                                      final int targetWidth,
+                                                      final int targetHeight) throws IOException {
+        final ImageReadParam param = reader.getDefaultReadParam();
+        final int xStep = getSubsamplingStep(reader.getWidth(0), targetWidth);
+        final int yStep = getSubsamplingStep(reader.getHeight(0), targetHeight);
+        if (xStep > 1 || yStep > 1) {
+            param.setSourceSubsampling(xStep, yStep, 0, 0);
+        }
+        return param;
+    }
+
+    /**
+     *  Returns how many pixels of a dimension the decoder may skip for each one it keeps.
+     *
+     *  @param size         The original size of the dimension.
+     *  @param targetSize   The size it will be resized to.
+     *  @return The subsampling step, 1 to keep every pixel.
+     */
+    private static int getSubsamplingStep(final int size, final int targetSize) {
+        return Math.max(1, size / (targetSize * SUBSAMPLING_HEADROOM));
+    }
+
+    /**
+     *  Keeps every xStep-th column and yStep-th row of an image, the pixels a decoder keeps with the same
+     *  source subsampling.
+     *
+     *  @param image    The image, left unchanged.
+     *  @param xStep    The horizontal subsampling step.
+     *  @param yStep    The vertical subsampling step.
+     *  @return A new image with the kept pixels, or the image itself if both steps are 1.
+     */
+    private static BufferedImage subsample(final BufferedImage image, final int xStep, final int yStep) {
+        if (xStep == 1 && yStep == 1) {
+            return image;
+        }
+        final BufferedImage subsampled = BufferPool.borrowImage(
+                (image.getWidth() + xStep - 1) / xStep, (image.getHeight() + yStep - 1) / yStep, image.getType());
+        final Raster source = image.getRaster();
+        final WritableRaster target = subsampled.getRaster();
+        Object pixel = null;
+        for (int y = 0; y < subsampled.getHeight(); y++) {
+            for (int x = 0; x < subsampled.getWidth(); x++) {
+                pixel = source.getDataElements(x * xStep, y * yStep, pixel);
+                target.setDataElements(x, y, pixel);
+            }
+        }
+        return subsampled;
+    }
+
+    /**
+     *  Retrieves the header of an image without downloading or decoding the pixels. Records the latency.
+     *
+     *  @param store        The image store to read from.
+     *  @param bucketName   The bucket to get an image from.
+     *  @param fileName     The name of the image.
+     *  @param inspector    A map to record the latency to.
+     *  @return The image header, or null if an error occurs.
+     */
+    public static ImageHeader getImageHeaderAndRecordLatency(final ImageStore store,
+                                                             final String bucketName,
+                                                             final String fileName,
+                                                             final HashMap<String, Object> inspector) {
+        final long s3StartTime = System.currentTimeMillis();
+        ImageHeader header;
+
+        // Usually the header is within the first few KB of the file
+        try (InputStream objectData = store.getStream(bucketName, fileName, 0, IMAGE_HEADER_FETCH_BYTES)) {
+            header = ImageHeader.read(objectData);
+        } catch (final Exception e) {
+            header = null;
+        }
+
+        // Large metadata segments can push the header further in, read the whole file then
+        if (header == null) {
+            try (InputStream objectData = store.getStream(bucketName, fileName)) {
+                header = ImageHeader.read(objectData);
+            } catch (final Exception e) {
+                return null;
+            }
+        }
+
+        inspector.put(NETWORK_LATENCY_KEY, System.currentTimeMillis() - s3StartTime);
+        return header;
+    }
+
     /**
      *  Retrieves a temporary download URL for a specified file in a S3 bucket.
      *
+     *  @param store        The image store holding the file.
+     *  @param bucketName   The name of the bucket.
+     *  @param fileName     The name of the file.
+     *  @return A temporary URL to the file.
+     */
+    public static String getDownloadableImageURL(final ImageStore store, final String bucketName, final String fileName) {
+        return store.presign(bucketName, fileName, getURLExpiration());
+    }
+
+    /**
+     *  Starts creating a temporary download URL for a file in the background. The URL is signed locally, so it
+     *  can be created while the file is still uploading.
+     *
+     *  @param store        The image store holding the file.
      *  @param bucketName   The name of the bucket.
      *  @param fileName     The name of the file.
      *  @return A temporary URL to the file.
      */
-    public static String getDownloadableImageURL(final String bucketName, final String fileName) {
+    public static CompletableFuture<String> getDownloadableImageURLAsync(final ImageStore store, final String bucketName, final String fileName) {
+        return store.presignAsync(bucketName, fileName, getURLExpiration());
+    }
+
+    /**
+     *  Returns when a download URL created now expires.
+     *
+     *  @return The expiration, IMAGE_URL_EXPIRATION_SECONDS from now.
+     */
+    private static Date getURLExpiration() {
         final Date expiration = new Date();
         final long expTimeMillis = expiration.getTime() + 1000 * IMAGE_URL_EXPIRATION_SECONDS;
         expiration.setTime(expTimeMillis);
-
-        return AmazonS3ClientBuilder.defaultClient().generatePresignedUrl(bucketName, fileName, expiration).toString();
+        return expiration;
     }
 
     /**
@@ -182,6 +670,7 @@ public class Constants {
     @FunctionalInterface
     public interface ImageBatchFunction {
         HashMap<String, Object> process(
+                final ImageStore store,
                 final BufferedImage image,
                 final HashMap<String, Object> request,
                 final Context context);
@@ -191,6 +680,7 @@ public class Constants {
     @FunctionalInterface
     public interface ImageProcessFunction {
         HashMap<String, Object> process(
+                final ImageStore store,
                 final HashMap<String, Object> request,
                 final Context context);
     }
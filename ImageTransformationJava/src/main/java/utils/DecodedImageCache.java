@@ -0,0 +1,204 @@
+package utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Container-scoped LRU cache of decoded source images, so repeated requests on the same upload skip the
+ *  download and the decode.
+ *
+ *  Entries are keyed by bucket and file name and remember the entity tag they were decoded from. Callers
+ *  revalidate that tag with the store (a conditional GET) before using an entry, so a changed object is never
+ *  served from the cache. The cache is bounded by the total size of the cached rasters.
+ *  Cached images are shared between invocations and must not be modified.
+ */
+public class DecodedImageCache {
+
+    /**
+     * Environment variable holding the capacity of the cache in MB.
+     */
+    public static final String CAPACITY_MB_ENV = "DECODED_IMAGE_CACHE_MB";
+
+    /**
+     * The capacity if none is configured, in bytes.
+     */
+    private static final long DEFAULT_CAPACITY = 128L * 1024 * 1024;
+
+    /**
+     * The capacity of the cache, in bytes of raster data.
+     */
+    private static final long CAPACITY = getCapacity();
+
+    /**
+     * The cached images in access order, keyed by "bucket/key".
+     */
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    private static long size;
+
+
+    /**
+     * Returns the entity tag of the cached copy of an image, to revalidate it with the store.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the image.
+     * @return The entity tag, or null if the image is not cached.
+     */
+    public static synchronized String getETag(final String bucketName, final String fileName) {
+        final Entry entry = ENTRIES.get(getKey(bucketName, fileName));
+        return entry != null ? entry.eTag : null;
+    }
+
+    /**
+     * Returns a cached image. Counts a hit if the image is cached at the given version.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the image.
+     * @param eTag       The entity tag the store reported for the image.
+     * @return The image, or null if it is not cached at that version.
+     */
+    public static synchronized BufferedImage get(final String bucketName, final String fileName, final String eTag) {
+        final Entry entry = ENTRIES.get(getKey(bucketName, fileName));
+        if (entry == null || eTag == null || !eTag.equals(entry.eTag)) {
+            return null;
+        }
+        HITS.incrementAndGet();
+        return entry.image;
+    }
+
+    /**
+     * Checks whether an image is held by the cache, in which case it must not be modified.
+     *
+     * @param image The image.
+     * @return Whether the cache holds this image instance.
+     */
+    public static synchronized boolean contains(final BufferedImage image) {
+        for (final Entry entry : ENTRIES.values()) {
+            if (entry.image == image) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a miss, i.e. an image that had to be downloaded and decoded.
+     */
+    public static void recordMiss() {
+        MISSES.incrementAndGet();
+    }
+
+    /**
+     * Caches a decoded image, evicting the least recently used images until it fits.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the image.
+     * @param eTag       The entity tag of the version the image was decoded from.
+     * @param image      The decoded image.
+     */
+    public static synchronized void put(final String bucketName, final String fileName, final String eTag, final BufferedImage image) {
+        final String key = getKey(bucketName, fileName);
+        final Entry previous = ENTRIES.remove(key);
+        if (previous != null) {
+            size -= previous.bytes;
+        }
+
+        final long bytes = getRasterBytes(image);
+        if (eTag == null || bytes > CAPACITY) {
+            return;
+        }
+
+        final Iterator<Map.Entry<String, Entry>> iterator = ENTRIES.entrySet().iterator();
+        while (size + bytes > CAPACITY && iterator.hasNext()) {
+            size -= iterator.next().getValue().bytes;
+            iterator.remove();
+            EVICTIONS.incrementAndGet();
+        }
+
+        ENTRIES.put(key, new Entry(eTag, image, bytes));
+        size += bytes;
+    }
+
+    public static long getHitCount() {
+        return HITS.get();
+    }
+
+    public static long getMissCount() {
+        return MISSES.get();
+    }
+
+    public static long getEvictionCount() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * Returns the total raster size of the cached images.
+     *
+     * @return The size in bytes.
+     */
+    public static synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Estimates the memory held by the raster of an image.
+     *
+     * @param image The image.
+     * @return The size of the raster data in bytes.
+     */
+    public static long getRasterBytes(final BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    /**
+     * Builds the key of an image in the cache.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the image.
+     * @return The key.
+     */
+    private static String getKey(final String bucketName, final String fileName) {
+        return bucketName + "/" + fileName;
+    }
+
+    /**
+     * Reads the capacity from the environment.
+     *
+     * @return The capacity in bytes.
+     */
+    private static long getCapacity() {
+        try {
+            return Long.parseLong(System.getenv(CAPACITY_MB_ENV)) * 1024 * 1024;
+        } catch (final Exception ignored) {
+            return DEFAULT_CAPACITY;
+        }
+    }
+
+    /**
+     * A cached image and the version it was decoded from.
+     */
+    private static class Entry {
+        private final String eTag;
+        private final BufferedImage image;
+        private final long bytes;
+
+        Entry(final String eTag, final BufferedImage image, final long bytes) {
+            this.eTag = eTag;
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+package utils;
+
+import imaging.CanonicalLayout;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  An image held in its encoded form. The pixels are only decoded the first time they are needed,
+ *  so an image that is encoded and then stored as is never goes through the codec again.
+ */
+public class EncodedImage {
+
+    private final byte[] data;
+    private final String format;
+    private BufferedImage image;
+
+    public EncodedImage(final byte[] data, final String format) {
+        this.data = data;
+        this.format = format;
+    }
+
+    /**
+     * Returns the encoded image.
+     *
+     * @return The encoded bytes. Must not be modified.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the format the image is encoded in.
+     *
+     * @return The lower case format name, e.g. "png".
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the decoded image, decoding it on the first call.
+     *
+     * @return The decoded image.
+     * @throws IOException If the image could not be decoded.
+     */
+    public BufferedImage getImage() throws IOException {
+        if (image == null) {
+            final BufferedImage decodedImage = ImageIO.read(new ByteArrayInputStream(data));
+            if (decodedImage == null) {
+                throw new IOException("Could not decode " + format + " image.");
+            }
+            image = CanonicalLayout.toCanonical(decodedImage);
+        }
+        return image;
+    }
+
+    /**
+     * Returns the dimensions and color model of the image without decoding it.
+     *
+     * @return The image header.
+     * @throws IOException If the header could not be read.
+     */
+    public ImageHeader getHeader() throws IOException {
+        if (image != null) {
+            return new ImageHeader(image.getWidth(), image.getHeight(), image.getColorModel());
+        }
+        return ImageHeader.read(new ByteArrayInputStream(data));
+    }
+
+}
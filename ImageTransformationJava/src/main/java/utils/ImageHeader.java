@@ -0,0 +1,78 @@
+package utils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Image dimensions and color model read from the file header, without decoding any pixels.
+ */
+public class ImageHeader {
+
+    private final int width;
+    private final int height;
+    private final ColorModel colorModel;
+
+    public ImageHeader(final int width, final int height, final ColorModel colorModel) {
+        this.width = width;
+        this.height = height;
+        this.colorModel = colorModel;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the color model a full decode with ImageIO.read would produce.
+     *
+     * @return The color model.
+     */
+    public ColorModel getColorModel() {
+        return colorModel;
+    }
+
+    /**
+     * Reads the header of an image. Only reads as far as the JPEG SOF segment or the PNG IHDR chunk
+     * (and any palette chunks before the image data).
+     *
+     * @param stream The stream over the image file.
+     * @return The header.
+     * @throws IOException If the stream is not a supported image or ends before the header does.
+     */
+    public static ImageHeader read(final InputStream stream) throws IOException {
+        try (ImageInputStream imageStream = ImageIO.createImageInputStream(stream)) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageStream);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format.");
+            }
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(imageStream, true, true);
+
+                // ImageIO.read decodes into the first image type, so its color model is the one to report
+                final Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+                if (!imageTypes.hasNext()) {
+                    throw new IOException("Unsupported image type.");
+                }
+                return new ImageHeader(reader.getWidth(0), reader.getHeight(0), imageTypes.next().getColorModel());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,254 @@
+package utils;
+
+import storage.ImageStore;
+import storage.ObjectInfo;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Lets the functions reuse an output image produced by an identical earlier request.
+ *
+ *  Every output is uploaded with a fingerprint in its metadata: a hash of the source image, the version the
+ *  store reported for it, and the normalized operations applied to it. Before doing any work a function
+ *  computes the fingerprint of the current request and looks up the output it would write. If the stored
+ *  fingerprint matches, the output is already up to date and the function returns it without downloading,
+ *  decoding or encoding anything. A changed source has a new entity tag, so stale outputs never match.
+ *  The source and the output are looked up at the same time, so a lookup costs a single round trip.
+ */
+public class ResultCache {
+
+    /**
+     * Metadata key holding the fingerprint of the request that produced an output.
+     */
+    public static final String FINGERPRINT_METADATA_KEY = "result-fingerprint";
+
+    /**
+     * Part of every fingerprint. Increase it when an operation starts producing different pixels,
+     * so outputs written by older code are recomputed.
+     */
+    private static final int RESULT_VERSION = 7;
+
+    /**
+     * Request keys that do not change the output image.
+     */
+    private static final Set<String> IGNORED_KEYS = new HashSet<>(Arrays.asList(
+            Constants.BUCKET_KEY,
+            Constants.FILE_NAME_KEY,
+            Constants.GET_DOWNLOAD_KEY,
+            Constants.ONLY_METRICS_KEY,
+            Constants.STREAMING_KEY
+    ));
+
+
+    /**
+     * Describes an operation in a canonical form: arguments are sorted, numbers and strings are normalized,
+     * and arguments that do not affect the output are dropped.
+     *
+     * @param operationName The name of the operation.
+     * @param arguments     The arguments of the operation.
+     * @return The canonical description, e.g. "rotate(rotation_angle=90)".
+     */
+    public static String describeOperation(final String operationName, final Map<String, Object> arguments) {
+        final Map<String, Object> relevantArguments = new HashMap<>(arguments);
+        relevantArguments.keySet().removeAll(IGNORED_KEYS);
+        return operationName + "(" + normalize(relevantArguments) + ")";
+    }
+
+    /**
+     * Computes the fingerprint of a request and looks up the output produced by a request with the same
+     * fingerprint. The output is looked up in the background while the source is.
+     *
+     * @param store          The image store holding the source image and the output.
+     * @param bucketName     The name of the bucket.
+     * @param fileName       The name of the source image.
+     * @param operations     The canonical description of the operations, see describeOperation.
+     * @param outputFileName The name the output is stored under.
+     * @return The fingerprint of the request and the output, if there is an up to date one.
+     */
+    public static Lookup lookup(final ImageStore store,
+                                final String bucketName,
+                                final String fileName,
+                                final String operations,
+                                final String outputFileName) {
+        final CompletableFuture<ObjectInfo> output = store.headAsync(bucketName, outputFileName);
+        ObjectInfo source = null;
+        try {
+            source = store.head(bucketName, fileName);
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        return getLookup(output, getFingerprint(bucketName, fileName, source, operations));
+    }
+
+    /**
+     * Looks up the output of a request like lookup, for a source that is looked up once for several outputs.
+     * Only the output is looked up here, while the source lookup may still be running.
+     *
+     * @param store          The image store holding the output.
+     * @param bucketName     The name of the bucket.
+     * @param fileName       The name of the source image.
+     * @param source         The lookup of the source image, see ImageStore.headAsync.
+     * @param operations     The canonical description of the operations, see describeOperation.
+     * @param outputFileName The name the output is stored under.
+     * @return The fingerprint of the request and the output, if there is an up to date one.
+     */
+    public static Lookup lookup(final ImageStore store,
+                                final String bucketName,
+                                final String fileName,
+                                final CompletableFuture<ObjectInfo> source,
+                                final String operations,
+                                final String outputFileName) {
+        final CompletableFuture<ObjectInfo> output = store.headAsync(bucketName, outputFileName);
+        ObjectInfo sourceInfo = null;
+        try {
+            sourceInfo = source.join();
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        return getLookup(output, getFingerprint(bucketName, fileName, sourceInfo, operations));
+    }
+
+    /**
+     * Compares the fingerprint of a request to the one stored with its output.
+     *
+     * @param output      The lookup of the output.
+     * @param fingerprint The fingerprint of the request, may be null.
+     * @return The fingerprint and the output, if it is up to date.
+     */
+    private static Lookup getLookup(final CompletableFuture<ObjectInfo> output, final String fingerprint) {
+        try {
+            final ObjectInfo outputInfo = output.join();
+            if (fingerprint != null && outputInfo != null && fingerprint.equals(outputInfo.getUserMetadata().get(FINGERPRINT_METADATA_KEY))) {
+                return new Lookup(fingerprint, outputInfo.getUserMetadata());
+            }
+        } catch (final Exception e) {
+            e.printStackTrace();
+        }
+        return new Lookup(fingerprint, null);
+    }
+
+    /**
+     * Computes the fingerprint of a request from the current version of its source image.
+     *
+     * @param bucketName The name of the bucket.
+     * @param fileName   The name of the source image.
+     * @param source     The source image, or null if it could not be looked up.
+     * @param operations The canonical description of the operations, see describeOperation.
+     * @return The fingerprint, or null if the version of the source could not be determined.
+     */
+    private static String getFingerprint(final String bucketName, final String fileName, final ObjectInfo source, final String operations) {
+        if (source == null || source.getETag() == null) {
+            return null;
+        }
+        try {
+            final String input = RESULT_VERSION + "\n" + bucketName + "/" + fileName + "\n" + source.getETag() + "\n" + operations;
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(input.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder();
+            for (final byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+
+        } catch (final Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Creates the metadata to upload an output with.
+     *
+     * @param fingerprint The fingerprint of the request producing the output, may be null.
+     * @return A mutable metadata map, holding the fingerprint if there is one.
+     */
+    public static Map<String, String> createMetadata(final String fingerprint) {
+        final Map<String, String> metadata = new HashMap<>();
+        if (fingerprint != null) {
+            metadata.put(FINGERPRINT_METADATA_KEY, fingerprint);
+        }
+        return metadata;
+    }
+
+    /**
+     * Converts a request value to a canonical string. Maps are sorted by key, numbers lose trailing zeros and
+     * strings are compared case-insensitively, so requests that only differ in formatting share a fingerprint.
+     *
+     * @param value The value.
+     * @return The canonical string.
+     */
+    private static String normalize(final Object value) {
+        if (value instanceof Map) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Map.Entry<?, ?> entry : new TreeMap<>((Map<?, ?>) value).entrySet()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(entry.getKey()).append('=').append(normalize(entry.getValue()));
+            }
+            return sb.toString();
+        }
+        if (value instanceof List) {
+            final StringBuilder sb = new StringBuilder("[");
+            for (final Object element : (List<?>) value) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(normalize(element));
+            }
+            return sb.append(']').toString();
+        }
+        if (value instanceof Number) {
+            final BigDecimal number = new BigDecimal(value.toString()).stripTrailingZeros();
+            return number.signum() == 0 ? "0" : number.toPlainString();
+        }
+        if (value instanceof String) {
+            return ((String) value).trim().toLowerCase();
+        }
+        return String.valueOf(value);
+    }
+
+    /**
+     * The outcome of a lookup.
+     */
+    public static final class Lookup {
+        private final String fingerprint;
+        private final Map<String, String> result;
+
+        Lookup(final String fingerprint, final Map<String, String> result) {
+            this.fingerprint = fingerprint;
+            this.result = result;
+        }
+
+        /**
+         * Returns the fingerprint to upload the output with.
+         *
+         * @return The fingerprint, or null if the version of the source could not be determined.
+         */
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * Returns the output of an identical earlier request.
+         *
+         * @return The metadata of the output, or null if there is no up to date output.
+         */
+        public Map<String, String> getResult() {
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+package utils;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.conn.ssl.SdkTLSSocketFactory;
+import com.amazonaws.regions.DefaultAwsRegionProviderChain;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.ssl.SSLContexts;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Holds the S3 client shared by every invocation in a container.
+ *
+ *  The client is built once on first use, so credential resolution, region lookup and the connection pool
+ *  survive across warm invocations. Reading the counters does not build it, so functions using another image
+ *  store never look up credentials or a region. Pool settings can be tuned with environment variables.
+ */
+public class S3ClientManager {
+
+    // Environment variables used to tune the connection pool
+    public static final String MAX_CONNECTIONS_ENV = "S3_MAX_CONNECTIONS";
+    public static final String CONNECTION_MAX_IDLE_MS_ENV = "S3_CONNECTION_MAX_IDLE_MS";
+    public static final String CONNECTION_TTL_MS_ENV = "S3_CONNECTION_TTL_MS";
+    public static final String VALIDATE_AFTER_INACTIVITY_MS_ENV = "S3_VALIDATE_AFTER_INACTIVITY_MS";
+
+    /**
+     * The default maximum number of pooled connections.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    /**
+     * The default time an idle connection is kept in the pool, in milliseconds.
+     */
+    private static final long DEFAULT_CONNECTION_MAX_IDLE_MS = 60_000;
+
+    /**
+     * The default time to live of a pooled connection, in milliseconds. -1 means no limit.
+     */
+    private static final long DEFAULT_CONNECTION_TTL_MS = -1;
+
+    /**
+     * The default idle time after which a pooled connection is validated before reuse, in milliseconds.
+     */
+    private static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MS = 5_000;
+
+    /**
+     * The number of HTTP attempts sent by the client since the container started.
+     */
+    private static final AtomicLong REQUEST_COUNT = new AtomicLong();
+
+    /**
+     * The number of new connections (and therefore TLS handshakes) opened since the container started.
+     */
+    private static final AtomicLong HANDSHAKE_COUNT = new AtomicLong();
+
+
+
+    /**
+     * Returns the shared S3 client, building it on the first call.
+     *
+     * @return The S3 client.
+     */
+    public static AmazonS3 getClient() {
+        return ClientHolder.CLIENT;
+    }
+
+    /**
+     * Returns the number of HTTP attempts sent since the container started.
+     *
+     * @return The request count.
+     */
+    public static long getRequestCount() {
+        return REQUEST_COUNT.get();
+    }
+
+    /**
+     * Returns the number of TLS handshakes made since the container started.
+     *
+     * @return The handshake count.
+     */
+    public static long getHandshakeCount() {
+        return HANDSHAKE_COUNT.get();
+    }
+
+    /**
+     * Builds the client with a tuned connection pool.
+     *
+     * @return The S3 client.
+     */
+    private static AmazonS3 createClient() {
+        final ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(getIntEnv(MAX_CONNECTIONS_ENV, DEFAULT_MAX_CONNECTIONS))
+                .withConnectionMaxIdleMillis(getLongEnv(CONNECTION_MAX_IDLE_MS_ENV, DEFAULT_CONNECTION_MAX_IDLE_MS))
+                .withConnectionTTL(getLongEnv(CONNECTION_TTL_MS_ENV, DEFAULT_CONNECTION_TTL_MS))
+                .withValidateAfterInactivityMillis(getIntEnv(VALIDATE_AFTER_INACTIVITY_MS_ENV, DEFAULT_VALIDATE_AFTER_INACTIVITY_MS))
+                .withTcpKeepAlive(true)
+                .withReaper(true);
+
+        // Same socket factory the SDK uses by default, but counting every new connection
+        configuration.getApacheHttpClientConfig().setSslSocketFactory(new CountingSocketFactory());
+
+        final AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(configuration)
+                .withRequestHandlers(new CountingRequestHandler());
+
+        // Outside of Lambda there may be no region configured, don't fail class loading because of it
+        try {
+            new DefaultAwsRegionProviderChain().getRegion();
+        } catch (final Exception e) {
+            builder.withRegion(Regions.DEFAULT_REGION).withForceGlobalBucketAccessEnabled(true);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Reads an integer environment variable.
+     *
+     * @param name     The name of the variable.
+     * @param fallback The value to use if the variable is missing or invalid.
+     * @return The value of the variable, or the fallback.
+     */
+    private static int getIntEnv(final String name, final int fallback) {
+        try {
+            return Integer.parseInt(System.getenv(name));
+        } catch (final Exception ignored) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Reads a long environment variable.
+     *
+     * @param name     The name of the variable.
+     * @param fallback The value to use if the variable is missing or invalid.
+     * @return The value of the variable, or the fallback.
+     */
+    private static long getLongEnv(final String name, final long fallback) {
+        try {
+            return Long.parseLong(System.getenv(name));
+        } catch (final Exception ignored) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Holds the container-scoped client. The JVM builds it when the holder is first used.
+     */
+    private static class ClientHolder {
+        private static final AmazonS3 CLIENT = createClient();
+    }
+
+    /**
+     * Counts HTTP attempts made by the client, including retries.
+     */
+    private static class CountingRequestHandler extends RequestHandler2 {
+        @Override
+        public void beforeAttempt(final HandlerBeforeAttemptContext context) {
+            REQUEST_COUNT.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts connections opened by the client. Each new connection performs a TLS handshake.
+     */
+    private static class CountingSocketFactory extends SdkTLSSocketFactory {
+        CountingSocketFactory() {
+            super(SSLContexts.createDefault(), new DefaultHostnameVerifier());
+        }
+
+        @Override
+        public Socket connectSocket(final int connectTimeout,
+                                    final Socket socket,
+                                    final HttpHost host,
+                                    final InetSocketAddress remoteAddress,
+                                    final InetSocketAddress localAddress,
+                                    final HttpContext context) throws IOException {
+            final Socket connectedSocket = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            HANDSHAKE_COUNT.incrementAndGet();
+            return connectedSocket;
+        }
+    }
+
+}
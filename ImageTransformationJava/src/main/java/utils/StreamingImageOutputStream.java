@@ -0,0 +1,52 @@
+package utils;
+
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/***
+ *  TCSS 462 Image Transformation
+ *  Group 7
+ *
+ *  Image output stream that passes encoded bytes on to the underlying stream while the encoder is still running.
+ *
+ *  ImageIO's memory cache only releases bytes when the writer calls flushBefore, which the JPEG writer never does,
+ *  so the whole encoded image would be held until the end. This stream only keeps a small window of recent bytes
+ *  that writers may still seek back into (the PNG writer rewrites the length of the current chunk).
+ */
+public class StreamingImageOutputStream extends MemoryCacheImageOutputStream {
+
+    /**
+     * The number of most recent bytes kept so writers can seek back into them.
+     */
+    private static final int REWIND_WINDOW = 256 * 1024;
+
+    public StreamingImageOutputStream(final OutputStream stream) {
+        super(stream);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        super.write(b);
+        flushOldBytes();
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        super.write(b, off, len);
+        flushOldBytes();
+    }
+
+    /**
+     * Passes every byte outside of the rewind window on to the underlying stream.
+     *
+     * @throws IOException If the underlying stream fails.
+     */
+    private void flushOldBytes() throws IOException {
+        final long position = getStreamPosition() - REWIND_WINDOW;
+        if (position > getFlushedPosition()) {
+            flushBefore(position);
+        }
+    }
+
+}